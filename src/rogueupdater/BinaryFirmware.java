@@ -0,0 +1,399 @@
+/*
+ * RogueUpdater
+ *
+ * Firmware updater tool for Rogue Robotics products.
+ * http://www.roguerobotics.com/
+ *
+ */
+package rogueupdater;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * The .rfwb container: the same frame stream as a .rfw file, stored as
+ * binary with an index, so it is half the size and needs no decoding.
+ *
+ * All numbers are big-endian, like the frame lengths:
+ *
+ *   magic        4  "RFWB"
+ *   version      2  1
+ *   flags        2  0
+ *   frame count  4
+ *   data length  4
+ *   CRC32        4  of the data
+ *   SHA-256     32  of the data
+ *   index        4 per frame, the offset of each frame in the data
+ *   data            the frames, each a 2 byte length and its bytes
+ *
+ * The file is memory mapped to read it.  Its index has to agree with
+ * the frames, and the CRC and SHA-256 with the data.
+ *
+ * main() converts .rfw files to .rfwb.
+ */
+public class BinaryFirmware
+{
+  public static final String EXTENSION = "rfwb";
+  public static final int VERSION = 1;
+
+  private static final byte[] MAGIC = { 'R', 'F', 'W', 'B' };
+  // magic, version, flags, frame count, data length, CRC32, SHA-256
+  private static final int HEADER_SIZE = 4 + 2 + 2 + 4 + 4 + 4 + 32;
+  // Bytes read at a time from a stream.
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  private BinaryFirmware()
+  {
+  }
+
+  /**
+   * Whether the file open on channel starts like a .rfwb file.  A .rfw
+   * file cannot: 'R' is not a hex digit.
+   */
+  static boolean isBinary(FileChannel channel) throws IOException
+  {
+    ByteBuffer magic = ByteBuffer.allocate(MAGIC.length);
+
+    while (magic.hasRemaining() && channel.read(magic, magic.position()) > 0)
+    {
+    }
+
+    return isBinary(magic.array(), magic.position());
+  }
+
+  /**
+   * Whether the first length bytes of start begin a .rfwb file.
+   */
+  static boolean isBinary(byte[] start, int length)
+  {
+    if (length < MAGIC.length)
+    {
+      return false;
+    }
+
+    for (int i = 0; i < MAGIC.length; i++)
+    {
+      if (start[i] != MAGIC[i])
+      {
+        return false;
+      }
+    }
+
+    return true;
+  }
+
+  // The fixed part of the header.
+  private static class Header
+  {
+    long frameCount;
+    long dataLength;
+    int crc;
+    byte[] sha = new byte[32];
+
+    // bytes in the whole file
+    long fileSize()
+    {
+      return HEADER_SIZE + 4 * frameCount + dataLength;
+    }
+  }
+
+  /**
+   * Read a whole .rfwb file.
+   *
+   * @throws InvalidFirmwareException if the file is damaged
+   */
+  static FirmwareImage read(FileChannel channel) throws IOException
+  {
+    long size = channel.size();
+
+    if (size < HEADER_SIZE)
+    {
+      throw new InvalidFirmwareException("The header is truncated.");
+    }
+
+    return read(channel.map(FileChannel.MapMode.READ_ONLY, 0, size));
+  }
+
+  /**
+   * Read a whole .rfwb file that is already in memory.
+   *
+   * @throws InvalidFirmwareException if the file is damaged
+   */
+  static FirmwareImage read(ByteBuffer map) throws InvalidFirmwareException
+  {
+    long size = map.remaining();
+
+    if (size < HEADER_SIZE)
+    {
+      throw new InvalidFirmwareException("The header is truncated.");
+    }
+
+    Header header = readHeader(map, size);
+
+    if (header.fileSize() != size)
+    {
+      throw new InvalidFirmwareException(
+        "The file is " + size + " bytes, its header says "
+        + header.fileSize() + ".");
+    }
+
+    int[] offsets = new int[(int) header.frameCount + 1];
+
+    for (int i = 0; i < header.frameCount; i++)
+    {
+      offsets[i] = map.getInt();
+    }
+
+    // one bulk copy into the array the transports write from
+    byte[] data = new byte[(int) header.dataLength];
+
+    map.get(data);
+
+    return image(header, offsets, data);
+  }
+
+  /**
+   * Read a .rfwb file from a stream, e.g. while decompressing it.  The
+   * header's sizes aren't trusted: the buffer grows with what the stream
+   * actually holds, and is then read as above.
+   *
+   * @throws InvalidFirmwareException if the file is damaged
+   */
+  static FirmwareImage read(InputStream in) throws IOException
+  {
+    byte[] buffer = new byte[BUFFER_SIZE];
+    int length = 0;
+    int n;
+
+    while ((n = in.read(buffer, length, buffer.length - length)) >= 0)
+    {
+      length += n;
+
+      if (length == buffer.length)
+      {
+        if (buffer.length == Integer.MAX_VALUE)
+        {
+          throw new InvalidFirmwareException("The file is too large.");
+        }
+        buffer = Arrays.copyOf(buffer,
+                               (int) Math.min(Integer.MAX_VALUE, 2L * buffer.length));
+      }
+    }
+
+    return read(ByteBuffer.wrap(buffer, 0, length));
+  }
+
+  /*
+   * Read the fixed header at the start of a file of size bytes, checking
+   * what can be checked before anything is allocated from it.
+   */
+  private static Header readHeader(ByteBuffer buffer, long size)
+    throws InvalidFirmwareException
+  {
+    Header header = new Header();
+
+    buffer.position(MAGIC.length);
+
+    int version = buffer.getShort() & 0xffff;
+
+    if (version < 1 || version > VERSION)
+    {
+      throw new InvalidFirmwareException("Unsupported .rfwb version " + version + ".");
+    }
+
+    buffer.getShort();   // flags, none defined yet
+
+    header.frameCount = buffer.getInt() & 0xffffffffL;
+    header.dataLength = buffer.getInt() & 0xffffffffL;
+    header.crc = buffer.getInt();
+    buffer.get(header.sha);
+
+    // each frame is at least its 2 byte length
+    if (header.frameCount > (size - HEADER_SIZE) / 2
+        || header.frameCount * 2 > header.dataLength)
+    {
+      throw new InvalidFirmwareException("The header is damaged.");
+    }
+
+    return header;
+  }
+
+  private static FirmwareImage image(Header header, int[] offsets, byte[] data)
+    throws InvalidFirmwareException
+  {
+    CRC32 crc32 = new CRC32();
+
+    crc32.update(data, 0, data.length);
+
+    if ((int) crc32.getValue() != header.crc)
+    {
+      throw new InvalidFirmwareException("CRC mismatch; the file is damaged.");
+    }
+
+    if (!Arrays.equals(sha256(data), header.sha))
+    {
+      throw new InvalidFirmwareException("SHA-256 mismatch; the file is damaged.");
+    }
+
+    offsets[offsets.length - 1] = data.length;
+
+    return new FirmwareImage(data, offsets);
+  }
+
+  private static byte[] sha256(byte[] data)
+  {
+    try
+    {
+      return MessageDigest.getInstance("SHA-256").digest(data);
+    }
+    catch (NoSuchAlgorithmException ex)
+    {
+      // every Java platform has SHA-256
+      throw new IllegalStateException(ex);
+    }
+  }
+
+  /**
+   * The SHA-256 recorded in a .rfwb file, as hex.
+   */
+  public static String digest(File file) throws IOException
+  {
+    FileInputStream in = new FileInputStream(file);
+
+    try
+    {
+      FileChannel channel = in.getChannel();
+      ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+
+      while (header.hasRemaining() && channel.read(header) >= 0)
+      {
+      }
+
+      if (header.hasRemaining() || !isBinary(channel))
+      {
+        throw new InvalidFirmwareException("Not a .rfwb file: " + file);
+      }
+
+      byte[] sha = new byte[32];
+
+      header.position(HEADER_SIZE - sha.length);
+      header.get(sha);
+
+      return FirmwareCache.toHex(sha);
+    }
+    finally
+    {
+      in.close();
+    }
+  }
+
+  /**
+   * Write image to file as .rfwb.
+   */
+  public static void write(FirmwareImage image, File file) throws IOException
+  {
+    image.validate();
+
+    byte[] data = image.getData();
+    int frames = image.frameCount();
+    ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE + 4 * frames);
+    CRC32 crc32 = new CRC32();
+
+    crc32.update(data, 0, data.length);
+
+    header.put(MAGIC);
+    header.putShort((short) VERSION);
+    header.putShort((short) 0);
+    header.putInt(frames);
+    header.putInt(data.length);
+    header.putInt((int) crc32.getValue());
+    header.put(sha256(data));
+    for (int i = 0; i < frames; i++)
+    {
+      header.putInt(image.frameOffset(i));
+    }
+    header.flip();
+
+    FileOutputStream out = new FileOutputStream(file);
+
+    try
+    {
+      FileChannel channel = out.getChannel();
+      ByteBuffer body = ByteBuffer.wrap(data);
+
+      while (header.hasRemaining())
+      {
+        channel.write(header);
+      }
+      while (body.hasRemaining())
+      {
+        channel.write(body);
+      }
+    }
+    finally
+    {
+      out.close();
+    }
+  }
+
+  /**
+   * Convert a .rfw file to .rfwb.
+   *
+   * Usage: IN.rfw [OUT.rfwb]
+   */
+  public static void main(String args[]) throws IOException
+  {
+    if (args.length < 1 || args.length > 2)
+    {
+      System.err.println("Usage: IN.rfw [OUT.rfwb]");
+      System.exit(1);
+    }
+
+    File in = new File(args[0]);
+    File out;
+
+    if (args.length > 1)
+    {
+      out = new File(args[1]);
+    }
+    else
+    {
+      String name = in.getPath();
+      int dot = name.lastIndexOf('.');
+
+      if (dot > name.lastIndexOf(File.separatorChar))
+      {
+        name = name.substring(0, dot);
+      }
+      out = new File(name + "." + EXTENSION);
+    }
+
+    FirmwareImage image;
+
+    try
+    {
+      image = FirmwareImage.load(in);
+    }
+    catch (InvalidFirmwareException ex)
+    {
+      System.err.println("This is not a valid Rogue Firmware update file: "
+                         + ex.getMessage());
+      System.exit(2);
+      return;
+    }
+
+    write(image, out);
+
+    System.out.println("Wrote " + out + ": " + image.frameCount() + " frames, "
+                       + out.length() + " bytes (was " + in.length() + ")");
+  }
+}
@@ -0,0 +1,224 @@
+/*
+ * RogueUpdater
+ *
+ * Firmware updater tool for Rogue Robotics products.
+ * http://www.roguerobotics.com/
+ *
+ */
+package rogueupdater;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipException;
+
+/**
+ * Firmware files compressed with gzip (.gz) or zlib deflate (.zlib).
+ * Either a .rfw or a .rfwb may be inside.
+ *
+ * The file is decompressed as it is read and fed straight to the
+ * decoder, so neither the compressed file nor the hex ever sits in
+ * memory whole; only the decoded image does.
+ */
+public class CompressedFirmware
+{
+  // Decompressor input buffer (bytes).
+  private static final int BUFFER_SIZE = 64 * 1024;
+  // Most that deflate can expand its input by.
+  private static final int MAX_RATIO = 1032;
+  // Most the decoded image is sized for up front, whatever the file says;
+  // past this the buffer grows with the data actually there (bytes).
+  private static final int MAX_SIZE_HINT = 1024 * 1024;
+
+  private enum Format
+  {
+    NONE,
+    GZIP,
+    ZLIB
+  }
+
+  private CompressedFirmware()
+  {
+  }
+
+  /**
+   * Whether the file open on channel is compressed.  Neither header can
+   * start a .rfw file (0x1f and 'x' are not hex digits) or a .rfwb.
+   */
+  static boolean isCompressed(FileChannel channel) throws IOException
+  {
+    return format(channel) != Format.NONE;
+  }
+
+  /**
+   * Same, for a whole file in memory.
+   */
+  static boolean isCompressed(byte[] contents)
+  {
+    return format(contents, contents.length) != Format.NONE;
+  }
+
+  private static Format format(FileChannel channel) throws IOException
+  {
+    ByteBuffer magic = ByteBuffer.allocate(2);
+
+    while (magic.hasRemaining() && channel.read(magic, magic.position()) > 0)
+    {
+    }
+
+    return format(magic.array(), magic.position());
+  }
+
+  private static Format format(byte[] start, int length)
+  {
+    if (length < 2)
+    {
+      return Format.NONE;
+    }
+
+    int b0 = start[0] & 0xff;
+    int b1 = start[1] & 0xff;
+
+    if (b0 == 0x1f && b1 == 0x8b)
+    {
+      return Format.GZIP;
+    }
+
+    // deflate, 32K window or less, and the header check (RFC 1950)
+    if ((b0 & 0x0f) == 8 && (b0 >> 4) <= 7 && (b0 * 256 + b1) % 31 == 0)
+    {
+      return Format.ZLIB;
+    }
+
+    return Format.NONE;
+  }
+
+  /**
+   * Decompress and decode the whole file.
+   *
+   * @throws InvalidFirmwareException if the file, or what is inside it,
+   *         is not a valid image
+   */
+  static FirmwareImage read(FileChannel channel) throws IOException
+  {
+    ByteBuffer trailer = ByteBuffer.allocate(4);
+    long size = channel.size();
+
+    if (size >= 4)
+    {
+      while (trailer.hasRemaining()
+             && channel.read(trailer, size - 4 + trailer.position()) > 0)
+      {
+      }
+    }
+
+    return read(Channels.newInputStream(channel.position(0)),
+                format(channel), size, trailer.array());
+  }
+
+  /**
+   * Same, for a whole file in memory.
+   */
+  static FirmwareImage read(byte[] contents) throws IOException
+  {
+    byte[] trailer = new byte[4];
+
+    if (contents.length >= 4)
+    {
+      System.arraycopy(contents, contents.length - 4, trailer, 0, 4);
+    }
+
+    return read(new ByteArrayInputStream(contents),
+                format(contents, contents.length), contents.length, trailer);
+  }
+
+  /*
+   * Decompress and decode raw, which is size bytes in format and ends
+   * with trailer.
+   */
+  private static FirmwareImage read(InputStream raw, Format format, long size,
+                                    byte[] trailer)
+    throws IOException
+  {
+    InputStream in;
+    long expected;
+
+    try
+    {
+      if (format == Format.GZIP)
+      {
+        in = new GZIPInputStream(raw, BUFFER_SIZE);
+        // only a hint, and one a damaged file can get wrong
+        expected = Math.min(gzipSize(trailer), size * MAX_RATIO);
+      }
+      else
+      {
+        in = new InflaterInputStream(raw, new Inflater(), BUFFER_SIZE);
+        // hex usually shrinks to a quarter or so
+        expected = size * 4;
+      }
+
+      // look inside without consuming anything
+      BufferedInputStream contents = new BufferedInputStream(in, BUFFER_SIZE);
+      byte[] start = new byte[4];
+      int n = 0;
+
+      contents.mark(start.length);
+      while (n < start.length)
+      {
+        int r = contents.read(start, n, start.length - n);
+
+        if (r < 0)
+        {
+          break;
+        }
+        n += r;
+      }
+      contents.reset();
+
+      FirmwareImage image;
+
+      if (BinaryFirmware.isBinary(start, n))
+      {
+        image = BinaryFirmware.read(contents);
+      }
+      else
+      {
+        image = FirmwareImage.decodeHex(contents,
+                                        (int) Math.min(MAX_SIZE_HINT,
+                                                       expected / 2));
+      }
+
+      return image;
+    }
+    catch (ZipException ex)
+    {
+      throw new InvalidFirmwareException("The file is not validly compressed ("
+                                         + ex.getMessage() + ").");
+    }
+    catch (EOFException ex)
+    {
+      throw new InvalidFirmwareException("The compressed file is truncated.");
+    }
+  }
+
+  /*
+   * The uncompressed size from a gzip trailer, the last 4 bytes of the
+   * file (modulo 4 GB, which is plenty for firmware).  Only a hint: a
+   * file of several gzip members gives the size of the last.
+   */
+  private static long gzipSize(byte[] trailer)
+  {
+    return ByteBuffer.wrap(trailer).order(ByteOrder.LITTLE_ENDIAN).getInt(0)
+           & 0xffffffffL;
+  }
+}
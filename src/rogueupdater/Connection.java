@@ -0,0 +1,37 @@
+/*
+ * RogueUpdater
+ *
+ * Firmware updater tool for Rogue Robotics products.
+ * http://www.roguerobotics.com/
+ *
+ */
+package rogueupdater;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A link to a module: the streams the Uploader talks over.
+ */
+public interface Connection
+{
+  String getName();
+
+  InputStream getInputStream();
+
+  OutputStream getOutputStream();
+
+  /**
+   * True if read() blocks until data arrives or the receive timeout
+   * expires, returning -1 on timeout.  Otherwise callers have to poll
+   * available().
+   */
+  boolean isBlockingReads();
+
+  void setReceiveTimeout(int timeout) throws IOException;
+
+  void setSettings(SerialSettings settings) throws IOException;
+
+  void close();
+}
@@ -0,0 +1,138 @@
+/*
+ * RogueUpdater
+ *
+ * Firmware updater tool for Rogue Robotics products.
+ * http://www.roguerobotics.com/
+ *
+ */
+package rogueupdater;
+
+import gnu.io.NoSuchPortException;
+import gnu.io.PortInUseException;
+import gnu.io.UnsupportedCommOperationException;
+import java.io.IOException;
+
+/**
+ * Opens a Connection from a port name:
+ *
+ *   tcp://HOST:PORT   a serial-over-TCP bridge (TcpConnection)
+ *   sim:              a fresh simulated module (ModuleSimulator)
+ *   anything else     a serial port, e.g. COM3 or /dev/ttyUSB0
+ */
+public class Connections
+{
+  public static final String TCP_PREFIX = "tcp://";
+  public static final String SIMULATOR_PREFIX = "sim:";
+  // How long a lost port may take to come back, e.g. while a USB adapter
+  // is enumerated again (ms).
+  public static final int REOPEN_TIMEOUT = 10000;
+  // Time between attempts to open it (ms).
+  private static final int REOPEN_INTERVAL = 500;
+
+  private Connections()
+  {
+  }
+
+  public static Connection open(String name, SerialSettings settings,
+                                int receiveTimeout)
+    throws NoSuchPortException, PortInUseException,
+           UnsupportedCommOperationException, IOException
+  {
+    return open(name, settings, receiveTimeout, SerialConnection.OPEN_TIMEOUT);
+  }
+
+  /**
+   * Same, waiting at most openTimeout ms for a serial port to be free.
+   */
+  public static Connection open(String name, SerialSettings settings,
+                                int receiveTimeout, int openTimeout)
+    throws NoSuchPortException, PortInUseException,
+           UnsupportedCommOperationException, IOException
+  {
+    Connection connection;
+
+    if (name.startsWith(TCP_PREFIX))
+    {
+      String address = name.substring(TCP_PREFIX.length());
+      int colon = address.lastIndexOf(':');
+
+      if (colon < 0)
+      {
+        throw new IllegalArgumentException("Missing TCP port in " + name);
+      }
+
+      int port;
+
+      try
+      {
+        port = Integer.parseInt(address.substring(colon + 1));
+      }
+      catch (NumberFormatException ex)
+      {
+        throw new IllegalArgumentException("Invalid TCP port in " + name);
+      }
+
+      connection = TcpConnection.open(address.substring(0, colon), port);
+    }
+    else if (name.startsWith(SIMULATOR_PREFIX))
+    {
+      connection = new ModuleSimulator().connect(name);
+    }
+    else
+    {
+      return SerialConnection.open(name, settings, receiveTimeout, openTimeout);
+    }
+
+    connection.setSettings(settings);
+    connection.setReceiveTimeout(receiveTimeout);
+
+    return connection;
+  }
+
+  /**
+   * A Reconnector that opens name again, trying until it reappears or
+   * REOPEN_TIMEOUT has passed.
+   */
+  public static Uploader.Reconnector reconnector(final String name,
+                                                 final SerialSettings settings,
+                                                 final int receiveTimeout)
+  {
+    return new Uploader.Reconnector()
+    {
+      public Connection reconnect() throws Exception
+      {
+        long deadline = System.currentTimeMillis() + REOPEN_TIMEOUT;
+
+        while (true)
+        {
+          try
+          {
+            return open(name, settings, receiveTimeout);
+          }
+          catch (NoSuchPortException ex)
+          {
+            retryBefore(deadline, ex);
+          }
+          catch (PortInUseException ex)
+          {
+            retryBefore(deadline, ex);
+          }
+          catch (IOException ex)
+          {
+            retryBefore(deadline, ex);
+          }
+        }
+      }
+    };
+  }
+
+  private static void retryBefore(long deadline, Exception ex)
+    throws Exception
+  {
+    if (System.currentTimeMillis() + REOPEN_INTERVAL > deadline)
+    {
+      throw ex;
+    }
+    Thread.sleep(REOPEN_INTERVAL);
+  }
+}
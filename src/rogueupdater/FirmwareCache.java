@@ -0,0 +1,361 @@
+/*
+ * RogueUpdater
+ *
+ * Firmware updater tool for Rogue Robotics products.
+ * http://www.roguerobotics.com/
+ *
+ */
+package rogueupdater;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Decoded, validated firmware images, kept in memory for reuse.
+ *
+ * Images are stored under the SHA-256 of the file contents.  A file that
+ * has not changed since it was last loaded (same size and modification
+ * time) is found without reading it at all.  A changed file is read once
+ * and hashed, and those same bytes are decoded if its contents really
+ * are new, so the hash always describes the image.
+ *
+ * The total size of the cached images is bounded; the least recently
+ * used ones are dropped first, along with what was known about the files
+ * they came from.
+ *
+ * Files are read and decoded outside the lock, so several threads can
+ * load at once.
+ */
+public class FirmwareCache
+{
+  public static final long DEFAULT_MAX_BYTES = 32L * 1024 * 1024;
+  // Most files remembered, however many share an image.
+  private static final int MAX_STAMPS = 1024;
+
+  // What we knew about a file the last time it was loaded.
+  private static class Stamp
+  {
+    final long size;
+    final long modified;
+    final String hash;
+
+    Stamp(long size, long modified, String hash)
+    {
+      this.size = size;
+      this.modified = modified;
+      this.hash = hash;
+    }
+  }
+
+  /**
+   * A file as loaded: its SHA-256, and its image or why it is not a
+   * valid one.
+   */
+  static class Loaded
+  {
+    final String hash;
+    final FirmwareImage image;
+    final IOException error;
+
+    Loaded(String hash, FirmwareImage image, IOException error)
+    {
+      this.hash = hash;
+      this.image = image;
+      this.error = error;
+    }
+  }
+
+  private final long maxBytes;
+  private long totalBytes;
+  private int hits;
+  private int misses;
+  // canonical path -> stamp, only for images that are cached
+  private final LinkedHashMap<String, Stamp> stamps =
+    new LinkedHashMap<String, Stamp>(16, 0.75f, true)
+  {
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, Stamp> eldest)
+    {
+      return size() > MAX_STAMPS;
+    }
+  };
+  // content hash -> image, in least recently used order
+  private final LinkedHashMap<String, FirmwareImage> images =
+    new LinkedHashMap<String, FirmwareImage>(16, 0.75f, true);
+
+  public FirmwareCache()
+  {
+    this(DEFAULT_MAX_BYTES);
+  }
+
+  public FirmwareCache(long maxBytes)
+  {
+    this.maxBytes = maxBytes;
+  }
+
+  /**
+   * Return the decoded, validated image for file, loading it if it is not
+   * cached or has changed on disk.
+   *
+   * @throws InvalidFirmwareException if the file is not a valid image
+   */
+  public FirmwareImage load(File file) throws IOException
+  {
+    Loaded loaded = loadFile(file);
+
+    if (loaded.error != null)
+    {
+      throw loaded.error;
+    }
+
+    return loaded.image;
+  }
+
+  /**
+   * Like load(), but a file that is not a valid image is not an error,
+   * and the SHA-256 of the contents is given either way.
+   *
+   * @throws IOException if the file could not be read
+   */
+  Loaded loadFile(File file) throws IOException
+  {
+    String path = file.getCanonicalPath();
+    long size = file.length();
+    long modified = file.lastModified();
+    FirmwareImage image;
+
+    synchronized (this)
+    {
+      Stamp stamp = stamps.get(path);
+
+      if (stamp != null && stamp.size == size && stamp.modified == modified)
+      {
+        image = images.get(stamp.hash);
+        if (image != null)
+        {
+          hits++;
+          return new Loaded(stamp.hash, image, null);
+        }
+      }
+    }
+
+    byte[] contents = readAll(file);
+    String hash = hash(contents);
+
+    synchronized (this)
+    {
+      image = images.get(hash);
+      if (image != null)
+      {
+        hits++;
+        stamps.put(path, new Stamp(size, modified, hash));
+        return new Loaded(hash, image, null);
+      }
+      misses++;
+    }
+
+    try
+    {
+      image = FirmwareImage.read(contents);
+    }
+    catch (IOException ex)
+    {
+      return new Loaded(hash, null, ex);
+    }
+
+    synchronized (this)
+    {
+      // another thread may have decoded the same contents meanwhile
+      FirmwareImage cached = images.get(hash);
+
+      if (cached != null)
+      {
+        image = cached;
+      }
+      else
+      {
+        images.put(hash, image);
+        totalBytes += sizeOf(image);
+        evict();
+      }
+      stamps.put(path, new Stamp(size, modified, hash));
+    }
+
+    return new Loaded(hash, image, null);
+  }
+
+  /**
+   * Forget everything.
+   */
+  public synchronized void clear()
+  {
+    images.clear();
+    stamps.clear();
+    totalBytes = 0;
+  }
+
+  public synchronized int getHits()
+  {
+    return hits;
+  }
+
+  public synchronized int getMisses()
+  {
+    return misses;
+  }
+
+  /**
+   * Bytes of decoded images currently held.
+   */
+  public synchronized long getSize()
+  {
+    return totalBytes;
+  }
+
+  // Drop least recently used images until we fit.  Always keep the most
+  // recent one, even if it alone is over the limit.
+  private void evict()
+  {
+    Iterator<Map.Entry<String, FirmwareImage>> it = images.entrySet().iterator();
+
+    while (totalBytes > maxBytes && images.size() > 1 && it.hasNext())
+    {
+      Map.Entry<String, FirmwareImage> eldest = it.next();
+
+      totalBytes -= sizeOf(eldest.getValue());
+      it.remove();
+      forgetFiles(eldest.getKey());
+    }
+  }
+
+  private void forgetFiles(String hash)
+  {
+    Iterator<Stamp> it = stamps.values().iterator();
+
+    while (it.hasNext())
+    {
+      if (it.next().hash.equals(hash))
+      {
+        it.remove();
+      }
+    }
+  }
+
+  private static long sizeOf(FirmwareImage image)
+  {
+    // decoded data plus the frame index
+    return image.length() + 4L * (image.frameCount() + 1);
+  }
+
+  /*
+   * The whole of file.
+   */
+  private static byte[] readAll(File file) throws IOException
+  {
+    FileInputStream in = new FileInputStream(file);
+
+    try
+    {
+      FileChannel channel = in.getChannel();
+      long size = channel.size();
+
+      if (size > Integer.MAX_VALUE)
+      {
+        throw new IOException("File too large: " + file);
+      }
+
+      ByteBuffer buffer = ByteBuffer.allocate((int) size);
+
+      while (buffer.hasRemaining() && channel.read(buffer) >= 0)
+      {
+      }
+
+      if (buffer.hasRemaining() || channel.read(ByteBuffer.allocate(1)) >= 0)
+      {
+        throw new IOException(file + " changed while it was read.");
+      }
+
+      return buffer.array();
+    }
+    finally
+    {
+      in.close();
+    }
+  }
+
+  /**
+   * SHA-256 of contents, as hex.
+   */
+  static String hash(byte[] contents) throws IOException
+  {
+    MessageDigest digest = sha256();
+
+    digest.update(contents);
+
+    return toHex(digest.digest());
+  }
+
+  /**
+   * SHA-256 of the file contents, as hex.
+   */
+  static String hash(File file) throws IOException
+  {
+    MessageDigest digest = sha256();
+
+    FileInputStream in = new FileInputStream(file);
+
+    try
+    {
+      FileChannel channel = in.getChannel();
+      ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+
+      while (channel.read(buffer) >= 0)
+      {
+        buffer.flip();
+        digest.update(buffer);
+        buffer.clear();
+      }
+    }
+    finally
+    {
+      in.close();
+    }
+
+    return toHex(digest.digest());
+  }
+
+  private static MessageDigest sha256() throws IOException
+  {
+    try
+    {
+      return MessageDigest.getInstance("SHA-256");
+    }
+    catch (NoSuchAlgorithmException ex)
+    {
+      throw new IOException(ex);
+    }
+  }
+
+  static String toHex(byte[] bytes)
+  {
+    StringBuilder sb = new StringBuilder(bytes.length * 2);
+
+    for (byte b : bytes)
+    {
+      sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+      sb.append(Character.forDigit(b & 0xf, 16));
+    }
+
+    return sb.toString();
+  }
+}
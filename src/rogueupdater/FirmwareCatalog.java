@@ -0,0 +1,530 @@
+/*
+ * RogueUpdater
+ *
+ * Firmware updater tool for Rogue Robotics products.
+ * http://www.roguerobotics.com/
+ *
+ */
+package rogueupdater;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The firmware files in a directory, decoded, validated and indexed.
+ *
+ * scan() loads every file at once on a pool of threads, through a
+ * FirmwareCache, so a file copied or renamed in is not decoded again.
+ * Each is decoded and validated, and its size, frame count and SHA-256
+ * are kept along with the decoded image, ready to flash.  After that, watch() follows
+ * the directory and loads or drops just the files that change, instead
+ * of scanning again.
+ *
+ * Each image has a catalog ID: the start of the SHA-256 of the file.  It
+ * stays the same for as long as the file does, across runs and renames,
+ * so jobs can name an image by it.  Files that are not valid images are
+ * listed too, with the reason.
+ */
+public class FirmwareCatalog
+{
+  // Hex digits of the SHA-256 in an ID.
+  public static final int ID_LENGTH = 12;
+  // Time for a burst of file events to settle, e.g. while a file is
+  // copied in (ms).
+  private static final int SETTLE_TIME = 500;
+
+  /**
+   * One file in the catalog.
+   */
+  public static class Entry
+  {
+    private final String id;
+    private final File file;
+    private final long size;
+    private final long modified;
+    private final String hash;
+    private final FirmwareImage image;
+    private final Exception error;
+
+    Entry(File file, long size, long modified, String hash,
+          FirmwareImage image, Exception error)
+    {
+      this.id = hash.substring(0, ID_LENGTH);
+      this.file = file;
+      this.size = size;
+      this.modified = modified;
+      this.hash = hash;
+      this.image = image;
+      this.error = error;
+    }
+
+    public String getId()
+    {
+      return id;
+    }
+
+    public File getFile()
+    {
+      return file;
+    }
+
+    /**
+     * Bytes in the file.
+     */
+    public long getSize()
+    {
+      return size;
+    }
+
+    public long getModified()
+    {
+      return modified;
+    }
+
+    /**
+     * SHA-256 of the file, as hex.
+     */
+    public String getHash()
+    {
+      return hash;
+    }
+
+    public boolean isValid()
+    {
+      return image != null;
+    }
+
+    /**
+     * The decoded image, or null if the file is not a valid image.
+     */
+    public FirmwareImage getImage()
+    {
+      return image;
+    }
+
+    /**
+     * Why the file is not a valid image, or null.
+     */
+    public Exception getError()
+    {
+      return error;
+    }
+
+    public String toJson()
+    {
+      return "{\"id\":" + UploadMetrics.quote(id)
+             + ",\"file\":" + UploadMetrics.quote(file.getName())
+             + ",\"size\":" + size
+             + ",\"modified\":" + modified
+             + ",\"sha256\":" + UploadMetrics.quote(hash)
+             + ",\"valid\":" + (image != null)
+             + (image != null
+                ? ",\"frames\":" + image.frameCount()
+                  + ",\"bytes\":" + image.length()
+                : ",\"error\":" + UploadMetrics.quote(String.valueOf(error.getMessage())))
+             + "}";
+    }
+
+    /**
+     * e.g. "3f2a9c81d0e4  v1.2.rfw  200 frames, 37854 bytes"
+     */
+    @Override
+    public String toString()
+    {
+      return id + "  " + file.getName() + "  "
+             + (image != null ? image.frameCount() + " frames, "
+                                + image.length() + " bytes"
+                              : "invalid: " + error.getMessage());
+    }
+  }
+
+  public interface Listener
+  {
+    /**
+     * Called from a catalog thread after files have been loaded or
+     * dropped.
+     */
+    void catalogChanged(FirmwareCatalog catalog);
+  }
+
+  private final File dir;
+  private final ExecutorService executor;
+  private final FirmwareCache cache = new FirmwareCache();
+  // guarded by this
+  private final Map<File, Entry> byFile = new HashMap<File, Entry>();
+  private final Map<String, Entry> byId = new HashMap<String, Entry>();
+  private volatile Listener listener;
+  private WatchService watchService;
+
+  public FirmwareCatalog(File dir)
+  {
+    this.dir = dir.getAbsoluteFile();
+    executor = Executors.newFixedThreadPool(
+      Runtime.getRuntime().availableProcessors(), new ThreadFactory()
+    {
+      private final AtomicInteger count = new AtomicInteger();
+
+      public Thread newThread(Runnable r)
+      {
+        Thread t = new Thread(r, "catalog-" + count.incrementAndGet());
+        t.setDaemon(true);
+        return t;
+      }
+    });
+  }
+
+  public void setListener(Listener listener)
+  {
+    this.listener = listener;
+  }
+
+  public File getDirectory()
+  {
+    return dir;
+  }
+
+  /**
+   * Bring the catalog up to date with the directory, loading the files
+   * that are new or have changed in parallel, and wait for them.
+   */
+  public void scan() throws IOException, InterruptedException
+  {
+    List<File> files = FirmwareVerifier.listFirmware(dir);
+    Set<File> gone;
+
+    synchronized (this)
+    {
+      gone = new HashSet<File>(byFile.keySet());
+    }
+    gone.removeAll(files);
+
+    update(files, gone);
+  }
+
+  /**
+   * Start following changes to the directory.  Returns false if it
+   * cannot be watched; scan() is then the only way to see changes.
+   */
+  public synchronized boolean watch()
+  {
+    if (watchService != null)
+    {
+      return true;
+    }
+
+    try
+    {
+      watchService = FileSystems.getDefault().newWatchService();
+      dir.toPath().register(watchService,
+                            StandardWatchEventKinds.ENTRY_CREATE,
+                            StandardWatchEventKinds.ENTRY_MODIFY,
+                            StandardWatchEventKinds.ENTRY_DELETE);
+    }
+    catch (IOException ex)
+    {
+      System.out.println("Can't watch " + dir + ": " + ex.getMessage());
+      watchService = null;
+      return false;
+    }
+
+    final WatchService service = watchService;
+    Thread watcher = new Thread(new Runnable()
+    {
+      public void run()
+      {
+        follow(service);
+      }
+    }, "catalog-watcher");
+
+    watcher.setDaemon(true);
+    watcher.start();
+
+    return true;
+  }
+
+  /**
+   * Stop watching and loading.
+   */
+  public synchronized void close()
+  {
+    executor.shutdownNow();
+
+    if (watchService != null)
+    {
+      try
+      {
+        watchService.close();
+      }
+      catch (IOException ignore)
+      {
+      }
+      watchService = null;
+    }
+  }
+
+  /**
+   * Load file, which must be in the directory, now rather than when the
+   * watcher sees it.  Returns its entry, or null if it can't be read.
+   */
+  public Entry add(File file) throws InterruptedException
+  {
+    File absolute = file.getAbsoluteFile();
+
+    update(Collections.singletonList(absolute), Collections.<File>emptySet());
+
+    synchronized (this)
+    {
+      return byFile.get(absolute);
+    }
+  }
+
+  /**
+   * The entry with catalog ID id, or null.
+   */
+  public synchronized Entry get(String id)
+  {
+    return byId.get(id);
+  }
+
+  /**
+   * Every entry, by file name.
+   */
+  public synchronized List<Entry> getEntries()
+  {
+    List<Entry> entries = new ArrayList<Entry>(byFile.values());
+
+    Collections.sort(entries, new Comparator<Entry>()
+    {
+      public int compare(Entry a, Entry b)
+      {
+        return a.file.getName().compareTo(b.file.getName());
+      }
+    });
+
+    return entries;
+  }
+
+  /*
+   * Load changed (those that differ from their entry) and drop gone, then
+   * tell the listener if anything happened.
+   */
+  private void update(List<File> changed, Set<File> gone)
+    throws InterruptedException
+  {
+    List<Future<Entry>> loads = new ArrayList<Future<Entry>>();
+
+    for (final File file : changed)
+    {
+      Entry entry;
+
+      synchronized (this)
+      {
+        entry = byFile.get(file);
+      }
+
+      if (entry != null && entry.size == file.length()
+          && entry.modified == file.lastModified())
+      {
+        continue;
+      }
+
+      loads.add(executor.submit(new Callable<Entry>()
+      {
+        public Entry call()
+        {
+          return read(file);
+        }
+      }));
+    }
+
+    boolean updated = false;
+
+    for (Future<Entry> load : loads)
+    {
+      Entry entry;
+
+      try
+      {
+        entry = load.get();
+      }
+      catch (ExecutionException ex)
+      {
+        System.err.println("Can't load firmware: " + ex.getCause());
+        continue;
+      }
+
+      if (entry != null)
+      {
+        put(entry);
+        updated = true;
+      }
+    }
+
+    for (File file : gone)
+    {
+      updated |= remove(file);
+    }
+
+    Listener l = listener;
+
+    if (updated && l != null)
+    {
+      l.catalogChanged(this);
+    }
+  }
+
+  /*
+   * Read one file, or return null if it can't be read at all, e.g.
+   * because it has gone again.
+   */
+  private Entry read(File file)
+  {
+    long size = file.length();
+    long modified = file.lastModified();
+    FirmwareCache.Loaded loaded;
+
+    try
+    {
+      loaded = cache.loadFile(file);
+    }
+    catch (IOException ex)
+    {
+      return null;
+    }
+
+    return new Entry(file, size, modified, loaded.hash, loaded.image,
+                     loaded.error);
+  }
+
+  private synchronized void put(Entry entry)
+  {
+    remove(entry.file);
+    byFile.put(entry.file, entry);
+    byId.put(entry.id, entry);
+  }
+
+  private synchronized boolean remove(File file)
+  {
+    Entry old = byFile.remove(file);
+
+    if (old == null)
+    {
+      return false;
+    }
+
+    // another file may have the same contents
+    if (byId.get(old.id) == old)
+    {
+      byId.remove(old.id);
+      for (Entry entry : byFile.values())
+      {
+        if (entry.id.equals(old.id))
+        {
+          byId.put(entry.id, entry);
+          break;
+        }
+      }
+    }
+
+    return true;
+  }
+
+  /*
+   * Turn file events into updates until the watch service is closed.
+   */
+  private void follow(WatchService service)
+  {
+    try
+    {
+      while (true)
+      {
+        Set<File> changed = new HashSet<File>();
+        Set<File> gone = new HashSet<File>();
+        boolean overflow = false;
+        WatchKey key = service.take();
+
+        // a file being copied in gives many events; take them together
+        while (key != null)
+        {
+          for (WatchEvent<?> event : key.pollEvents())
+          {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW)
+            {
+              overflow = true;
+              continue;
+            }
+
+            String name = ((Path) event.context()).toString();
+
+            if (!FirmwareVerifier.isFirmware(name))
+            {
+              continue;
+            }
+
+            File file = new File(dir, name);
+
+            if (event.kind() == StandardWatchEventKinds.ENTRY_DELETE)
+            {
+              changed.remove(file);
+              gone.add(file);
+            }
+            else
+            {
+              gone.remove(file);
+              changed.add(file);
+            }
+          }
+          key.reset();
+          key = service.poll(SETTLE_TIME, TimeUnit.MILLISECONDS);
+        }
+
+        if (overflow)
+        {
+          try
+          {
+            scan();
+          }
+          catch (IOException ex)
+          {
+            System.err.println("Can't scan " + dir + ": " + ex.getMessage());
+          }
+        }
+        else
+        {
+          update(new ArrayList<File>(changed), gone);
+        }
+      }
+    }
+    catch (InterruptedException ex)
+    {
+      // stopped
+    }
+    catch (ClosedWatchServiceException ex)
+    {
+      // stopped
+    }
+  }
+}
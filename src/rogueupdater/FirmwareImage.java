@@ -0,0 +1,424 @@
+/*
+ * RogueUpdater
+ *
+ * Firmware updater tool for Rogue Robotics products.
+ * http://www.roguerobotics.com/
+ *
+ */
+package rogueupdater;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * A decoded Rogue firmware image.
+ *
+ * .rfw files hold the frame stream as ASCII hex.  Each frame is a 2 byte
+ * big-endian length followed by that many bytes of data.
+ *
+ * load() decodes the whole file through NIO, mapping large ones so the
+ * hex never sits on the heap.  Files in the binary .rfwb container (see
+ * BinaryFirmware) need no decoding.  Compressed files (see
+ * CompressedFirmware) are decompressed and decoded as one stream.
+ *
+ * Once decoded, the image is checked from end to end and an index of
+ * every frame is built, so that anything wrong with the file is found
+ * before any of it has been sent to a module.  validate() reports it for
+ * an image made from bytes; the frame accessors are only valid once it
+ * has returned.
+ */
+public class FirmwareImage
+{
+  // Files larger than this are memory mapped rather than read (bytes).
+  private static final long MAP_THRESHOLD = 64 * 1024;
+  // Smallest buffer a stream is decoded into (bytes).
+  private static final int MIN_STREAM_DATA = 1024;
+  // Hex read at a time when decoding a stream (bytes).
+  private static final int STREAM_BUFFER = 64 * 1024;
+
+  private final byte[] data;
+  private InvalidFirmwareException indexError;
+  // frameOffsets[i] is where frame i starts; frameOffsets[frameCount] is
+  // the end of the image.
+  private int[] frameOffsets;
+  private int frameCount;
+  private boolean indexed;
+
+  public FirmwareImage(byte[] data)
+  {
+    this.data = data;
+
+    try
+    {
+      buildIndex();
+    }
+    catch (InvalidFirmwareException ex)
+    {
+      indexError = ex;
+    }
+  }
+
+  /*
+   * An image read along with its frame index, which has to agree with
+   * the frames themselves.
+   */
+  FirmwareImage(byte[] data, int[] frameOffsets) throws InvalidFirmwareException
+  {
+    this.data = data;
+
+    buildIndex();
+
+    if (!Arrays.equals(this.frameOffsets, frameOffsets))
+    {
+      throw new InvalidFirmwareException("The frame index does not match the frames.");
+    }
+  }
+
+  private FirmwareImage(int length)
+  {
+    this.data = new byte[length];
+  }
+
+  /**
+   * Read, decode and validate a whole firmware file.
+   *
+   * @throws InvalidFirmwareException if the file is not a valid image
+   * @throws IOException if the file could not be read
+   */
+  public static FirmwareImage load(File file) throws IOException
+  {
+    FileInputStream in = new FileInputStream(file);
+
+    try
+    {
+      FileChannel channel = in.getChannel();
+      FirmwareImage image;
+
+      if (BinaryFirmware.isBinary(channel))
+      {
+        image = BinaryFirmware.read(channel);
+      }
+      else if (CompressedFirmware.isCompressed(channel))
+      {
+        image = CompressedFirmware.read(channel);
+      }
+      else
+      {
+        long size = channel.size();
+        ByteBuffer hex;
+
+        if (size > Integer.MAX_VALUE)
+        {
+          throw new IOException("File too large: " + file);
+        }
+
+        // large files are mapped so the hex never sits on the heap
+        if (size > MAP_THRESHOLD)
+        {
+          hex = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        }
+        else
+        {
+          hex = ByteBuffer.allocate((int) size);
+          while (hex.hasRemaining() && channel.read(hex) >= 0)
+          {
+          }
+          hex.flip();
+        }
+
+        image = decode(hex);
+      }
+
+      image.validate();
+
+      return image;
+    }
+    finally
+    {
+      in.close();
+    }
+  }
+
+  /*
+   * Decode and validate a whole firmware file that is already in memory,
+   * e.g. because it has just been hashed.
+   */
+  static FirmwareImage read(byte[] contents) throws IOException
+  {
+    FirmwareImage image;
+
+    if (BinaryFirmware.isBinary(contents, contents.length))
+    {
+      image = BinaryFirmware.read(ByteBuffer.wrap(contents));
+    }
+    else if (CompressedFirmware.isCompressed(contents))
+    {
+      image = CompressedFirmware.read(contents);
+    }
+    else
+    {
+      image = decode(ByteBuffer.wrap(contents));
+    }
+
+    image.validate();
+
+    return image;
+  }
+
+  /*
+   * Number of hex digits in hex, leaving off trailing whitespace (a final
+   * newline, say).
+   */
+  private static int hexLength(ByteBuffer hex)
+  {
+    int length = hex.limit();
+
+    while (length > 0
+           && Character.isWhitespace((char) (hex.get(length - 1) & 0xff)))
+    {
+      length--;
+    }
+
+    return length;
+  }
+
+  /*
+   * Decode the whole of a hex file.
+   */
+  private static FirmwareImage decode(ByteBuffer hex) throws IOException
+  {
+    int hexLength = hexLength(hex);
+
+    if (hexLength % 2 != 0)
+    {
+      throw new InvalidFirmwareException(
+        "Odd number of hex digits (" + hexLength + ").");
+    }
+
+    FirmwareImage image = new FirmwareImage(hexLength / 2);
+    byte[] data = image.data;
+
+    for (int i = 0; i < data.length; i++)
+    {
+      int hi = Character.digit((char) (hex.get() & 0xff), 16);
+      int lo = Character.digit((char) (hex.get() & 0xff), 16);
+
+      if (hi < 0 || lo < 0)
+      {
+        int at = hex.position() - (hi < 0 ? 2 : 1);
+
+        throw new InvalidFirmwareException(
+          "Invalid character '" + (char) (hex.get(at) & 0xff)
+          + "' at offset " + at + ".");
+      }
+
+      data[i] = (byte) ((hi << 4) + lo);
+    }
+
+    image.buildIndex();
+
+    return image;
+  }
+
+  /*
+   * Decode hex from a stream as it arrives, e.g. from a decompressor.
+   * The decoded length is not known up front; sizeHint is a guess at it.
+   * Whitespace is allowed at the end only, as in a file.
+   */
+  static FirmwareImage decodeHex(InputStream in, int sizeHint)
+    throws IOException
+  {
+    byte[] hex = new byte[STREAM_BUFFER];
+    byte[] data = new byte[Math.max(MIN_STREAM_DATA, sizeHint)];
+    int length = 0;
+    int hi = -1;
+    long position = 0;
+    // where whitespace started, while it may still be trailing
+    long space = -1;
+    char spaceChar = 0;
+    int n;
+
+    while ((n = in.read(hex)) >= 0)
+    {
+      for (int i = 0; i < n; i++)
+      {
+        char c = (char) (hex[i] & 0xff);
+        int digit = Character.digit(c, 16);
+
+        if (digit < 0)
+        {
+          if (!Character.isWhitespace(c))
+          {
+            throw new InvalidFirmwareException(
+              "Invalid character '" + c + "' at offset " + (position + i) + ".");
+          }
+          if (space < 0)
+          {
+            space = position + i;
+            spaceChar = c;
+          }
+          continue;
+        }
+
+        if (space >= 0)
+        {
+          throw new InvalidFirmwareException(
+            "Invalid character '" + spaceChar + "' at offset " + space + ".");
+        }
+
+        if (hi < 0)
+        {
+          hi = digit;
+          continue;
+        }
+
+        if (length == data.length)
+        {
+          if (length == Integer.MAX_VALUE)
+          {
+            throw new IOException("Firmware image too large.");
+          }
+          data = Arrays.copyOf(data, (int) Math.min(Integer.MAX_VALUE,
+                                                    2L * length));
+        }
+        data[length++] = (byte) ((hi << 4) + digit);
+        hi = -1;
+      }
+      position += n;
+    }
+
+    if (hi >= 0)
+    {
+      throw new InvalidFirmwareException(
+        "Odd number of hex digits (" + (2L * length + 1) + ").");
+    }
+
+    return new FirmwareImage(length == data.length ? data
+                                                   : Arrays.copyOf(data, length));
+  }
+
+  /*
+   * Walk the frame lengths from start to end, recording where each frame
+   * starts and checking that every frame is whole and not too long.
+   */
+  private void buildIndex() throws InvalidFirmwareException
+  {
+    int[] offsets = new int[Math.max(16, data.length / 256)];
+    int count = 0;
+    int index = 0;
+
+    if (data.length == 0)
+    {
+      throw new InvalidFirmwareException("The file is empty.");
+    }
+
+    while (index < data.length)
+    {
+      if (index + 2 > data.length)
+      {
+        throw new InvalidFirmwareException(
+          "Frame " + count + " is truncated (at byte " + index + ").");
+      }
+
+      int frameSize = ((data[index] & 0xff) << 8) + (data[index + 1] & 0xff) + 2;
+
+      if (frameSize > Uploader.MAX_FRAME_SIZE)
+      {
+        throw new InvalidFirmwareException(
+          "Frame " + count + " is too long (" + frameSize + " bytes, at byte "
+          + index + ").");
+      }
+
+      if (index + frameSize > data.length)
+      {
+        throw new InvalidFirmwareException(
+          "Frame " + count + " is truncated (at byte " + index + ").");
+      }
+
+      if (count + 1 >= offsets.length)
+      {
+        offsets = Arrays.copyOf(offsets, offsets.length * 2);
+      }
+
+      offsets[count++] = index;
+      index += frameSize;
+    }
+
+    offsets[count] = index;
+
+    frameOffsets = Arrays.copyOf(offsets, count + 1);
+    frameCount = count;
+    indexed = true;
+  }
+
+  /**
+   * Report what is wrong with the image, if anything.  Images from load()
+   * have already been checked.
+   *
+   * @throws InvalidFirmwareException if it is not a valid image
+   */
+  public void validate() throws InvalidFirmwareException
+  {
+    if (indexError != null)
+    {
+      throw indexError;
+    }
+  }
+
+  /**
+   * Number of frames in the image.
+   */
+  public int frameCount()
+  {
+    checkIndexed();
+    return frameCount;
+  }
+
+  /**
+   * Offset of frame i in the image.  frameOffset(frameCount()) is the
+   * length of the image.
+   */
+  public int frameOffset(int i)
+  {
+    checkIndexed();
+    return frameOffsets[i];
+  }
+
+  /**
+   * Size of frame i, including its 2 byte length.
+   */
+  public int frameSize(int i)
+  {
+    checkIndexed();
+    return frameOffsets[i + 1] - frameOffsets[i];
+  }
+
+  private void checkIndexed()
+  {
+    if (!indexed)
+    {
+      throw new IllegalStateException("Firmware image has not been validated.");
+    }
+  }
+
+  /**
+   * The decoded frame stream.
+   */
+  public byte[] getData()
+  {
+    return data;
+  }
+
+  /**
+   * Length of the decoded image.
+   */
+  public int length()
+  {
+    return data.length;
+  }
+}
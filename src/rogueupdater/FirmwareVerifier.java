@@ -0,0 +1,549 @@
+/*
+ * RogueUpdater
+ *
+ * Firmware updater tool for Rogue Robotics products.
+ * http://www.roguerobotics.com/
+ *
+ */
+package rogueupdater;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Checks firmware files against a known SHA-256 before they are flashed.
+ *
+ * The expected digest comes from, in order:
+ *
+ *   a sidecar file next to it, e.g. foo.rfw.sha256
+ *   a SHA256SUMS manifest in the same directory
+ *   the digest a .rfwb file carries for its own data
+ *
+ * The first two are in sha256sum format and are checked against the
+ * whole file, so they also catch damage to a compressed file.  The last
+ * is checked against the decoded image.  Neither file format has
+ * checksums per frame; a .rfwb has a CRC of its data, which is checked
+ * whenever it is read.
+ *
+ * A file that passed is remembered by size and modification time, and
+ * is not hashed again while it and its expected digest stay the same.
+ * Several files (or a directory of them) are hashed in parallel.
+ */
+public class FirmwareVerifier
+{
+  public static final String SIDECAR_EXTENSION = "sha256";
+  public static final String MANIFEST_NAME = "SHA256SUMS";
+
+  // Extensions of the files verifyDirectory() looks at.
+  private static final String[] FIRMWARE_EXTENSIONS =
+  {
+    ".rfw", "." + BinaryFirmware.EXTENSION, ".gz", ".zlib"
+  };
+
+  public enum Status
+  {
+    VERIFIED,
+    // no digest to check against
+    UNVERIFIED,
+    MISMATCH,
+    // unreadable, or not a valid image
+    ERROR
+  }
+
+  /**
+   * What was found out about one file.
+   */
+  public static class Result
+  {
+    private final File file;
+    private final Status status;
+    private final String expected;
+    private final String actual;
+    private final String source;
+    private final Exception error;
+
+    Result(File file, Status status, String expected, String actual,
+           String source, Exception error)
+    {
+      this.file = file;
+      this.status = status;
+      this.expected = expected;
+      this.actual = actual;
+      this.source = source;
+      this.error = error;
+    }
+
+    public File getFile()
+    {
+      return file;
+    }
+
+    public Status getStatus()
+    {
+      return status;
+    }
+
+    public boolean isVerified()
+    {
+      return status == Status.VERIFIED;
+    }
+
+    /**
+     * The digest the file should have, or null if none was found.
+     */
+    public String getExpected()
+    {
+      return expected;
+    }
+
+    /**
+     * The digest the file has, or null if it was not hashed.
+     */
+    public String getActual()
+    {
+      return actual;
+    }
+
+    /**
+     * Where the expected digest came from, or null.
+     */
+    public String getSource()
+    {
+      return source;
+    }
+
+    public Exception getError()
+    {
+      return error;
+    }
+
+    /**
+     * e.g. "foo.rfw: OK (foo.rfw.sha256)"
+     */
+    @Override
+    public String toString()
+    {
+      switch (status)
+      {
+        case VERIFIED:
+          return file + ": OK (" + source + ")";
+        case UNVERIFIED:
+          return file + ": no digest";
+        case MISMATCH:
+          return file + ": FAILED (" + source + " says " + expected
+                 + ", the file is " + actual + ")";
+        case ERROR:
+        default:
+          return file + ": " + error.getMessage();
+      }
+    }
+  }
+
+  // A file that passed, as it was then.
+  private static class Stamp
+  {
+    final long size;
+    final long modified;
+    final String expected;
+
+    Stamp(long size, long modified, String expected)
+    {
+      this.size = size;
+      this.modified = modified;
+      this.expected = expected;
+    }
+  }
+
+  // An expected digest, where it came from, and whether it is of the
+  // decoded image rather than the file.
+  private static class Expected
+  {
+    final String digest;
+    final String source;
+    final boolean decoded;
+
+    Expected(String digest, String source, boolean decoded)
+    {
+      this.digest = digest;
+      this.source = source;
+      this.decoded = decoded;
+    }
+  }
+
+  // Verifies files[from, to), splitting until there is one file each.
+  private class VerifyTask extends RecursiveTask<List<Result>>
+  {
+    private static final long serialVersionUID = 1L;
+
+    private final List<File> files;
+    private final int from;
+    private final int to;
+
+    VerifyTask(List<File> files, int from, int to)
+    {
+      this.files = files;
+      this.from = from;
+      this.to = to;
+    }
+
+    @Override
+    protected List<Result> compute()
+    {
+      if (to - from == 1)
+      {
+        File file = files.get(from);
+
+        try
+        {
+          return Arrays.asList(verify(file));
+        }
+        catch (IOException ex)
+        {
+          return Arrays.asList(
+            new Result(file, Status.ERROR, null, null, null, ex));
+        }
+      }
+
+      int middle = (from + to) >>> 1;
+      VerifyTask left = new VerifyTask(files, from, middle);
+      VerifyTask right = new VerifyTask(files, middle, to);
+
+      left.fork();
+
+      List<Result> results = new ArrayList<Result>(right.compute());
+
+      results.addAll(0, left.join());
+
+      return results;
+    }
+  }
+
+  // canonical path -> how the file was when it passed
+  private final Map<String, Stamp> verified = new HashMap<String, Stamp>();
+  private ForkJoinPool pool;
+
+  /**
+   * Check one file.
+   *
+   * @throws IOException if the file or its digest cannot be read
+   */
+  public Result verify(File file) throws IOException
+  {
+    String path = file.getCanonicalPath();
+    long size = file.length();
+    long modified = file.lastModified();
+    Expected expected;
+
+    try
+    {
+      expected = expected(file);
+    }
+    catch (InvalidFirmwareException ex)
+    {
+      return new Result(file, Status.ERROR, null, null, null, ex);
+    }
+
+    if (expected == null)
+    {
+      return new Result(file, Status.UNVERIFIED, null, null, null, null);
+    }
+
+    synchronized (verified)
+    {
+      Stamp stamp = verified.get(path);
+
+      if (stamp != null && stamp.size == size && stamp.modified == modified
+          && stamp.expected.equals(expected.digest))
+      {
+        return new Result(file, Status.VERIFIED, expected.digest,
+                          expected.digest, expected.source, null);
+      }
+    }
+
+    String actual;
+
+    try
+    {
+      actual = expected.decoded ? decodedHash(file) : FirmwareCache.hash(file);
+    }
+    catch (InvalidFirmwareException ex)
+    {
+      return new Result(file, Status.ERROR, expected.digest, null,
+                        expected.source, ex);
+    }
+
+    if (!actual.equals(expected.digest))
+    {
+      return new Result(file, Status.MISMATCH, expected.digest, actual,
+                        expected.source, null);
+    }
+
+    synchronized (verified)
+    {
+      verified.put(path, new Stamp(size, modified, expected.digest));
+    }
+
+    return new Result(file, Status.VERIFIED, expected.digest, actual,
+                      expected.source, null);
+  }
+
+  /**
+   * Check several files at once.  Files that cannot be read come back
+   * with Status.ERROR rather than stopping the rest.  The results are
+   * in the order of files.
+   */
+  public List<Result> verify(List<File> files)
+  {
+    if (files.isEmpty())
+    {
+      return new ArrayList<Result>();
+    }
+
+    return pool().invoke(new VerifyTask(files, 0, files.size()));
+  }
+
+  /**
+   * Check every firmware file in dir, sorted by name.
+   */
+  public List<Result> verifyDirectory(File dir) throws IOException
+  {
+    return verify(listFirmware(dir));
+  }
+
+  /**
+   * Forget which files have passed.
+   */
+  public void clear()
+  {
+    synchronized (verified)
+    {
+      verified.clear();
+    }
+  }
+
+  private synchronized ForkJoinPool pool()
+  {
+    if (pool == null)
+    {
+      pool = new ForkJoinPool();
+    }
+
+    return pool;
+  }
+
+  /*
+   * The firmware files in dir, sorted by name.
+   */
+  static List<File> listFirmware(File dir) throws IOException
+  {
+    File[] list = dir.listFiles();
+
+    if (list == null)
+    {
+      throw new IOException("Can't list " + dir);
+    }
+
+    Arrays.sort(list);
+
+    List<File> files = new ArrayList<File>();
+
+    for (File file : list)
+    {
+      if (file.isFile() && isFirmware(file.getName()))
+      {
+        files.add(file);
+      }
+    }
+
+    return files;
+  }
+
+  /*
+   * Whether name has the extension of a firmware file.
+   */
+  static boolean isFirmware(String name)
+  {
+    for (String extension : FIRMWARE_EXTENSIONS)
+    {
+      if (name.endsWith(extension))
+      {
+        return true;
+      }
+    }
+
+    return false;
+  }
+
+  /*
+   * The digest file should have, or null if there is none.
+   */
+  private static Expected expected(File file) throws IOException
+  {
+    File sidecar = new File(file.getPath() + "." + SIDECAR_EXTENSION);
+
+    if (sidecar.isFile())
+    {
+      String digest = lookup(sidecar, null);
+
+      if (digest == null)
+      {
+        throw new InvalidFirmwareException("No digest in " + sidecar + ".");
+      }
+      return new Expected(digest, sidecar.getName(), false);
+    }
+
+    File manifest = new File(file.getAbsoluteFile().getParentFile(), MANIFEST_NAME);
+
+    if (manifest.isFile())
+    {
+      String digest = lookup(manifest, file.getName());
+
+      if (digest != null)
+      {
+        return new Expected(digest, MANIFEST_NAME, false);
+      }
+    }
+
+    if (file.getName().endsWith("." + BinaryFirmware.EXTENSION))
+    {
+      return new Expected(BinaryFirmware.digest(file), "embedded SHA-256", true);
+    }
+
+    return null;
+  }
+
+  /*
+   * Find the digest for name in a file in sha256sum format ("DIGEST  NAME"
+   * or "DIGEST *NAME" per line).  A null name takes the first line, and a
+   * sidecar may hold just the digest.
+   */
+  private static String lookup(File sums, String name) throws IOException
+  {
+    BufferedReader in = new BufferedReader(
+      new InputStreamReader(new FileInputStream(sums), "UTF-8"));
+
+    try
+    {
+      String line;
+
+      while ((line = in.readLine()) != null)
+      {
+        line = line.trim();
+
+        if (line.isEmpty() || line.startsWith("#"))
+        {
+          continue;
+        }
+
+        String[] fields = line.split("\\s+", 2);
+        String digest = fields[0].toLowerCase();
+
+        if (digest.length() != 64 || !digest.matches("[0-9a-f]+"))
+        {
+          throw new InvalidFirmwareException(
+            "Not a SHA-256 digest in " + sums + ": " + fields[0]);
+        }
+
+        if (name == null)
+        {
+          return digest;
+        }
+
+        if (fields.length > 1)
+        {
+          String entry = fields[1].startsWith("*") ? fields[1].substring(1)
+                                                   : fields[1];
+
+          if (new File(entry).getName().equals(name))
+          {
+            return digest;
+          }
+        }
+      }
+    }
+    finally
+    {
+      in.close();
+    }
+
+    return null;
+  }
+
+  /*
+   * SHA-256 of the decoded image in a file, as hex.
+   */
+  private static String decodedHash(File file) throws IOException
+  {
+    MessageDigest digest;
+
+    try
+    {
+      digest = MessageDigest.getInstance("SHA-256");
+    }
+    catch (NoSuchAlgorithmException ex)
+    {
+      throw new IOException(ex);
+    }
+
+    FirmwareImage image = FirmwareImage.load(file);
+
+    digest.update(image.getData(), 0, image.length());
+
+    return FirmwareCache.toHex(digest.digest());
+  }
+
+  /**
+   * Verify files, and the firmware files in directories.
+   *
+   * Usage: FILE|DIR ...
+   *
+   * Exits with 2 if any file failed, or was unreadable.
+   */
+  public static void main(String args[]) throws IOException
+  {
+    if (args.length < 1)
+    {
+      System.err.println("Usage: FILE|DIR ...");
+      System.exit(1);
+    }
+
+    List<File> files = new ArrayList<File>();
+
+    for (String arg : args)
+    {
+      File file = new File(arg);
+
+      if (file.isDirectory())
+      {
+        files.addAll(listFirmware(file));
+      }
+      else
+      {
+        files.add(file);
+      }
+    }
+
+    boolean failed = false;
+
+    for (Result result : new FirmwareVerifier().verify(files))
+    {
+      System.out.println(result);
+      failed |= result.getStatus() == Status.MISMATCH
+                || result.getStatus() == Status.ERROR;
+    }
+
+    System.exit(failed ? 2 : 0);
+  }
+}
@@ -0,0 +1,457 @@
+/*
+ * RogueUpdater
+ *
+ * Firmware updater tool for Rogue Robotics products.
+ * http://www.roguerobotics.com/
+ *
+ */
+package rogueupdater;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs uploads on many serial ports at once.
+ *
+ * Each job opens its own port (serial, TCP or simulated; see Connections),
+ * runs its own Uploader and closes the port, so jobs share nothing but
+ * the (read-only) firmware image.  At most maxConcurrent jobs run at a
+ * time, and jobs for the same port are run one after another: each waits
+ * in its port's queue, not in a worker, until the job before it is done,
+ * so a busy port never holds up the others.  With
+ * setKeepPortsOpen(), a port that flashed cleanly is left open for the
+ * next job on it instead.
+ *
+ * Workers are ordinary threads: RXTX blocks inside native code while
+ * waiting for a response, which would pin the carrier of a virtual thread.
+ */
+public class FleetUploader
+{
+  public enum State
+  {
+    QUEUED,
+    RUNNING,
+    DONE,
+    FAILED
+  }
+
+  /**
+   * One upload to one port, and how it went.
+   */
+  public static class Job
+  {
+    private final String portName;
+    private final FirmwareImage image;
+    private final SerialSettings settings;
+    private final int windowSize;
+    private final int maxRetries;
+    private final int startFrame;
+    private volatile State state = State.QUEUED;
+    private volatile int progress;
+    private volatile UploadProgress uploadProgress;
+    private volatile Uploader.Result result;
+    private volatile Throwable error;
+    private volatile UploadMetrics metrics;
+
+    Job(String portName, FirmwareImage image, SerialSettings settings,
+        int windowSize, int maxRetries, int startFrame)
+    {
+      this.portName = portName;
+      this.image = image;
+      this.settings = settings;
+      this.windowSize = windowSize;
+      this.maxRetries = maxRetries;
+      this.startFrame = startFrame;
+    }
+
+    public String getPortName()
+    {
+      return portName;
+    }
+
+    public State getState()
+    {
+      return state;
+    }
+
+    public int getProgress()
+    {
+      return progress;
+    }
+
+    /**
+     * The last progress report, or null before the upload has started.
+     */
+    public UploadProgress getUploadProgress()
+    {
+      return uploadProgress;
+    }
+
+    /**
+     * The upload result, or null if the upload never started because the
+     * port could not be opened (see getError()).
+     */
+    public Uploader.Result getResult()
+    {
+      return result;
+    }
+
+    /**
+     * Timings and counts for the upload, or null if it never started.
+     */
+    public UploadMetrics getMetrics()
+    {
+      return metrics;
+    }
+
+    /**
+     * Why the job failed: the exception from opening the port or from the
+     * upload, or a LinkageError if the RXTX native library is missing.
+     */
+    public Throwable getError()
+    {
+      return error;
+    }
+  }
+
+  public interface Listener
+  {
+    /**
+     * Called from the job's worker thread.
+     */
+    void progressChanged(Job job, UploadProgress progress);
+
+    /**
+     * Called from the job's worker thread with news of the connection
+     * (see Uploader.Listener).
+     */
+    void statusChanged(Job job, String status);
+
+    /**
+     * Called from the job's worker thread once the job is DONE or FAILED.
+     */
+    void jobFinished(Job job);
+  }
+
+  private final ExecutorService executor;
+  private volatile int progressInterval = Uploader.PROGRESS_INTERVAL;
+  // jobs waiting for a port that has a job running; a port is a key for
+  // as long as one of its jobs is running.  guarded by itself
+  private final Map<String, Queue<Job>> waiting =
+    new HashMap<String, Queue<Job>>();
+  // ports left open by keepPortsOpen, not in use by any job
+  private final ConcurrentMap<String, Connection> openPorts =
+    new ConcurrentHashMap<String, Connection>();
+  private final List<Job> jobs = new ArrayList<Job>();
+  private Listener listener;
+  private volatile boolean keepPortsOpen;
+
+  public FleetUploader(int maxConcurrent)
+  {
+    executor = Executors.newFixedThreadPool(Math.max(1, maxConcurrent),
+                                            new ThreadFactory()
+    {
+      private final AtomicInteger count = new AtomicInteger();
+
+      public Thread newThread(Runnable r)
+      {
+        Thread t = new Thread(r, "upload-" + count.incrementAndGet());
+        t.setDaemon(true);
+        return t;
+      }
+    });
+  }
+
+  public void setListener(Listener listener)
+  {
+    this.listener = listener;
+  }
+
+  /**
+   * Least time between progress reports for each job (ms).
+   */
+  public void setProgressInterval(int progressInterval)
+  {
+    this.progressInterval = progressInterval;
+  }
+
+  /**
+   * Leave each port open after a successful job, for the next job on the
+   * same port, rather than closing it.  Opening a serial port can take
+   * longer than flashing a small image.
+   */
+  public void setKeepPortsOpen(boolean keepPortsOpen)
+  {
+    this.keepPortsOpen = keepPortsOpen;
+  }
+
+  /**
+   * Queue an upload of image to the named port.
+   */
+  public Job submit(String portName, FirmwareImage image,
+                    SerialSettings settings, int windowSize, int maxRetries)
+  {
+    return submit(portName, image, settings, windowSize, maxRetries, 0);
+  }
+
+  /**
+   * Same, resuming an upload that was cut off after startFrame frames
+   * were ACK'd (see Uploader.setStartFrame()).
+   */
+  public Job submit(String portName, FirmwareImage image,
+                    SerialSettings settings, int windowSize, int maxRetries,
+                    int startFrame)
+  {
+    final Job job = new Job(portName, image, settings, windowSize,
+                            maxRetries, startFrame);
+
+    synchronized (jobs)
+    {
+      jobs.add(job);
+    }
+
+    synchronized (waiting)
+    {
+      Queue<Job> queue = waiting.get(portName);
+
+      if (queue != null)
+      {
+        queue.add(job);
+        return job;
+      }
+      waiting.put(portName, new ArrayDeque<Job>());
+    }
+
+    start(job);
+
+    return job;
+  }
+
+  /**
+   * All jobs submitted so far, in submission order.
+   */
+  public List<Job> getJobs()
+  {
+    synchronized (jobs)
+    {
+      return new ArrayList<Job>(jobs);
+    }
+  }
+
+  /**
+   * Forget a finished job, so that a long-lived FleetUploader doesn't
+   * keep every job it ever ran.  Returns false if it hasn't finished.
+   */
+  public boolean remove(Job job)
+  {
+    if (job.state != State.DONE && job.state != State.FAILED)
+    {
+      return false;
+    }
+
+    synchronized (jobs)
+    {
+      return jobs.remove(job);
+    }
+  }
+
+  /**
+   * Stop taking jobs and wait for the queued ones to finish.
+   */
+  public void awaitCompletion() throws InterruptedException
+  {
+    // jobs still waiting for their port are not in the executor yet
+    synchronized (waiting)
+    {
+      while (!waiting.isEmpty())
+      {
+        waiting.wait();
+      }
+    }
+
+    executor.shutdown();
+
+    while (!executor.awaitTermination(1, TimeUnit.SECONDS))
+    {
+    }
+    closePorts();
+  }
+
+  public void shutdownNow()
+  {
+    synchronized (waiting)
+    {
+      waiting.clear();
+      waiting.notifyAll();
+    }
+    executor.shutdownNow();
+    closePorts();
+  }
+
+  /**
+   * Close the ports kept open by setKeepPortsOpen().
+   */
+  public void closePorts()
+  {
+    for (String portName : openPorts.keySet())
+    {
+      Connection connection = openPorts.remove(portName);
+
+      if (connection != null)
+      {
+        connection.close();
+      }
+    }
+  }
+
+  private void start(final Job job)
+  {
+    executor.execute(new Runnable()
+    {
+      public void run()
+      {
+        try
+        {
+          runJob(job);
+        }
+        finally
+        {
+          next(job.portName);
+        }
+      }
+    });
+  }
+
+  /*
+   * Start the next job waiting for portName, if any, now that its last
+   * job has finished.
+   */
+  private void next(String portName)
+  {
+    Job next;
+
+    synchronized (waiting)
+    {
+      Queue<Job> queue = waiting.get(portName);
+
+      // gone if shutdownNow() dropped it
+      next = queue != null ? queue.poll() : null;
+      if (next == null)
+      {
+        waiting.remove(portName);
+        waiting.notifyAll();
+      }
+    }
+
+    if (next != null)
+    {
+      start(next);
+    }
+  }
+
+  private void runJob(final Job job)
+  {
+    job.state = State.RUNNING;
+
+    Connection connection = null;
+    Uploader uploader = null;
+
+    try
+    {
+      connection = openPorts.remove(job.portName);
+      if (connection != null)
+      {
+        connection.setSettings(job.settings);
+      }
+      else
+      {
+        connection = Connections.open(job.portName, job.settings,
+                                      Uploader.RESPONSE_TIMEOUT);
+      }
+
+      uploader = new Uploader(job.image, connection,
+                              job.settings, job.windowSize);
+
+      uploader.setMaxRetries(job.maxRetries);
+      uploader.setStartFrame(job.startFrame);
+      uploader.setReconnector(Connections.reconnector(
+        job.portName, job.settings, Uploader.RESPONSE_TIMEOUT));
+      job.metrics = uploader.getMetrics();
+      uploader.setProgressInterval(progressInterval);
+      uploader.setListener(new Uploader.Listener()
+      {
+        public void progressChanged(UploadProgress progress)
+        {
+          job.uploadProgress = progress;
+          job.progress = progress.getPercent();
+          if (listener != null)
+          {
+            listener.progressChanged(job, progress);
+          }
+        }
+
+        public void statusChanged(String status)
+        {
+          if (listener != null)
+          {
+            listener.statusChanged(job, status);
+          }
+        }
+      });
+
+      job.result = uploader.upload();
+      job.error = uploader.getError();
+    }
+    catch (Exception ex)
+    {
+      job.error = ex;
+    }
+    catch (LinkageError ex)
+    {
+      job.error = ex;
+    }
+    finally
+    {
+      if (uploader != null)
+      {
+        connection = uploader.getConnection();
+      }
+
+      // a failed upload may have left the module part way into a frame
+      if (keepPortsOpen && job.result == Uploader.Result.OK)
+      {
+        openPorts.put(job.portName, connection);
+      }
+      else if (connection != null)
+      {
+        connection.close();
+      }
+    }
+
+    if (job.result == Uploader.Result.OK)
+    {
+      job.progress = 100;
+      job.state = State.DONE;
+    }
+    else
+    {
+      job.state = State.FAILED;
+    }
+
+    if (listener != null)
+    {
+      listener.jobFinished(job);
+    }
+  }
+}
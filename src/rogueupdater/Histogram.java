@@ -0,0 +1,128 @@
+/*
+ * RogueUpdater
+ *
+ * Firmware updater tool for Rogue Robotics products.
+ * http://www.roguerobotics.com/
+ *
+ */
+package rogueupdater;
+
+/**
+ * A cheap latency histogram with power-of-two buckets.
+ *
+ * Bucket i counts values in [2^i, 2^(i+1)) microseconds (bucket 0 also
+ * takes anything under a microsecond).  Recording is a few arithmetic
+ * operations and no allocation.  Only one thread may record; others may
+ * read at any time and see a roughly current picture.
+ */
+public class Histogram
+{
+  private static final int BUCKETS = 32;
+
+  private final long[] counts = new long[BUCKETS];
+  private volatile long count;
+  private volatile long sum;
+  private volatile long min = Long.MAX_VALUE;
+  private volatile long max;
+
+  /**
+   * Record one value, in nanoseconds.
+   */
+  public void record(long nanos)
+  {
+    long micros = nanos / 1000;
+    int bucket = micros <= 1 ? 0 : 63 - Long.numberOfLeadingZeros(micros);
+
+    counts[Math.min(bucket, BUCKETS - 1)]++;
+    count++;
+    sum += micros;
+    if (micros < min)
+    {
+      min = micros;
+    }
+    if (micros > max)
+    {
+      max = micros;
+    }
+  }
+
+  public long getCount()
+  {
+    return count;
+  }
+
+  public long getMin()
+  {
+    return count == 0 ? 0 : min;
+  }
+
+  public long getMax()
+  {
+    return max;
+  }
+
+  public double getMean()
+  {
+    long n = count;
+
+    return n == 0 ? 0 : (double) sum / n;
+  }
+
+  /**
+   * Upper bound of the bucket holding the given fraction (0-1) of values,
+   * in microseconds, capped at the largest value seen.
+   */
+  public long getPercentile(double fraction)
+  {
+    long n = count;
+    long target = (long) Math.ceil(n * fraction);
+    long seen = 0;
+
+    if (n == 0)
+    {
+      return 0;
+    }
+
+    for (int i = 0; i < BUCKETS; i++)
+    {
+      seen += counts[i];
+      if (seen >= target)
+      {
+        return Math.min(max, (2L << i) - 1);
+      }
+    }
+
+    return max;
+  }
+
+  public String toJson()
+  {
+    StringBuilder sb = new StringBuilder();
+    int last = BUCKETS - 1;
+
+    while (last > 0 && counts[last] == 0)
+    {
+      last--;
+    }
+
+    sb.append("{\"count\":").append(getCount())
+      .append(",\"min\":").append(getMin())
+      .append(",\"max\":").append(getMax())
+      .append(",\"mean\":").append(Math.round(getMean()))
+      .append(",\"p50\":").append(getPercentile(0.50))
+      .append(",\"p90\":").append(getPercentile(0.90))
+      .append(",\"p99\":").append(getPercentile(0.99))
+      .append(",\"buckets\":[");
+
+    for (int i = 0; i <= last; i++)
+    {
+      if (i > 0)
+      {
+        sb.append(',');
+      }
+      sb.append(counts[i]);
+    }
+
+    return sb.append("]}").toString();
+  }
+}
@@ -0,0 +1,24 @@
+/*
+ * RogueUpdater
+ *
+ * Firmware updater tool for Rogue Robotics products.
+ * http://www.roguerobotics.com/
+ *
+ */
+package rogueupdater;
+
+import java.io.IOException;
+
+/**
+ * Thrown when a firmware file is not a valid Rogue firmware image.
+ * The message says what is wrong and where.
+ */
+public class InvalidFirmwareException extends IOException
+{
+  private static final long serialVersionUID = 1L;
+
+  public InvalidFirmwareException(String message)
+  {
+    super(message);
+  }
+}
@@ -0,0 +1,598 @@
+/*
+ * RogueUpdater
+ *
+ * Firmware updater tool for Rogue Robotics products.
+ * http://www.roguerobotics.com/
+ *
+ */
+package rogueupdater;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Upload jobs that outlive the process: which firmware goes to which
+ * port, and how far each upload got.
+ *
+ * Every change to a job is appended to a journal file as one line, the
+ * whole job as it now is; reading the journal back, the last line for
+ * each job wins.  A line cut short by a crash has no newline and is
+ * ignored.  Opening the queue rewrites the journal with one line per job.
+ *
+ * Writes are batched: a writer thread appends everything queued since its
+ * last write and forces it to disk once (group commit), so many callers
+ * adding at once cost one fsync per batch rather than one each.  add()
+ * returns once the new job is on disk.  Progress is written the same
+ * way, but nobody waits for it.
+ *
+ * Jobs still PENDING when the queue is opened, whether never started or
+ * cut off part way, are run again; getAckedFrames() says where to resume.
+ * Each job records the SHA-256 and length of the decoded image it was
+ * queued with, so a job can be resumed only with that same image.
+ */
+public class JobQueue
+{
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+  private static final int FIELDS = 11;
+  // before the image was recorded
+  private static final int OLD_FIELDS = 9;
+
+  public enum Status
+  {
+    PENDING,
+    DONE,
+    FAILED
+  }
+
+  /**
+   * One job, as the journal last recorded it.
+   */
+  public static class Entry
+  {
+    private final int id;
+    private final String portName;
+    private final File firmware;
+    private final SerialSettings settings;
+    private final int windowSize;
+    private final int maxRetries;
+    private volatile String imageHash;
+    private volatile int imageSize;
+    private volatile Status status;
+    private volatile int ackedFrames;
+    private volatile String result;
+
+    Entry(int id, String portName, File firmware, String imageHash,
+          int imageSize, SerialSettings settings, int windowSize,
+          int maxRetries, Status status, int ackedFrames, String result)
+    {
+      this.id = id;
+      this.portName = portName;
+      this.firmware = firmware;
+      this.imageHash = imageHash;
+      this.imageSize = imageSize;
+      this.settings = settings;
+      this.windowSize = windowSize;
+      this.maxRetries = maxRetries;
+      this.status = status;
+      this.ackedFrames = ackedFrames;
+      this.result = result;
+    }
+
+    public int getId()
+    {
+      return id;
+    }
+
+    public String getPortName()
+    {
+      return portName;
+    }
+
+    public File getFirmware()
+    {
+      return firmware;
+    }
+
+    /**
+     * SHA-256 of the decoded image being flashed, as hex, or null if the
+     * journal predates it.
+     */
+    public String getImageHash()
+    {
+      return imageHash;
+    }
+
+    /**
+     * Length of the decoded image being flashed, or -1 if not known.
+     */
+    public int getImageSize()
+    {
+      return imageSize;
+    }
+
+    /**
+     * True if image is the one this job was flashing.
+     */
+    public boolean isImage(FirmwareImage image, String hash)
+    {
+      return imageSize == image.length() && hash.equals(imageHash);
+    }
+
+    public SerialSettings getSettings()
+    {
+      return settings;
+    }
+
+    public int getWindowSize()
+    {
+      return windowSize;
+    }
+
+    public int getMaxRetries()
+    {
+      return maxRetries;
+    }
+
+    public Status getStatus()
+    {
+      return status;
+    }
+
+    /**
+     * Frames the module had ACK'd when last heard of; the frame to
+     * resume at.
+     */
+    public int getAckedFrames()
+    {
+      return ackedFrames;
+    }
+
+    /**
+     * How the job ended (an Uploader.Result, or an error), or null.
+     */
+    public String getResult()
+    {
+      return result;
+    }
+
+    // id, status, acked, result, window, retries, settings, image size,
+    // image hash, port, firmware
+    String toLine()
+    {
+      return id + "\t" + status + "\t" + ackedFrames + "\t"
+             + (result == null ? "-" : result) + "\t" + windowSize + "\t"
+             + maxRetries + "\t" + settings + "\t" + imageSize + "\t"
+             + (imageHash == null ? "-" : imageHash) + "\t" + portName + "\t"
+             + firmware.getPath() + "\n";
+    }
+
+    static Entry parse(String line)
+    {
+      String[] f = line.split("\t", FIELDS);
+      boolean old = f.length == OLD_FIELDS;
+
+      if (f.length != FIELDS && !old)
+      {
+        throw new IllegalArgumentException("Wrong number of fields.");
+      }
+
+      int port = old ? 7 : 9;
+
+      return new Entry(Integer.parseInt(f[0]), f[port], new File(f[port + 1]),
+                       old || f[8].equals("-") ? null : f[8],
+                       old ? -1 : Integer.parseInt(f[7]),
+                       SerialSettings.parse(f[6]), Integer.parseInt(f[4]),
+                       Integer.parseInt(f[5]), Status.valueOf(f[1]),
+                       Integer.parseInt(f[2]), f[3].equals("-") ? null : f[3]);
+    }
+
+    @Override
+    public String toString()
+    {
+      return "#" + id + " " + firmware.getName() + " to " + portName + ": "
+             + status + (result != null ? " (" + result + ")" : "")
+             + (status == Status.PENDING && ackedFrames > 0
+                ? ", " + ackedFrames + " frames ACK'd" : "");
+    }
+  }
+
+  private final File file;
+  private final FileChannel channel;
+  private final Map<Integer, Entry> entries = new LinkedHashMap<Integer, Entry>();
+  private final Thread writer;
+  // lines waiting for the writer, and how many batches have been forced
+  private final StringBuilder queued = new StringBuilder();
+  private long batchesQueued;
+  private long batchesWritten;
+  private IOException writeError;
+  private boolean closed;
+  private int nextId = 1;
+
+  private JobQueue(File file) throws IOException
+  {
+    this.file = file;
+
+    File temp = new File(file.getPath() + ".tmp");
+
+    // a crash while compacting on Windows can leave only the new one
+    if (!file.exists() && temp.exists() && !temp.renameTo(file))
+    {
+      throw new IOException("Can't rename " + temp + " to " + file);
+    }
+
+    if (file.exists())
+    {
+      replay();
+    }
+    compact();
+
+    channel = new FileOutputStream(file, true).getChannel();
+    writer = new Thread(new Runnable()
+    {
+      public void run()
+      {
+        writeBatches();
+      }
+    }, "job-journal");
+    writer.setDaemon(true);
+    writer.start();
+  }
+
+  /**
+   * Open the queue in file, creating it if need be.
+   *
+   * @throws IOException if it cannot be read or rewritten
+   */
+  public static JobQueue open(File file) throws IOException
+  {
+    return new JobQueue(file);
+  }
+
+  /**
+   * Add a job and return once it is on disk.  imageHash is the SHA-256
+   * of image, the decoded firmware, as hex.
+   */
+  public Entry add(String portName, File firmware, FirmwareImage image,
+                   String imageHash, SerialSettings settings, int windowSize,
+                   int maxRetries) throws IOException
+  {
+    if (portName.contains("\t") || portName.contains("\n")
+        || firmware.getPath().contains("\t") || firmware.getPath().contains("\n"))
+    {
+      throw new IllegalArgumentException("Tab or newline in a port or file name.");
+    }
+
+    Entry entry;
+    long batch;
+
+    synchronized (this)
+    {
+      entry = new Entry(nextId++, portName, firmware.getAbsoluteFile(),
+                        imageHash, image.length(), settings, windowSize,
+                        maxRetries, Status.PENDING, 0, null);
+      batch = append(entry);
+      entries.put(entry.id, entry);
+    }
+
+    awaitWritten(batch);
+
+    return entry;
+  }
+
+  /**
+   * Every job, oldest first.
+   */
+  public synchronized List<Entry> getEntries()
+  {
+    return new ArrayList<Entry>(entries.values());
+  }
+
+  /**
+   * The jobs still to run, oldest first.
+   */
+  public synchronized List<Entry> getPending()
+  {
+    List<Entry> pending = new ArrayList<Entry>();
+
+    for (Entry entry : entries.values())
+    {
+      if (entry.status == Status.PENDING)
+      {
+        pending.add(entry);
+      }
+    }
+
+    return pending;
+  }
+
+  /**
+   * Record that the module has ACK'd ackedFrames frames.  Doesn't wait
+   * for the disk.
+   */
+  public synchronized void progressed(Entry entry, int ackedFrames)
+    throws IOException
+  {
+    if (ackedFrames > entry.ackedFrames)
+    {
+      entry.ackedFrames = ackedFrames;
+      append(entry);
+    }
+  }
+
+  /**
+   * Record that a job is starting again from the first frame, with a
+   * different image, and return once that is on disk.
+   */
+  public void restarted(Entry entry, FirmwareImage image, String imageHash)
+    throws IOException
+  {
+    long batch;
+
+    synchronized (this)
+    {
+      entry.imageHash = imageHash;
+      entry.imageSize = image.length();
+      entry.ackedFrames = 0;
+      batch = append(entry);
+    }
+
+    awaitWritten(batch);
+  }
+
+  /**
+   * Record that a job is over, and return once that is on disk.
+   */
+  public void finished(Entry entry, boolean ok, String result)
+    throws IOException
+  {
+    long batch;
+
+    synchronized (this)
+    {
+      entry.status = ok ? Status.DONE : Status.FAILED;
+      entry.result = result;
+      batch = append(entry);
+    }
+
+    awaitWritten(batch);
+  }
+
+  /**
+   * Write out what is queued and stop.
+   */
+  public void close() throws IOException
+  {
+    long batch;
+
+    synchronized (this)
+    {
+      if (closed)
+      {
+        return;
+      }
+      batch = batchesQueued;
+    }
+
+    try
+    {
+      awaitWritten(batch);
+    }
+    finally
+    {
+      synchronized (this)
+      {
+        closed = true;
+        notifyAll();
+      }
+      try
+      {
+        writer.join();
+      }
+      catch (InterruptedException ex)
+      {
+        Thread.currentThread().interrupt();
+      }
+      channel.close();
+    }
+  }
+
+  // Queue a line for the writer; returns the batch it will go out in.
+  private long append(Entry entry) throws IOException
+  {
+    if (closed)
+    {
+      throw new IOException("The job queue is closed.");
+    }
+    if (writeError != null)
+    {
+      throw writeError;
+    }
+
+    if (queued.length() == 0)
+    {
+      batchesQueued++;
+      notifyAll();
+    }
+    queued.append(entry.toLine());
+
+    return batchesQueued;
+  }
+
+  private synchronized void awaitWritten(long batch) throws IOException
+  {
+    while (batchesWritten < batch && writeError == null)
+    {
+      try
+      {
+        wait();
+      }
+      catch (InterruptedException ex)
+      {
+        Thread.currentThread().interrupt();
+        throw new IOException("Interrupted.", ex);
+      }
+    }
+
+    if (batchesWritten < batch)
+    {
+      throw writeError;
+    }
+  }
+
+  /*
+   * The writer thread: take whatever has been queued, write it in one go,
+   * force it to disk, and wake whoever was waiting for it.
+   */
+  private void writeBatches()
+  {
+    while (true)
+    {
+      String lines;
+      long batch;
+
+      synchronized (this)
+      {
+        while (queued.length() == 0 && !closed)
+        {
+          try
+          {
+            wait();
+          }
+          catch (InterruptedException ex)
+          {
+            return;
+          }
+        }
+
+        if (queued.length() == 0)
+        {
+          return;
+        }
+
+        lines = queued.toString();
+        queued.setLength(0);
+        batch = batchesQueued;
+      }
+
+      try
+      {
+        ByteBuffer buffer = ByteBuffer.wrap(lines.getBytes(UTF8));
+
+        while (buffer.hasRemaining())
+        {
+          channel.write(buffer);
+        }
+        channel.force(false);
+      }
+      catch (IOException ex)
+      {
+        synchronized (this)
+        {
+          writeError = ex;
+          notifyAll();
+        }
+        return;
+      }
+
+      synchronized (this)
+      {
+        batchesWritten = batch;
+        notifyAll();
+      }
+    }
+  }
+
+  private void replay() throws IOException
+  {
+    BufferedReader in = new BufferedReader(
+      new InputStreamReader(new FileInputStream(file), UTF8));
+    StringBuilder line = new StringBuilder();
+    int lineNumber = 0;
+    int c;
+
+    try
+    {
+      // by hand, so that a last line with no newline can be told apart
+      while ((c = in.read()) >= 0)
+      {
+        if (c != '\n')
+        {
+          line.append((char) c);
+          continue;
+        }
+
+        lineNumber++;
+        try
+        {
+          Entry entry = Entry.parse(line.toString());
+
+          entries.put(entry.id, entry);
+          nextId = Math.max(nextId, entry.id + 1);
+        }
+        catch (IllegalArgumentException ex)
+        {
+          System.err.println(file + ":" + lineNumber + ": skipped ("
+                             + ex.getMessage() + ")");
+        }
+        line.setLength(0);
+      }
+    }
+    finally
+    {
+      in.close();
+    }
+  }
+
+  /*
+   * Replace the journal with one line per job.  Written beside it and
+   * renamed over it, so a crash leaves one or the other.
+   */
+  private void compact() throws IOException
+  {
+    File temp = new File(file.getPath() + ".tmp");
+    FileOutputStream out = new FileOutputStream(temp);
+
+    try
+    {
+      StringBuilder sb = new StringBuilder();
+
+      for (Entry entry : entries.values())
+      {
+        sb.append(entry.toLine());
+      }
+
+      ByteBuffer buffer = ByteBuffer.wrap(sb.toString().getBytes(UTF8));
+      FileChannel temps = out.getChannel();
+
+      while (buffer.hasRemaining())
+      {
+        temps.write(buffer);
+      }
+      temps.force(false);
+    }
+    finally
+    {
+      out.close();
+    }
+
+    if (!temp.renameTo(file))
+    {
+      // Windows won't rename over a file
+      if (!file.delete() || !temp.renameTo(file))
+      {
+        throw new IOException("Can't replace " + file);
+      }
+    }
+  }
+}
@@ -0,0 +1,98 @@
+/*
+ * RogueUpdater
+ *
+ * Firmware updater tool for Rogue Robotics products.
+ * http://www.roguerobotics.com/
+ *
+ */
+package rogueupdater;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * One end of an in-memory link, made of a pipe in each direction.
+ * pair() gives the host and the device end of the same link.
+ */
+public class MemoryConnection implements Connection
+{
+  // Bytes buffered in each direction, about what a USB serial adapter holds.
+  private static final int CAPACITY = 4096;
+
+  private final String name;
+  private final MemoryPipe incoming;
+  private final MemoryPipe outgoing;
+  private volatile SerialSettings settings = SerialSettings.DEFAULT;
+
+  private MemoryConnection(String name, MemoryPipe incoming, MemoryPipe outgoing)
+  {
+    this.name = name;
+    this.incoming = incoming;
+    this.outgoing = outgoing;
+  }
+
+  /**
+   * A connected pair: [0] is the host end, [1] the device end.
+   */
+  public static MemoryConnection[] pair(String name)
+  {
+    MemoryPipe toDevice = new MemoryPipe(CAPACITY);
+    MemoryPipe toHost = new MemoryPipe(CAPACITY);
+
+    return new MemoryConnection[]
+    {
+      new MemoryConnection(name, toHost, toDevice),
+      new MemoryConnection(name, toDevice, toHost)
+    };
+  }
+
+  public String getName()
+  {
+    return name;
+  }
+
+  public InputStream getInputStream()
+  {
+    return incoming.getInputStream();
+  }
+
+  public OutputStream getOutputStream()
+  {
+    return outgoing.getOutputStream();
+  }
+
+  public boolean isBlockingReads()
+  {
+    return true;
+  }
+
+  public void setReceiveTimeout(int timeout)
+  {
+    incoming.setReadTimeout(timeout);
+  }
+
+  /**
+   * Nothing to set up in memory; the settings are kept so the far end
+   * can tell whether both ends agree.
+   */
+  public void setSettings(SerialSettings settings)
+  {
+    this.settings = settings;
+  }
+
+  public SerialSettings getSettings()
+  {
+    return settings;
+  }
+
+  public boolean isClosed()
+  {
+    return incoming.isClosed();
+  }
+
+  public void close()
+  {
+    incoming.close();
+    outgoing.close();
+  }
+}
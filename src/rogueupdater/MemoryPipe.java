@@ -0,0 +1,208 @@
+/*
+ * RogueUpdater
+ *
+ * Firmware updater tool for Rogue Robotics products.
+ * http://www.roguerobotics.com/
+ *
+ */
+package rogueupdater;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A bounded, in-memory byte pipe between two threads.
+ *
+ * Unlike PipedInputStream, reads can time out (returning -1, the same as
+ * a serial port with a receive timeout), and neither end cares which
+ * thread is on the other side.  Once closed, reads drain what is left and
+ * then throw, as do writes.
+ */
+public class MemoryPipe
+{
+  private final byte[] buffer;
+  private int head;
+  private int count;
+  private boolean closed;
+  private volatile int readTimeout;
+
+  private final InputStream in = new InputStream()
+  {
+    @Override
+    public int read() throws IOException
+    {
+      return MemoryPipe.this.read();
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException
+    {
+      return MemoryPipe.this.read(b, off, len);
+    }
+
+    @Override
+    public int available()
+    {
+      return MemoryPipe.this.available();
+    }
+
+    @Override
+    public void close()
+    {
+      MemoryPipe.this.close();
+    }
+  };
+
+  private final OutputStream out = new OutputStream()
+  {
+    @Override
+    public void write(int b) throws IOException
+    {
+      MemoryPipe.this.write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException
+    {
+      MemoryPipe.this.write(b, off, len);
+    }
+
+    @Override
+    public void close()
+    {
+      MemoryPipe.this.close();
+    }
+  };
+
+  public MemoryPipe(int capacity)
+  {
+    buffer = new byte[capacity];
+  }
+
+  public InputStream getInputStream()
+  {
+    return in;
+  }
+
+  public OutputStream getOutputStream()
+  {
+    return out;
+  }
+
+  /**
+   * How long a read waits for data before returning -1 (ms).
+   * 0 waits forever.
+   */
+  public void setReadTimeout(int timeout)
+  {
+    readTimeout = timeout;
+  }
+
+  public synchronized void close()
+  {
+    closed = true;
+    notifyAll();
+  }
+
+  public synchronized boolean isClosed()
+  {
+    return closed;
+  }
+
+  private synchronized int available()
+  {
+    return count;
+  }
+
+  private int read() throws IOException
+  {
+    byte[] b = new byte[1];
+
+    return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+  }
+
+  private synchronized int read(byte[] b, int off, int len) throws IOException
+  {
+    if (len == 0)
+    {
+      return 0;
+    }
+
+    long timeout = readTimeout;
+    long deadline = System.currentTimeMillis() + timeout;
+
+    while (count == 0)
+    {
+      if (closed)
+      {
+        throw new IOException("Pipe closed.");
+      }
+
+      long wait = deadline - System.currentTimeMillis();
+
+      if (timeout > 0 && wait <= 0)
+      {
+        return -1;
+      }
+
+      try
+      {
+        wait(timeout > 0 ? wait : 0);
+      }
+      catch (InterruptedException ex)
+      {
+        throw new IOException("Interrupted.", ex);
+      }
+    }
+
+    int n = Math.min(len, count);
+
+    for (int i = 0; i < n; i++)
+    {
+      b[off + i] = buffer[head];
+      head = (head + 1) % buffer.length;
+    }
+    count -= n;
+
+    notifyAll();
+
+    return n;
+  }
+
+  private synchronized void write(byte[] b, int off, int len)
+    throws IOException
+  {
+    while (len > 0)
+    {
+      while (count == buffer.length && !closed)
+      {
+        try
+        {
+          wait();
+        }
+        catch (InterruptedException ex)
+        {
+          throw new IOException("Interrupted.", ex);
+        }
+      }
+
+      if (closed)
+      {
+        throw new IOException("Pipe closed.");
+      }
+
+      int n = Math.min(len, buffer.length - count);
+
+      for (int i = 0; i < n; i++)
+      {
+        buffer[(head + count + i) % buffer.length] = b[off + i];
+      }
+      count += n;
+      off += n;
+      len -= n;
+
+      notifyAll();
+    }
+  }
+}
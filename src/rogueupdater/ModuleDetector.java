@@ -0,0 +1,225 @@
+/*
+ * RogueUpdater
+ *
+ * Firmware updater tool for Rogue Robotics products.
+ * http://www.roguerobotics.com/
+ *
+ */
+package rogueupdater;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Finds which ports have a module in Update mode on them.
+ *
+ * Every port is tried at once, each on its own thread, so the whole
+ * search takes about as long as one probe.
+ *
+ * The update protocol has no handshake: the host only ever sends image
+ * frames, and the module answers each with ACK or NAK.  So the probe is
+ * the smallest frame there is, a zero length and no data, which carries
+ * nothing to write.  The bootloader answers it like any other frame;
+ * anything else, including silence, means no module.  It is still a
+ * write to whatever is on the port, so callers probe only when the user
+ * asks: --detect, --port auto, or the Detect button.
+ *
+ * No Swing here; the UI and the command line both use this.
+ */
+public class ModuleDetector
+{
+  // Time to wait for a port that is in use elsewhere (ms).
+  private static final int OPEN_TIMEOUT = 200;
+  // An empty frame: a length of zero, and no data.
+  private static final byte[] PROBE = { 0, 0 };
+
+  /**
+   * A port with a module on it, and the settings it answered at.
+   */
+  public static class Module
+  {
+    private final String portName;
+    private final SerialSettings settings;
+
+    Module(String portName, SerialSettings settings)
+    {
+      this.portName = portName;
+      this.settings = settings;
+    }
+
+    public String getPortName()
+    {
+      return portName;
+    }
+
+    public SerialSettings getSettings()
+    {
+      return settings;
+    }
+
+    @Override
+    public String toString()
+    {
+      return portName + " (" + settings + ")";
+    }
+  }
+
+  private ModuleDetector()
+  {
+  }
+
+  /**
+   * Probe all of portNames at once and return the ones with a module, in
+   * the order given.  With "auto" settings each port is tried at every
+   * rate in PROBE_RATES.
+   *
+   * @throws LinkageError if the RXTX native library is missing
+   */
+  public static List<Module> detect(List<String> portNames,
+                                    final SerialSettings settings)
+    throws InterruptedException
+  {
+    List<Module> modules = new ArrayList<Module>();
+
+    if (portNames.isEmpty())
+    {
+      return modules;
+    }
+
+    ExecutorService executor = Executors.newFixedThreadPool(portNames.size(),
+                                                            new ThreadFactory()
+    {
+      private final AtomicInteger count = new AtomicInteger();
+
+      public Thread newThread(Runnable r)
+      {
+        Thread t = new Thread(r, "detect-" + count.incrementAndGet());
+        t.setDaemon(true);
+        return t;
+      }
+    });
+    List<Future<Module>> results = new ArrayList<Future<Module>>();
+
+    try
+    {
+      for (final String portName : portNames)
+      {
+        results.add(executor.submit(new Callable<Module>()
+        {
+          public Module call()
+          {
+            return probe(portName, settings);
+          }
+        }));
+      }
+
+      for (Future<Module> result : results)
+      {
+        try
+        {
+          Module module = result.get();
+
+          if (module != null)
+          {
+            modules.add(module);
+          }
+        }
+        catch (ExecutionException ex)
+        {
+          // no RXTX is no answer from any port, and the caller should know
+          if (ex.getCause() instanceof LinkageError)
+          {
+            throw (LinkageError) ex.getCause();
+          }
+          // anything else, treat it as no module
+        }
+      }
+    }
+    finally
+    {
+      executor.shutdownNow();
+    }
+
+    return modules;
+  }
+
+  /**
+   * Probe a single port.  Returns null if no module answered, or the
+   * port could not be opened.
+   *
+   * @throws LinkageError if the RXTX native library is missing
+   */
+  public static Module probe(String portName, SerialSettings settings)
+  {
+    int[] rates = settings.isProbe() ? SerialSettings.PROBE_RATES
+                                     : new int[] { settings.getBaudRate() };
+    Connection connection;
+
+    try
+    {
+      connection = Connections.open(portName, settings.withBaudRate(rates[0]),
+                                    Uploader.PROBE_TIMEOUT, OPEN_TIMEOUT);
+    }
+    catch (Exception ex)
+    {
+      return null;
+    }
+
+    try
+    {
+      InputStream input = connection.getInputStream();
+      OutputStream output = connection.getOutputStream();
+
+      for (int i = 0; i < rates.length; i++)
+      {
+        SerialSettings tried = settings.withBaudRate(rates[i]);
+
+        if (i > 0)
+        {
+          // give the module time to give up on a garbled frame
+          Thread.sleep(Uploader.PROBE_TIMEOUT);
+          connection.setSettings(tried);
+        }
+
+        while (input.available() > 0)
+        {
+          input.read();
+        }
+
+        output.write(PROBE);
+        output.flush();
+
+        int response = Uploader.readResponse(connection, Uploader.PROBE_TIMEOUT);
+
+        if (response == Uploader.ACK || response == Uploader.NAK)
+        {
+          return new Module(portName, tried);
+        }
+      }
+    }
+    catch (IOException ex)
+    {
+      // not a module we can talk to
+    }
+    catch (InterruptedException ex)
+    {
+      Thread.currentThread().interrupt();
+    }
+    finally
+    {
+      connection.close();
+    }
+
+    return null;
+  }
+}
@@ -0,0 +1,524 @@
+/*
+ * RogueUpdater
+ *
+ * Firmware updater tool for Rogue Robotics products.
+ * http://www.roguerobotics.com/
+ *
+ */
+package rogueupdater;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A pretend Rogue module in Update mode.
+ *
+ * It reads length-prefixed frames and answers each one with ACK or NAK,
+ * like the real bootloader, over an in-memory connection.  Faults can be
+ * injected: per-frame latency, pacing at the selected baud rate, random
+ * NAKs and dropped responses, one answer sent late, a maximum baud rate above which frames are
+ * garbled, and a disconnect after a given number of frames.  Random
+ * faults come from a seeded generator, so a run can be repeated exactly.
+ *
+ * The module can also listen on a TCP port, standing in for a module
+ * behind a serial-over-TCP bridge.
+ *
+ * Run main() to upload a file to a simulated module and see how long it
+ * took, without any hardware.
+ */
+public class ModuleSimulator
+{
+  // Bits on the wire per byte: start, 8 data, stop.
+  private static final int BITS_PER_BYTE = 10;
+
+  private int latency;
+  private boolean baudEmulation;
+  private int maxBaudRate;
+  private double nakProbability;
+  private double dropProbability;
+  private int disconnectAfter = -1;
+  private int lateFrame = -1;
+  private int lateBy;
+  private long seed = 1;
+
+  private final AtomicInteger framesReceived = new AtomicInteger();
+  private final AtomicInteger acks = new AtomicInteger();
+  private final AtomicInteger naks = new AtomicInteger();
+  private final AtomicInteger drops = new AtomicInteger();
+  private final ByteArrayOutputStream accepted = new ByteArrayOutputStream();
+
+  /**
+   * Time the module takes to handle a frame before answering (ms).
+   */
+  public void setLatency(int latency)
+  {
+    this.latency = latency;
+  }
+
+  /**
+   * Pace every byte at the baud rate the host has selected.
+   */
+  public void setBaudEmulation(boolean baudEmulation)
+  {
+    this.baudEmulation = baudEmulation;
+  }
+
+  /**
+   * Fastest rate the module understands; frames sent faster are garbled
+   * and get no answer.  0 means any rate.
+   */
+  public void setMaxBaudRate(int maxBaudRate)
+  {
+    this.maxBaudRate = maxBaudRate;
+  }
+
+  public void setNakProbability(double nakProbability)
+  {
+    this.nakProbability = nakProbability;
+  }
+
+  public void setDropProbability(double dropProbability)
+  {
+    this.dropProbability = dropProbability;
+  }
+
+  /**
+   * Drop the connection once, when this many frames have been received.
+   * -1 never disconnects.
+   */
+  public void setDisconnectAfter(int frames)
+  {
+    this.disconnectAfter = frames;
+  }
+
+  /**
+   * Answer the frame-th frame received (counting from 1) delay ms later
+   * than the others, e.g. to arrive after the host has timed out.
+   */
+  public void setLateAnswer(int frame, int delay)
+  {
+    this.lateFrame = frame;
+    this.lateBy = delay;
+  }
+
+  public void setSeed(long seed)
+  {
+    this.seed = seed;
+  }
+
+  /**
+   * Start the module and return the host end of its connection.
+   */
+  public Connection connect(String name)
+  {
+    final MemoryConnection[] ends = MemoryConnection.pair(name);
+    Thread device = new Thread(new Runnable()
+    {
+      public void run()
+      {
+        serve(ends[1], ends[0]);
+      }
+    }, "module-simulator");
+
+    device.setDaemon(true);
+    device.start();
+
+    return ends[0];
+  }
+
+  /**
+   * Accept TCP connections on port (0 picks a free one) and serve each as
+   * a separate module.  Returns the port listened on.
+   */
+  public int listen(int port) throws IOException
+  {
+    final ServerSocketChannel server = ServerSocketChannel.open();
+
+    server.socket().bind(new InetSocketAddress(port));
+
+    Thread acceptor = new Thread(new Runnable()
+    {
+      public void run()
+      {
+        try
+        {
+          while (true)
+          {
+            SocketChannel client = server.accept();
+            client.socket().setTcpNoDelay(true);
+
+            final Connection device = TcpConnection.wrap(
+              String.valueOf(client.socket().getRemoteSocketAddress()), client);
+            Thread t = new Thread(new Runnable()
+            {
+              public void run()
+              {
+                serve(device, null);
+                device.close();
+              }
+            }, "module-simulator");
+
+            t.setDaemon(true);
+            t.start();
+          }
+        }
+        catch (IOException ex)
+        {
+          System.err.println("Simulator stopped listening: " + ex.getMessage());
+        }
+      }
+    }, "module-simulator-listener");
+
+    acceptor.setDaemon(true);
+    acceptor.start();
+
+    return server.socket().getLocalPort();
+  }
+
+  public int getFramesReceived()
+  {
+    return framesReceived.get();
+  }
+
+  public int getAcks()
+  {
+    return acks.get();
+  }
+
+  public int getNaks()
+  {
+    return naks.get();
+  }
+
+  public int getDrops()
+  {
+    return drops.get();
+  }
+
+  /**
+   * Every frame the module ACK'd, in the order received: the image as
+   * the module would have written it.
+   */
+  public byte[] getAccepted()
+  {
+    synchronized (accepted)
+    {
+      return accepted.toByteArray();
+    }
+  }
+
+  /*
+   * Answer frames arriving on device until the link goes away.  host is
+   * the far end of an in-memory link, whose baud rate we follow; over TCP
+   * it is null and the default rate is assumed.
+   */
+  private void serve(Connection device, MemoryConnection host)
+  {
+    InputStream in = device.getInputStream();
+    OutputStream out = device.getOutputStream();
+    Random random = new Random(seed);
+    byte[] frame = new byte[Uploader.MAX_FRAME_SIZE];
+
+    try
+    {
+      while (true)
+      {
+        readFully(in, frame, 0, 2);
+
+        int frameSize = ((frame[0] & 0xff) << 8) + (frame[1] & 0xff) + 2;
+
+        if (frameSize > frame.length)
+        {
+          // the real module would lose sync here; just complain
+          out.write(Uploader.NAK);
+          naks.incrementAndGet();
+          continue;
+        }
+
+        readFully(in, frame, 2, frameSize - 2);
+        int received = framesReceived.incrementAndGet();
+        int baudRate = host != null ? host.getSettings().getBaudRate()
+                                    : SerialSettings.DEFAULT_BAUD_RATE;
+
+        pace(frameSize, baudRate);
+
+        if (received == disconnectAfter)
+        {
+          device.close();
+          return;
+        }
+
+        if (latency > 0)
+        {
+          Thread.sleep(latency);
+        }
+
+        if (received == lateFrame)
+        {
+          Thread.sleep(lateBy);
+        }
+
+        double r = random.nextDouble();
+
+        if ((maxBaudRate > 0 && baudRate > maxBaudRate) || r < dropProbability)
+        {
+          drops.incrementAndGet();
+          continue;
+        }
+
+        if (r < dropProbability + nakProbability)
+        {
+          naks.incrementAndGet();
+          out.write(Uploader.NAK);
+        }
+        else
+        {
+          acks.incrementAndGet();
+          synchronized (accepted)
+          {
+            accepted.write(frame, 0, frameSize);
+          }
+          out.write(Uploader.ACK);
+        }
+
+        pace(1, baudRate);
+        out.flush();
+      }
+    }
+    catch (IOException ex)
+    {
+      // host went away
+    }
+    catch (InterruptedException ex)
+    {
+      device.close();
+    }
+  }
+
+  private void pace(int bytes, int baudRate) throws InterruptedException
+  {
+    if (baudEmulation && baudRate > 0)
+    {
+      TimeUnit.NANOSECONDS.sleep(
+        bytes * BITS_PER_BYTE * 1000000000L / baudRate);
+    }
+  }
+
+  private static void readFully(InputStream in, byte[] b, int off, int len)
+    throws IOException
+  {
+    while (len > 0)
+    {
+      int n = in.read(b, off, len);
+
+      if (n < 0)
+      {
+        throw new IOException("Connection closed.");
+      }
+      off += n;
+      len -= n;
+    }
+  }
+
+  /**
+   * Upload a file to a simulated module and report how it went.
+   *
+   * Usage: FILE [--serial SETTINGS] [--window N] [--retries N] [--latency MS]
+   *        [--baud] [--max-baud RATE] [--nak P] [--drop P]
+   *        [--disconnect FRAMES] [--late FRAME:MS] [--seed N] [--tcp]
+   *        [--capture FILE]
+   *        --listen PORT [fault options]
+   *
+   * --tcp runs the upload through a loopback TCP connection.  --listen
+   * just serves simulated modules on a TCP port until killed.  --capture
+   * records the session for SessionReplayer.
+   */
+  public static void main(String args[]) throws IOException
+  {
+    final ModuleSimulator module = new ModuleSimulator();
+    SerialSettings settings = SerialSettings.DEFAULT;
+    int windowSize = 1;
+    int maxRetries = Uploader.MAX_RETRIES;
+    int listenPort = -1;
+    boolean tcp = false;
+    String fileName = null;
+    String captureName = null;
+
+    for (int i = 0; i < args.length; i++)
+    {
+      if (args[i].equals("--serial"))
+      {
+        settings = SerialSettings.parse(args[++i]);
+      }
+      else if (args[i].equals("--window"))
+      {
+        windowSize = Uploader.checkWindow(Integer.parseInt(args[++i]));
+      }
+      else if (args[i].equals("--retries"))
+      {
+        maxRetries = Integer.parseInt(args[++i]);
+      }
+      else if (args[i].equals("--latency"))
+      {
+        module.setLatency(Integer.parseInt(args[++i]));
+      }
+      else if (args[i].equals("--baud"))
+      {
+        module.setBaudEmulation(true);
+      }
+      else if (args[i].equals("--max-baud"))
+      {
+        module.setMaxBaudRate(Integer.parseInt(args[++i]));
+      }
+      else if (args[i].equals("--nak"))
+      {
+        module.setNakProbability(Double.parseDouble(args[++i]));
+      }
+      else if (args[i].equals("--drop"))
+      {
+        module.setDropProbability(Double.parseDouble(args[++i]));
+      }
+      else if (args[i].equals("--disconnect"))
+      {
+        module.setDisconnectAfter(Integer.parseInt(args[++i]));
+      }
+      else if (args[i].equals("--late"))
+      {
+        String[] late = args[++i].split(":");
+
+        module.setLateAnswer(Integer.parseInt(late[0]), Integer.parseInt(late[1]));
+      }
+      else if (args[i].equals("--seed"))
+      {
+        module.setSeed(Long.parseLong(args[++i]));
+      }
+      else if (args[i].equals("--capture"))
+      {
+        captureName = args[++i];
+      }
+      else if (args[i].equals("--tcp"))
+      {
+        tcp = true;
+      }
+      else if (args[i].equals("--listen"))
+      {
+        listenPort = Integer.parseInt(args[++i]);
+      }
+      else
+      {
+        fileName = args[i];
+      }
+    }
+
+    if (listenPort >= 0)
+    {
+      System.out.println("Simulated module listening on port "
+                         + module.listen(listenPort));
+      while (true)
+      {
+        try
+        {
+          Thread.sleep(Long.MAX_VALUE);
+        }
+        catch (InterruptedException ex)
+        {
+          return;
+        }
+      }
+    }
+
+    if (fileName == null)
+    {
+      System.err.println("Usage: FILE [--serial SETTINGS] [--window N] [--retries N] [--latency MS]");
+      System.err.println("       [--baud] [--max-baud RATE] [--nak P] [--drop P]");
+      System.err.println("       [--disconnect FRAMES] [--late FRAME:MS] [--seed N] [--tcp]");
+      System.err.println("       [--capture FILE]");
+      System.err.println("       --listen PORT [fault options]");
+      System.exit(1);
+    }
+
+    FirmwareImage firmware = FirmwareImage.load(new File(fileName));
+    final boolean overTcp = tcp;
+    final int tcpPort = overTcp ? module.listen(0) : -1;
+    Connection connection;
+
+    if (overTcp)
+    {
+      connection = TcpConnection.open("localhost", tcpPort);
+    }
+    else
+    {
+      connection = module.connect("simulator");
+    }
+
+    connection.setSettings(settings.isProbe()
+                           ? settings.withBaudRate(SerialSettings.DEFAULT_BAUD_RATE)
+                           : settings);
+
+    Uploader.Reconnector reconnector = new Uploader.Reconnector()
+    {
+      public Connection reconnect() throws IOException
+      {
+        // the same module, as if its cable had been plugged back in
+        return overTcp ? TcpConnection.open("localhost", tcpPort)
+                       : module.connect("simulator");
+      }
+    };
+    SessionRecorder recorder = null;
+
+    if (captureName != null)
+    {
+      recorder = new SessionRecorder(new File(captureName));
+      connection = recorder.wrap(connection);
+      reconnector = recorder.wrap(reconnector);
+    }
+
+    Uploader uploader = new Uploader(firmware, connection, settings, windowSize);
+
+    uploader.setMaxRetries(maxRetries);
+    uploader.setReconnector(reconnector);
+    uploader.setListener(new Uploader.Listener()
+    {
+      public void progressChanged(UploadProgress progress)
+      {
+      }
+
+      public void statusChanged(String status)
+      {
+        System.out.println(status);
+      }
+    });
+    long start = System.nanoTime();
+    Uploader.Result result = uploader.upload();
+    long elapsed = System.nanoTime() - start;
+
+    uploader.getConnection().close();
+    if (recorder != null)
+    {
+      recorder.close();
+    }
+
+    System.out.println("Result:   " + result
+                       + (uploader.getError() != null ? " (" + uploader.getError() + ")" : ""));
+    System.out.println("Frames:   " + firmware.frameCount()
+                       + " (" + module.getFramesReceived() + " sent, "
+                       + module.getNaks() + " NAK'd, "
+                       + module.getDrops() + " dropped)");
+    System.out.println("Time:     " + elapsed / 1000000 + " ms");
+    System.out.println("Speed:    "
+                       + (long) (firmware.length() * 1e9 / Math.max(1, elapsed))
+                       + " bytes/s");
+    System.out.println("Metrics:  " + uploader.getMetrics().toJson());
+
+    System.exit(result == Uploader.Result.OK ? 0 : 1);
+  }
+}
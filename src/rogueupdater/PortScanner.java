@@ -0,0 +1,322 @@
+/*
+ * RogueUpdater
+ *
+ * Firmware updater tool for Rogue Robotics products.
+ * http://www.roguerobotics.com/
+ *
+ */
+package rogueupdater;
+
+import gnu.io.CommPortIdentifier;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Keeps a list of the serial ports on this machine, off the event thread.
+ *
+ * RXTX finds ports by trying every candidate device, which can take
+ * seconds with a lot of adapters plugged in, so the list is built on a
+ * background thread and kept.  Where there is a /dev directory it is
+ * watched, and ports are added and removed as adapters come and go,
+ * without asking RXTX again.
+ *
+ * No Swing here; the listener is called on the scanner's own thread.
+ */
+public class PortScanner
+{
+  private static final File DEVICE_DIR = new File("/dev");
+  // Device names in /dev that are serial ports (Linux, then Mac OS X).
+  private static final String[] DEVICE_PREFIXES =
+  {
+    "ttyS", "ttyUSB", "ttyACM", "ttyAMA", "rfcomm", "tty.", "cu."
+  };
+  // Time for a burst of device events to settle before reporting (ms).
+  private static final int SETTLE_TIME = 200;
+
+  public interface Listener
+  {
+    /**
+     * Called from the scanner thread whenever the list of ports changes.
+     */
+    void portsChanged(List<String> ports);
+  }
+
+  private final ExecutorService executor =
+    Executors.newSingleThreadExecutor(new ThreadFactory()
+  {
+    public Thread newThread(Runnable r)
+    {
+      Thread t = new Thread(r, "port-scanner");
+      t.setDaemon(true);
+      return t;
+    }
+  });
+  private final AtomicBoolean scanQueued = new AtomicBoolean();
+  private volatile List<String> ports = Collections.emptyList();
+  private volatile Listener listener;
+  private WatchService watchService;
+
+  public void setListener(Listener listener)
+  {
+    this.listener = listener;
+  }
+
+  /**
+   * The ports found so far.  Empty until the first scan has finished.
+   */
+  public List<String> getPorts()
+  {
+    return ports;
+  }
+
+  /**
+   * Ask RXTX for the ports again, in the background.  Calls made while a
+   * scan is waiting to start are folded into it.
+   */
+  public void refresh()
+  {
+    if (!scanQueued.compareAndSet(false, true))
+    {
+      return;
+    }
+
+    executor.execute(new Runnable()
+    {
+      public void run()
+      {
+        scanQueued.set(false);
+
+        try
+        {
+          publish(listSerialPorts());
+        }
+        catch (LinkageError ex)
+        {
+          System.err.println("Can't list serial ports: " + ex);
+        }
+      }
+    });
+  }
+
+  /**
+   * Start following changes to /dev.  Returns false where there is no
+   * /dev to watch (Windows); refresh() is then the only way to see new
+   * ports.
+   */
+  public synchronized boolean watch()
+  {
+    if (watchService != null)
+    {
+      return true;
+    }
+
+    if (!DEVICE_DIR.isDirectory())
+    {
+      return false;
+    }
+
+    try
+    {
+      watchService = FileSystems.getDefault().newWatchService();
+      DEVICE_DIR.toPath().register(watchService,
+                                   StandardWatchEventKinds.ENTRY_CREATE,
+                                   StandardWatchEventKinds.ENTRY_DELETE);
+    }
+    catch (IOException ex)
+    {
+      System.err.println("Can't watch " + DEVICE_DIR + ": " + ex.getMessage());
+      watchService = null;
+      return false;
+    }
+
+    final WatchService service = watchService;
+    Thread watcher = new Thread(new Runnable()
+    {
+      public void run()
+      {
+        follow(service);
+      }
+    }, "port-watcher");
+
+    watcher.setDaemon(true);
+    watcher.start();
+
+    return true;
+  }
+
+  /**
+   * Stop watching and scanning.
+   */
+  public synchronized void close()
+  {
+    executor.shutdownNow();
+
+    if (watchService != null)
+    {
+      try
+      {
+        watchService.close();
+      }
+      catch (IOException ignore)
+      {
+      }
+      watchService = null;
+    }
+  }
+
+  /**
+   * The names of all serial ports RXTX knows of.  This can be slow.
+   */
+  public static List<String> listSerialPorts()
+  {
+    List<String> names = new ArrayList<String>();
+    Enumeration<?> portList = CommPortIdentifier.getPortIdentifiers();
+
+    while (portList.hasMoreElements())
+    {
+      CommPortIdentifier pId = (CommPortIdentifier) portList.nextElement();
+
+      if (pId.getPortType() == CommPortIdentifier.PORT_SERIAL)
+      {
+        names.add(pId.getName());
+      }
+    }
+
+    return names;
+  }
+
+  /*
+   * Turn device events into changes to the port list until the watch
+   * service is closed.
+   */
+  private void follow(WatchService service)
+  {
+    try
+    {
+      while (true)
+      {
+        final List<String> added = new ArrayList<String>();
+        final List<String> removed = new ArrayList<String>();
+        boolean overflow = false;
+        WatchKey key = service.take();
+
+        // adapters often make several nodes at once; take them together
+        while (key != null)
+        {
+          for (WatchEvent<?> event : key.pollEvents())
+          {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW)
+            {
+              overflow = true;
+              continue;
+            }
+
+            String name = ((Path) event.context()).toString();
+
+            if (!isSerialDevice(name))
+            {
+              continue;
+            }
+
+            String port = new File(DEVICE_DIR, name).getPath();
+
+            if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE)
+            {
+              removed.remove(port);
+              added.add(port);
+            }
+            else
+            {
+              added.remove(port);
+              removed.add(port);
+            }
+          }
+          key.reset();
+          key = service.poll(SETTLE_TIME, TimeUnit.MILLISECONDS);
+        }
+
+        if (overflow)
+        {
+          refresh();
+        }
+        else if (!added.isEmpty() || !removed.isEmpty())
+        {
+          executor.execute(new Runnable()
+          {
+            public void run()
+            {
+              List<String> list = new ArrayList<String>(ports);
+
+              list.removeAll(removed);
+              for (String port : added)
+              {
+                if (!list.contains(port))
+                {
+                  list.add(port);
+                }
+              }
+              publish(list);
+            }
+          });
+        }
+      }
+    }
+    catch (InterruptedException ex)
+    {
+      // stopped
+    }
+    catch (ClosedWatchServiceException ex)
+    {
+      // stopped
+    }
+  }
+
+  private static boolean isSerialDevice(String name)
+  {
+    for (String prefix : DEVICE_PREFIXES)
+    {
+      if (name.startsWith(prefix))
+      {
+        return true;
+      }
+    }
+
+    return false;
+  }
+
+  // Only called on the scanner thread.
+  private void publish(List<String> list)
+  {
+    Collections.sort(list);
+
+    if (list.equals(ports))
+    {
+      return;
+    }
+
+    ports = Collections.unmodifiableList(list);
+
+    Listener l = listener;
+
+    if (l != null)
+    {
+      l.portsChanged(ports);
+    }
+  }
+}
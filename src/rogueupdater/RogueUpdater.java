@@ -0,0 +1,30 @@
+/*
+ * RogueUpdater
+ *
+ * Firmware updater tool for Rogue Robotics products.
+ * http://www.roguerobotics.com/
+ *
+ */
+package rogueupdater;
+
+/**
+ * Entry point.  Runs the command line updater when given command line
+ * options (see RogueUpdaterCLI), otherwise starts the UI.
+ *
+ * The UI class is only loaded on the UI path, so command line runs never
+ * load AWT or Swing.
+ */
+public class RogueUpdater
+{
+  public static void main(String args[])
+  {
+    if (RogueUpdaterCLI.isCommandLine(args))
+    {
+      RogueUpdaterCLI.main(args);
+    }
+    else
+    {
+      RogueUpdaterUI.main(args);
+    }
+  }
+}
@@ -0,0 +1,911 @@
+/*
+ * RogueUpdater
+ *
+ * Firmware updater tool for Rogue Robotics products.
+ * http://www.roguerobotics.com/
+ *
+ */
+package rogueupdater;
+
+import gnu.io.NoSuchPortException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Headless command line updater.
+ *
+ * Usage: --port PORT [--port PORT ...] --file FILE [--serial SETTINGS]
+ *        [--window N] [--retries N] [--jobs N] [--metrics FILE] [--verify]
+ *        [--queue FILE]
+ *        --port PORT [--port PORT ...] --catalog DIR --image ID [...]
+ *        --queue FILE
+ *        --catalog DIR
+ *        --daemon PORT [--catalog DIR] [--jobs N]
+ *        --detect [--port PORT ...] [--serial SETTINGS]
+ *        --list
+ *
+ * Several --port options flash the same image to every port in parallel.
+ * "--port auto" stands for every serial port with a module in Update
+ * mode on it (see ModuleDetector).
+ * With --queue, the jobs go into a durable queue (see JobQueue) before
+ * they run, and jobs a crash left unfinished in it are resumed, from the
+ * start if their image has changed; --queue on its own only resumes them.
+ * Resumed files are verified just like new ones.
+ * The file is checked against its digest, if it has one, before anything
+ * is flashed (see FirmwareVerifier); --verify insists that it has one.
+ * --catalog indexes a directory of firmware (see FirmwareCatalog); on its
+ * own it lists the images in it, and --image picks one by catalog ID in
+ * place of --file.
+ * --daemon serves flashing over HTTP until killed (see UpdaterDaemon).
+ * The exit code is that of the first port (in command line order) that
+ * failed.
+ *
+ * Nothing in here may touch AWT or Swing; it has to run on machines with
+ * no display and start quickly.
+ */
+public class RogueUpdaterCLI
+{
+  public static final int EXIT_OK = 0;
+  public static final int EXIT_USAGE = 1;
+  public static final int EXIT_INVALID_FILE = 2;
+  public static final int EXIT_TIMEOUT = 3;
+  public static final int EXIT_RETRIES_EXHAUSTED = 4;
+  public static final int EXIT_IO_ERROR = 5;
+  public static final int EXIT_PORT_ERROR = 6;
+  public static final int EXIT_PROBE_FAILED = 7;
+  public static final int EXIT_NO_RXTX = 8;
+
+  // Least time between progress lines for a port (ms).
+  private static final int PROGRESS_INTERVAL = 1000;
+  // --port value meaning every port with a module on it.
+  private static final String AUTO_PORT = "auto";
+
+  // One upload to run, and the queue entry behind it, if any.
+  private static class Upload
+  {
+    final String portName;
+    final FirmwareImage image;
+    final File file;
+    final SerialSettings settings;
+    final int windowSize;
+    final int maxRetries;
+    final int startFrame;
+    final JobQueue.Entry entry;
+
+    Upload(String portName, File file, FirmwareImage image,
+           SerialSettings settings, int windowSize, int maxRetries)
+    {
+      this.portName = portName;
+      this.file = file;
+      this.image = image;
+      this.settings = settings;
+      this.windowSize = windowSize;
+      this.maxRetries = maxRetries;
+      this.startFrame = 0;
+      this.entry = null;
+    }
+
+    Upload(JobQueue.Entry entry, FirmwareImage image)
+    {
+      this.portName = entry.getPortName();
+      this.file = entry.getFirmware();
+      this.image = image;
+      this.settings = entry.getSettings();
+      this.windowSize = entry.getWindowSize();
+      this.maxRetries = entry.getMaxRetries();
+      this.startFrame = entry.getAckedFrames();
+      this.entry = entry;
+    }
+  }
+
+  private final PrintStream out;
+  private final PrintStream err;
+  private final FirmwareVerifier verifier = new FirmwareVerifier();
+
+  public RogueUpdaterCLI(PrintStream out, PrintStream err)
+  {
+    this.out = out;
+    this.err = err;
+  }
+
+  /**
+   * True if the arguments ask for a command line run rather than the UI.
+   */
+  public static boolean isCommandLine(String args[])
+  {
+    for (String arg : args)
+    {
+      if (arg.equals("--port") || arg.equals("--file")
+          || arg.equals("--list") || arg.equals("--help")
+          || arg.equals("--detect") || arg.equals("--queue")
+          || arg.equals("--catalog") || arg.equals("--daemon"))
+      {
+        return true;
+      }
+    }
+
+    return false;
+  }
+
+  /**
+   * Run with the given arguments and return the process exit code.
+   */
+  public int run(String args[])
+  {
+    List<String> portNames = new ArrayList<String>();
+    String fileName = null;
+    SerialSettings settings = SerialSettings.DEFAULT;
+    int windowSize = 1;
+    int maxRetries = Uploader.MAX_RETRIES;
+    int maxJobs = 0;
+    String metricsName = null;
+    boolean detect = false;
+    boolean requireDigest = false;
+    String queueName = null;
+    String catalogName = null;
+    String imageId = null;
+    int daemonPort = -1;
+
+    try
+    {
+      for (int i = 0; i < args.length; i++)
+      {
+        if (args[i].equals("--list"))
+        {
+          return listPorts();
+        }
+        else if (args[i].equals("--help"))
+        {
+          usage();
+          return EXIT_OK;
+        }
+        else if (args[i].equals("--detect"))
+        {
+          detect = true;
+        }
+        else if (args[i].equals("--verify"))
+        {
+          requireDigest = true;
+        }
+        else if (i + 1 >= args.length)
+        {
+          err.println("Missing value for " + args[i]);
+          usage();
+          return EXIT_USAGE;
+        }
+        else if (args[i].equals("--port"))
+        {
+          portNames.add(args[++i]);
+        }
+        else if (args[i].equals("--file"))
+        {
+          fileName = args[++i];
+        }
+        else if (args[i].equals("--serial"))
+        {
+          settings = SerialSettings.parse(args[++i]);
+        }
+        else if (args[i].equals("--window"))
+        {
+          windowSize = Uploader.checkWindow(Integer.parseInt(args[++i]));
+        }
+        else if (args[i].equals("--retries"))
+        {
+          maxRetries = Integer.parseInt(args[++i]);
+        }
+        else if (args[i].equals("--jobs"))
+        {
+          maxJobs = Integer.parseInt(args[++i]);
+        }
+        else if (args[i].equals("--metrics"))
+        {
+          metricsName = args[++i];
+        }
+        else if (args[i].equals("--queue"))
+        {
+          queueName = args[++i];
+        }
+        else if (args[i].equals("--catalog"))
+        {
+          catalogName = args[++i];
+        }
+        else if (args[i].equals("--image"))
+        {
+          imageId = args[++i];
+        }
+        else if (args[i].equals("--daemon"))
+        {
+          daemonPort = Integer.parseInt(args[++i]);
+        }
+        else
+        {
+          err.println("Unknown option: " + args[i]);
+          usage();
+          return EXIT_USAGE;
+        }
+      }
+    }
+    catch (IllegalArgumentException ex)
+    {
+      err.println(ex.getMessage());
+      return EXIT_USAGE;
+    }
+
+    if (detect)
+    {
+      return detectModules(portNames, settings);
+    }
+
+    if (daemonPort >= 0)
+    {
+      try
+      {
+        return UpdaterDaemon.run(daemonPort, catalogName, maxJobs, out, err);
+      }
+      catch (InterruptedException ex)
+      {
+        return EXIT_OK;
+      }
+    }
+
+    FirmwareImage firmware = null;
+
+    if (catalogName != null)
+    {
+      FirmwareCatalog catalog = new FirmwareCatalog(new File(catalogName));
+
+      try
+      {
+        catalog.scan();
+      }
+      catch (IOException ex)
+      {
+        err.println("Can't read the catalog: " + ex.getMessage());
+        return EXIT_IO_ERROR;
+      }
+      catch (InterruptedException ex)
+      {
+        err.println("Interrupted.");
+        return EXIT_IO_ERROR;
+      }
+      finally
+      {
+        catalog.close();
+      }
+
+      if (imageId == null && portNames.isEmpty())
+      {
+        for (FirmwareCatalog.Entry entry : catalog.getEntries())
+        {
+          out.println(entry);
+        }
+        return EXIT_OK;
+      }
+
+      FirmwareCatalog.Entry entry = imageId != null ? catalog.get(imageId) : null;
+
+      if (entry == null || fileName != null)
+      {
+        err.println(entry == null ? "No image " + imageId + " in " + catalogName
+                                  : "--file and --image can't both be given.");
+        usage();
+        return EXIT_USAGE;
+      }
+      if (!entry.isValid())
+      {
+        err.println("This is not a valid Rogue Firmware update file: "
+                    + entry.getError().getMessage());
+        return EXIT_INVALID_FILE;
+      }
+
+      fileName = entry.getFile().getPath();
+      firmware = entry.getImage();
+    }
+    else if (imageId != null)
+    {
+      err.println("--image needs --catalog.");
+      usage();
+      return EXIT_USAGE;
+    }
+
+    JobQueue queue = null;
+
+    if (queueName != null)
+    {
+      try
+      {
+        queue = JobQueue.open(new File(queueName));
+      }
+      catch (IOException ex)
+      {
+        err.println("Can't open the job queue: " + ex.getMessage());
+        return EXIT_IO_ERROR;
+      }
+    }
+
+    try
+    {
+      // with a queue and nothing new, just run what is left in it
+      if (queue != null && portNames.isEmpty() && fileName == null)
+      {
+        return upload(new ArrayList<Upload>(), queue, maxJobs, metricsName,
+                      requireDigest);
+      }
+
+      if (portNames.isEmpty() || fileName == null)
+      {
+        usage();
+        return EXIT_USAGE;
+      }
+
+      return upload(portNames, fileName, firmware, settings, windowSize,
+                    maxRetries, maxJobs, metricsName, requireDigest, queue);
+    }
+    finally
+    {
+      if (queue != null)
+      {
+        try
+        {
+          queue.close();
+        }
+        catch (IOException ex)
+        {
+          err.println("Can't write the job queue: " + ex.getMessage());
+        }
+      }
+    }
+  }
+
+  /*
+   * Flash fileName to portNames, through queue if there is one.  firmware
+   * is the file already loaded, or null to load it here.
+   */
+  private int upload(List<String> portNames, String fileName,
+                     FirmwareImage firmware, SerialSettings settings, int windowSize, int maxRetries,
+                     int maxJobs, String metricsName, boolean requireDigest,
+                     JobQueue queue)
+  {
+    firmware = verified(new File(fileName), firmware, requireDigest);
+
+    if (firmware == null)
+    {
+      return EXIT_INVALID_FILE;
+    }
+
+    out.println("Firmware: " + firmware.frameCount() + " frames, "
+                + firmware.length() + " bytes");
+
+    List<ModuleDetector.Module> targets = new ArrayList<ModuleDetector.Module>();
+
+    try
+    {
+      for (String portName : portNames)
+      {
+        if (portName.equals(AUTO_PORT))
+        {
+          for (ModuleDetector.Module module :
+               ModuleDetector.detect(PortScanner.listSerialPorts(), settings))
+          {
+            out.println("Found module: " + module);
+            targets.add(module);
+          }
+        }
+        else
+        {
+          targets.add(new ModuleDetector.Module(portName, settings));
+        }
+      }
+    }
+    catch (LinkageError ex)
+    {
+      err.println("The RXTX Native Library was not found on your system.");
+      return EXIT_NO_RXTX;
+    }
+    catch (InterruptedException ex)
+    {
+      err.println("Interrupted.");
+      return EXIT_IO_ERROR;
+    }
+
+    if (targets.isEmpty())
+    {
+      err.println("No module in Update mode found.");
+      return EXIT_PROBE_FAILED;
+    }
+
+    List<Upload> uploads = new ArrayList<Upload>();
+
+    for (ModuleDetector.Module target : targets)
+    {
+      uploads.add(new Upload(target.getPortName(), new File(fileName),
+                             firmware, target.getSettings(), windowSize,
+                             maxRetries));
+    }
+
+    return upload(uploads, queue, maxJobs, metricsName, requireDigest);
+  }
+
+  /*
+   * Check file against its digest (see FirmwareVerifier) and load it, or
+   * say why not and return null.  firmware is the file already loaded, or
+   * null to load it here.
+   */
+  private FirmwareImage verified(File file, FirmwareImage firmware,
+                                 boolean requireDigest)
+  {
+    try
+    {
+      FirmwareVerifier.Result check = verifier.verify(file);
+
+      switch (check.getStatus())
+      {
+        case VERIFIED:
+          out.println("Verified: " + check.getActual() + " (" + check.getSource() + ")");
+          break;
+        case UNVERIFIED:
+          if (requireDigest)
+          {
+            err.println("No digest to verify " + file + " against.");
+            return null;
+          }
+          break;
+        case MISMATCH:
+          err.println("The firmware file is damaged: " + check);
+          return null;
+        case ERROR:
+        default:
+          err.println("This is not a valid Rogue Firmware update file: "
+                      + check.getError().getMessage());
+          return null;
+      }
+
+      if (firmware == null)
+      {
+        firmware = FirmwareImage.load(file);
+      }
+
+      return firmware;
+    }
+    catch (InvalidFirmwareException ex)
+    {
+      err.println("This is not a valid Rogue Firmware update file: " + ex.getMessage());
+      return null;
+    }
+    catch (IOException ex)
+    {
+      err.println("An error occurred while opening the file: " + ex.getMessage());
+      return null;
+    }
+  }
+
+  /*
+   * Run uploads, one job each.  With a queue, they are added to it first,
+   * and every job left pending in it, e.g. by a crash, is run as well.
+   */
+  private int upload(List<Upload> uploads, final JobQueue queue, int maxJobs,
+                     String metricsName, boolean requireDigest)
+  {
+    final Map<FleetUploader.Job, JobQueue.Entry> entries =
+      new HashMap<FleetUploader.Job, JobQueue.Entry>();
+
+    if (queue != null)
+    {
+      try
+      {
+        uploads = queued(uploads, queue, requireDigest);
+      }
+      catch (IOException ex)
+      {
+        err.println("Can't write the job queue: " + ex.getMessage());
+        return EXIT_IO_ERROR;
+      }
+
+      if (uploads.isEmpty())
+      {
+        out.println("No jobs left in the queue.");
+        return EXIT_OK;
+      }
+    }
+
+    // With one port, print plain progress; with several, tag each line.
+    final boolean tagged = uploads.size() > 1;
+    FleetUploader fleet = new FleetUploader(
+      maxJobs > 0 ? maxJobs : uploads.size());
+
+    fleet.setProgressInterval(PROGRESS_INTERVAL);
+    fleet.setListener(new FleetUploader.Listener()
+    {
+      public void progressChanged(FleetUploader.Job job,
+                                  UploadProgress progress)
+      {
+        out.println((tagged ? "[" + job.getPortName() + "] " : "")
+                    + "Progress: " + progress);
+
+        JobQueue.Entry entry = entryOf(job);
+
+        if (entry != null)
+        {
+          try
+          {
+            queue.progressed(entry, progress.getFramesAcked());
+          }
+          catch (IOException ex)
+          {
+            err.println("Can't write the job queue: " + ex.getMessage());
+          }
+        }
+      }
+
+      public void statusChanged(FleetUploader.Job job, String status)
+      {
+        out.println((tagged ? "[" + job.getPortName() + "] " : "") + status);
+      }
+
+      public void jobFinished(FleetUploader.Job job)
+      {
+        if (tagged)
+        {
+          out.println("[" + job.getPortName() + "] " + message(job));
+        }
+
+        JobQueue.Entry entry = entryOf(job);
+
+        if (entry != null)
+        {
+          try
+          {
+            queue.finished(entry, job.getState() == FleetUploader.State.DONE,
+                           job.getResult() != null ? job.getResult().name()
+                                                   : "PORT_ERROR");
+          }
+          catch (IOException ex)
+          {
+            err.println("Can't write the job queue: " + ex.getMessage());
+          }
+        }
+      }
+
+      // waits until every job has been submitted
+      private JobQueue.Entry entryOf(FleetUploader.Job job)
+      {
+        synchronized (entries)
+        {
+          return entries.get(job);
+        }
+      }
+    });
+
+    synchronized (entries)
+    {
+      for (Upload upload : uploads)
+      {
+        FleetUploader.Job job = fleet.submit(upload.portName, upload.image,
+                                             upload.settings,
+                                             upload.windowSize,
+                                             upload.maxRetries,
+                                             upload.startFrame);
+
+        if (upload.entry != null)
+        {
+          entries.put(job, upload.entry);
+        }
+      }
+    }
+
+    try
+    {
+      fleet.awaitCompletion();
+    }
+    catch (InterruptedException ex)
+    {
+      fleet.shutdownNow();
+      err.println("Interrupted.");
+      return EXIT_IO_ERROR;
+    }
+
+    int exitCode = EXIT_OK;
+
+    if (tagged)
+    {
+      out.println();
+    }
+
+    for (FleetUploader.Job job : fleet.getJobs())
+    {
+      int code = exitCode(job);
+
+      (code == EXIT_OK ? out : err).println(
+        (tagged ? job.getPortName() + ": " : "") + message(job));
+
+      if (exitCode == EXIT_OK)
+      {
+        exitCode = code;
+      }
+    }
+
+    if (metricsName != null)
+    {
+      try
+      {
+        writeMetrics(fleet.getJobs(), metricsName);
+      }
+      catch (IOException ex)
+      {
+        err.println("Can't write metrics: " + ex.getMessage());
+      }
+    }
+
+    return exitCode;
+  }
+
+  /*
+   * Add uploads to queue, then return everything pending in it, oldest
+   * first.  Jobs whose firmware no longer passes verify() are failed, and
+   * jobs cut off part way whose image has changed start again.
+   */
+  private List<Upload> queued(List<Upload> uploads, JobQueue queue,
+                              boolean requireDigest)
+    throws IOException
+  {
+    // null for a file that failed
+    Map<File, FirmwareImage> images = new HashMap<File, FirmwareImage>();
+
+    for (Upload upload : uploads)
+    {
+      JobQueue.Entry entry = queue.add(upload.portName, upload.file,
+                                       upload.image,
+                                       FirmwareCache.hash(upload.image.getData()),
+                                       upload.settings, upload.windowSize,
+                                       upload.maxRetries);
+
+      images.put(entry.getFirmware(), upload.image);
+    }
+
+    List<Upload> pending = new ArrayList<Upload>();
+
+    for (JobQueue.Entry entry : queue.getPending())
+    {
+      File file = entry.getFirmware();
+
+      if (!images.containsKey(file))
+      {
+        images.put(file, verified(file, null, requireDigest));
+      }
+
+      FirmwareImage image = images.get(file);
+
+      if (image == null)
+      {
+        err.println("Job " + entry + ": not run.");
+        queue.finished(entry, false, Uploader.Result.INVALID_FILE.name());
+        continue;
+      }
+
+      if (entry.getAckedFrames() > 0)
+      {
+        String hash = FirmwareCache.hash(image.getData());
+
+        if (entry.isImage(image, hash))
+        {
+          out.println("Resuming job " + entry);
+        }
+        else
+        {
+          out.println("Job " + entry + ": "
+                      + (entry.getImageHash() == null
+                         ? "no record of the firmware" : "the firmware has changed")
+                      + ", starting again.");
+          queue.restarted(entry, image, hash);
+        }
+      }
+      pending.add(new Upload(entry, image));
+    }
+
+    return pending;
+  }
+
+  /*
+   * Write a JSON array with the metrics of every upload that started,
+   * to a file or, given "-", to stdout.
+   */
+  private void writeMetrics(List<FleetUploader.Job> jobs, String name)
+    throws IOException
+  {
+    StringBuilder sb = new StringBuilder("[");
+
+    for (FleetUploader.Job job : jobs)
+    {
+      if (job.getMetrics() != null)
+      {
+        if (sb.length() > 1)
+        {
+          sb.append(",\n ");
+        }
+        sb.append(job.getMetrics().toJson());
+      }
+    }
+    sb.append("]");
+
+    if (name.equals("-"))
+    {
+      out.println(sb);
+      return;
+    }
+
+    Writer writer = new OutputStreamWriter(new FileOutputStream(name), "UTF-8");
+
+    try
+    {
+      writer.write(sb.toString());
+      writer.write("\n");
+    }
+    finally
+    {
+      writer.close();
+    }
+  }
+
+  private static int exitCode(FleetUploader.Job job)
+  {
+    if (job.getResult() == null)
+    {
+      return job.getError() instanceof LinkageError ? EXIT_NO_RXTX
+                                                     : EXIT_PORT_ERROR;
+    }
+
+    switch (job.getResult())
+    {
+      case OK:
+        return EXIT_OK;
+      case INVALID_FILE:
+        return EXIT_INVALID_FILE;
+      case TIMEOUT:
+        return EXIT_TIMEOUT;
+      case RETRIES_EXHAUSTED:
+        return EXIT_RETRIES_EXHAUSTED;
+      case PROBE_FAILED:
+        return EXIT_PROBE_FAILED;
+      case IO_ERROR:
+      default:
+        return EXIT_IO_ERROR;
+    }
+  }
+
+  private static String message(FleetUploader.Job job)
+  {
+    if (job.getResult() == null)
+    {
+      if (job.getError() instanceof LinkageError)
+      {
+        return "The RXTX Native Library was not found on your system.";
+      }
+      if (job.getError() instanceof NoSuchPortException)
+      {
+        return "No such serial port.";
+      }
+      return "Can't open port: " + job.getError().getMessage();
+    }
+
+    switch (job.getResult())
+    {
+      case OK:
+        return "Update complete.";
+      case INVALID_FILE:
+        return "This is not a valid Rogue Firmware update file.";
+      case TIMEOUT:
+        return "Timeout waiting for response. Update failed.";
+      case RETRIES_EXHAUSTED:
+        return "Cannot communicate with module. Is it in Update mode?";
+      case PROBE_FAILED:
+        return "Cannot communicate with module at any baud rate.";
+      case IO_ERROR:
+      default:
+        return "Upload error: " + job.getError();
+    }
+  }
+
+  /*
+   * Print the ports that have a module in Update mode on them: those
+   * given, or else every serial port.
+   */
+  private int detectModules(List<String> portNames, SerialSettings settings)
+  {
+    List<ModuleDetector.Module> modules;
+
+    try
+    {
+      modules = ModuleDetector.detect(
+        portNames.isEmpty() ? PortScanner.listSerialPorts() : portNames,
+        settings);
+    }
+    catch (LinkageError ex)
+    {
+      err.println("The RXTX Native Library was not found on your system.");
+      return EXIT_NO_RXTX;
+    }
+    catch (InterruptedException ex)
+    {
+      err.println("Interrupted.");
+      return EXIT_IO_ERROR;
+    }
+
+    for (ModuleDetector.Module module : modules)
+    {
+      out.println(module);
+    }
+
+    if (modules.isEmpty())
+    {
+      err.println("No module in Update mode found.");
+      return EXIT_PROBE_FAILED;
+    }
+
+    return EXIT_OK;
+  }
+
+  private int listPorts()
+  {
+    try
+    {
+      for (String name : PortScanner.listSerialPorts())
+      {
+        out.println(name);
+      }
+    }
+    catch (LinkageError ex)
+    {
+      err.println("The RXTX Native Library was not found on your system.");
+      return EXIT_NO_RXTX;
+    }
+
+    return EXIT_OK;
+  }
+
+  private void usage()
+  {
+    err.println("Usage: --port PORT [--port PORT ...] --file FILE [--serial SETTINGS]");
+    err.println("       [--window N] [--retries N] [--jobs N] [--metrics FILE] [--verify]");
+    err.println("       [--queue FILE]");
+    err.println("       --port PORT [--port PORT ...] --catalog DIR --image ID [...]");
+    err.println("       --queue FILE");
+    err.println("       --catalog DIR");
+    err.println("       --daemon PORT [--catalog DIR] [--jobs N]");
+    err.println("       --detect [--port PORT ...] [--serial SETTINGS]");
+    err.println("       --list");
+    err.println();
+    err.println("  --port PORT        serial port the module is on; repeat to flash");
+    err.println("                     several modules at once.  tcp://HOST:PORT for");
+    err.println("                     a serial-over-TCP bridge, sim: for a simulator");
+    err.println("                     or auto for every port with a module on it");
+    err.println("  --file FILE        firmware file (*.rfw or *.rfwb, may be gzip'd)");
+    err.println("  --serial SETTINGS  baud[,databits[,parity[,stopbits]]] or \"auto\"");
+    err.println("                     (default " + SerialSettings.DEFAULT + ")");
+    err.println("  --window N         frames in flight (default and most 1)");
+    err.println("  --retries N        times a frame is resent after a NAK or timeout");
+    err.println("                     before giving up (default " + Uploader.MAX_RETRIES + ")");
+    err.println("  --jobs N           ports flashed at once (default all)");
+    err.println("  --metrics FILE     write upload metrics as JSON (- for stdout)");
+    err.println("  --verify           refuse a file with no " + FirmwareVerifier.MANIFEST_NAME + " entry,");
+    err.println("                     ." + FirmwareVerifier.SIDECAR_EXTENSION + " file or embedded digest");
+    err.println("  --queue FILE       keep the jobs in a journal; resume unfinished ones");
+    err.println("  --catalog DIR      index the firmware in DIR; alone, list it");
+    err.println("  --image ID         flash the catalog image with this ID");
+    err.println("  --daemon PORT      flash over HTTP on 127.0.0.1:PORT; see UpdaterDaemon");
+    err.println("  --detect           list the ports with a module in Update mode");
+    err.println("  --list             list serial ports and exit");
+  }
+
+  public static void main(String args[])
+  {
+    System.exit(new RogueUpdaterCLI(System.out, System.err).run(args));
+  }
+}
@@ -9,23 +9,21 @@
  */
 package rogueupdater;
 
-import gnu.io.CommPortIdentifier;
-import gnu.io.SerialPort;
-import java.util.ArrayList;
+import gnu.io.NoSuchPortException;
 import java.io.File;
-import java.io.FileReader;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.util.Enumeration;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
 import javax.swing.ImageIcon;
 import javax.swing.JFileChooser;
 import javax.swing.JOptionPane;
+import javax.swing.SwingUtilities;
 import javax.swing.SwingWorker;
 import javax.swing.filechooser.FileNameExtensionFilter;
 import java.beans.*;
 import java.awt.Image;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
 
 /**
  *
@@ -34,120 +32,218 @@ import java.util.List;
 public class RogueUpdaterUI extends javax.swing.JFrame
   implements PropertyChangeListener
 {
+  // Set to exit as soon as startup is over.
+  static final String STARTUP_EXIT_PROPERTY = "rogueupdater.exitAfterStartup";
+  // Set to print each upload's metrics, as JSON, when it finishes.
+  static final String PRINT_METRICS_PROPERTY = "rogueupdater.printMetrics";
+
   private JFileChooser chooser;
-  private byte fwData[];
+  private final FirmwareCache firmwareCache = new FirmwareCache();
+  private final FirmwareVerifier verifier = new FirmwareVerifier();
+  private final PortScanner portScanner = new PortScanner();
   private UploadTask uploadTask;
+  // when the window opened and the native library was ready (ms)
+  private long windowOpened;
+  private long libraryReady;
 
-  class UploadTask extends SwingWorker<Boolean, Void>
+  class UploadTask extends SwingWorker<Boolean, UploadProgress>
+    implements Uploader.Listener
   {
+    private final File file;
+    private final SerialSettings settings;
+    private final Uploader.Reconnector reconnector;
+    private final SessionRecorder recorder;
+
+    UploadTask(File file, SerialSettings settings,
+               Uploader.Reconnector reconnector, SessionRecorder recorder)
+    {
+      this.file = file;
+      this.settings = settings;
+      this.reconnector = reconnector;
+      this.recorder = recorder;
+    }
+
     /*
      * Uploader task. Executed in background thread.
      */
     @Override
     public Boolean doInBackground()
     {
-      // send the data
-      int index;
-      int frameSize;
-      byte receivedByte;
-      byte retries = 0;
-
       setProgress(0);
 
-      for (index = 0; index < fwData.length; index += frameSize)
+      FirmwareImage firmware = loadFirmware();
+
+      if (firmware == null)
       {
-        frameSize = (fwData[index] & 0xff) << 8;
-        frameSize += (fwData[index + 1] & 0xff) + 2;
+        closeRecorder();
+        return false;
+      }
 
-        if (frameSize > 512)
-        {
-          errorMessage(
-            "This is not a valid Rogue Firmware update file.",
-            "Firmware File Invalid",
-            null);
-          return false;
-        }
+      Uploader uploader = new Uploader(firmware, connection, settings, 1);
 
-        try
-        {
-          output.flush();
+      uploader.setMaxRetries(Integer.getInteger("rogueupdater.retries",
+                                                Uploader.MAX_RETRIES));
+      uploader.setReconnector(reconnector);
+      uploader.setListener(this);
 
-          //System.out.println("Transferring: " + index + "/" + fwData.length + " (" + int(100*index/fwData.length) + "%)");
+      Uploader.Result result = uploader.upload();
 
-          setProgress((int)(index * 100 / fwData.length));
+      closeRecorder();
 
-          byte[] bytesToSend = new byte[frameSize];
+      // it may have had to open the port again
+      connection = uploader.getConnection();
 
-          for (int i = 0; i < frameSize; i++)
-          {
-            bytesToSend[i] = fwData[index + i];
-          }
+      if (Boolean.getBoolean(PRINT_METRICS_PROPERTY))
+      {
+        System.out.println(uploader.getMetrics().toJson());
+      }
 
-          output.write(bytesToSend);
+      switch (result)
+      {
+        case OK:
+          setProgress(100);
+          return true;
+        case INVALID_FILE:
+          errorMessage(
+            "This is not a valid Rogue Firmware update file.",
+            "Firmware File Invalid",
+            uploader.getError());
+          break;
+        case TIMEOUT:
+          errorMessage(
+            "Timeout waiting for response. Update failed.",
+            "Update Error",
+            null);
+          break;
+        case RETRIES_EXHAUSTED:
+          errorMessage("Cannot communicate with module.<br>" +
+                       "Is it in Update mode?",
+                       "Update Error",
+                       null);
+          break;
+        case PROBE_FAILED:
+          errorMessage("Cannot communicate with module at any baud rate.<br>" +
+                       "Is it in Update mode?",
+                       "Update Error",
+                       null);
+          break;
+        case IO_ERROR:
+        default:
+          errorMessage("Upload Error.<br>" +
+                       "Maybe something got disconnected?<br>" +
+                       "Is the module in Update mode?",
+                       "Error",
+                       uploader.getError());
+          break;
+      }
 
-          int timeout = 0;
+      return false;
+    }
 
-          // now get response
-          while (input.available() <= 0)
-          {
+    /*
+     * Verify and decode the file, or report why not and return null.
+     * Executed in background thread.
+     */
+    private FirmwareImage loadFirmware()
+    {
+      try
+      {
+        // only hashed again if it has changed since it last passed
+        FirmwareVerifier.Result check = verifier.verify(file);
 
-            try
-            {
-              Thread.sleep(20);
-            }
-            catch (InterruptedException ignore)
-            {
-            }
-
-            if (timeout++ >= 150)
-            {
-              errorMessage(
-                "Timeout waiting for response. Update failed.",
-                "Update Error",
-                null);
-              return false;
-            }
-          }
+        if (check.getStatus() == FirmwareVerifier.Status.MISMATCH)
+        {
+          errorMessage("The firmware file is damaged.<br>" +
+                       "Its SHA-256 does not match " + check.getSource() + ".",
+                       "Firmware File Damaged",
+                       null);
+          return null;
+        }
+        if (check.getStatus() == FirmwareVerifier.Status.ERROR)
+        {
+          // whatever the error, the file can't be used
+          errorMessage("This is not a valid Rogue Firmware update file.",
+                       "Firmware File Invalid",
+                       check.getError());
+          return null;
+        }
 
-          receivedByte = (byte) input.read();
+        // unchanged files come straight from the cache
+        return firmwareCache.load(file);
+      }
+      catch (InvalidFirmwareException ex)
+      {
+        errorMessage("This is not a valid Rogue Firmware update file.",
+                     "Firmware File Invalid",
+                     ex);
+      }
+      catch (IOException ex)
+      {
+        errorMessage("An error occurred while opening the file",
+                     "File Open Error",
+                     ex);
+      }
 
-          switch (receivedByte)
-          {
-            case 0x11:
-              retries = 0;
-              break;
-            case 0x22:
-            default:
-              retries++;
-              if (retries > 4)
-              {
-                errorMessage("Cannot communicate with module.<br>" +
-                             "Is it in Update mode?",
-                             "Update Error",
-                             null);
-                return false;
-              }
-              else
-              {
-                index -= frameSize;
-                // println("Retry");
-              }
-              break;
-          }
+      return null;
+    }
+
+    private void closeRecorder()
+    {
+      if (recorder != null)
+      {
+        try
+        {
+          recorder.close();
+          System.out.println("Session captured to "
+                             + System.getProperty("rogueupdater.capture"));
         }
-        catch (Exception ex)
+        catch (IOException ex)
         {
-          errorMessage("Upload Error.<br>" +
-                       "Maybe something got disconnected?<br>" +
-                       "Is the module in Update mode?",
-                       "Error",
-                       ex);
-          return false;
+          System.err.println("Can't finish the capture: " + ex.getMessage());
         }
       }
+    }
 
-      setProgress(100);
-      return true;
+    /*
+     * Executed in background thread, at most every PROGRESS_INTERVAL.
+     */
+    public void progressChanged(UploadProgress progress)
+    {
+      setProgress(progress.getPercent());
+      publish(progress);
+    }
+
+    /*
+     * Executed in background thread.
+     */
+    public void statusChanged(String status)
+    {
+      System.out.println(status);
+    }
+
+    /*
+     * Executed in event dispatch thread, with the reports since the last
+     * call; only the latest matters.
+     */
+    @Override
+    protected void process(List<UploadProgress> reports)
+    {
+      UploadProgress progress = reports.get(reports.size() - 1);
+      StringBuilder sb = new StringBuilder();
+
+      sb.append(progress.getPercent()).append('%');
+      if (progress.getBytesPerSecond() > 0)
+      {
+        sb.append(", ").append(UploadProgress.formatRate(progress.getBytesPerSecond()));
+      }
+      if (progress.getEtaMillis() > 0)
+      {
+        sb.append(", ").append(UploadProgress.formatTime(progress.getEtaMillis()))
+          .append(" left");
+      }
+
+      progressBar.setString(sb.toString());
+      progressBar.setToolTipText(progress.toString());
     }
 
     /*
@@ -160,7 +256,9 @@ public class RogueUpdaterUI extends javax.swing.JFrame
       buttonBrowse.setEnabled(true);
       buttonUpload.setEnabled(true);
       buttonRefresh.setEnabled(true);
+      buttonDetect.setEnabled(true);
       comboSerialPort.setEnabled(true);
+      comboBaudRate.setEnabled(true);
       try
       {
         // Check the result from the background process.
@@ -183,22 +281,74 @@ public class RogueUpdaterUI extends javax.swing.JFrame
    * Creates new form RogueUpdaterUI
    */
   public RogueUpdaterUI()
+  {
+    this(SerialSettings.DEFAULT);
+  }
+
+  /**
+   * Creates new form RogueUpdaterUI with the given serial settings selected.
+   */
+  public RogueUpdaterUI(SerialSettings settings)
   {
     initComponents();
 
-    List<Image> icons = new ArrayList<Image>();
-    icons.add(new ImageIcon(getClass().getResource("resources/Rogue128.png")).getImage());
-    icons.add(new ImageIcon(getClass().getResource("resources/Rogue64.png")).getImage());
-    icons.add(new ImageIcon(getClass().getResource("resources/Rogue48.png")).getImage());
-    icons.add(new ImageIcon(getClass().getResource("resources/Rogue32.png")).getImage());
-    icons.add(new ImageIcon(getClass().getResource("resources/Rogue16.png")).getImage());
-    setIconImages(icons);
+    comboBaudRate.setSelectedItem(settings.toString());
+
+    // decoding the icons can wait until the window is up
+    new SwingWorker<List<Image>, Void>()
+    {
+      @Override
+      public List<Image> doInBackground()
+      {
+        List<Image> icons = new ArrayList<Image>();
+        icons.add(new ImageIcon(getClass().getResource("resources/Rogue128.png")).getImage());
+        icons.add(new ImageIcon(getClass().getResource("resources/Rogue64.png")).getImage());
+        icons.add(new ImageIcon(getClass().getResource("resources/Rogue48.png")).getImage());
+        icons.add(new ImageIcon(getClass().getResource("resources/Rogue32.png")).getImage());
+        icons.add(new ImageIcon(getClass().getResource("resources/Rogue16.png")).getImage());
+        return icons;
+      }
+
+      @Override
+      protected void done()
+      {
+        try
+        {
+          setIconImages(get());
+        }
+        catch (Exception ex)
+        {
+          System.err.println("Can't load icons: " + ex);
+        }
+      }
+    }.execute();
+  }
+
+  /*
+   * The file chooser, made the first time it is needed: it reads the
+   * current folder, which can be slow.
+   */
+  private JFileChooser chooser()
+  {
+    if (chooser != null)
+    {
+      return chooser;
+    }
 
     // Start in the current folder.
     chooser = new JFileChooser(".");
     FileNameExtensionFilter filter = new FileNameExtensionFilter(
-      "Rogue Firmware Files (*.rfw)", "rfw");
+      "Rogue Firmware Files (*.rfw, *.rfwb, *.gz, *.zlib)",
+      "rfw", BinaryFirmware.EXTENSION, "gz", "zlib");
+    chooser.addChoosableFileFilter(new FileNameExtensionFilter(
+      "Rogue Firmware, hex (*.rfw)", "rfw"));
+    chooser.addChoosableFileFilter(new FileNameExtensionFilter(
+      "Rogue Firmware, binary (*.rfwb)", BinaryFirmware.EXTENSION));
+    chooser.addChoosableFileFilter(new FileNameExtensionFilter(
+      "Rogue Firmware, compressed (*.gz, *.zlib)", "gz", "zlib"));
     chooser.setFileFilter(filter);
+
+    return chooser;
   }
 
   /**
@@ -213,6 +363,8 @@ public class RogueUpdaterUI extends javax.swing.JFrame
 
     progressBar = new javax.swing.JProgressBar();
     comboSerialPort = new javax.swing.JComboBox();
+    comboBaudRate = new javax.swing.JComboBox<String>();
+    labelBaudRate = new javax.swing.JLabel();
     textFile = new javax.swing.JTextField();
     LabelFile = new javax.swing.JLabel();
     labelSerialPort = new javax.swing.JLabel();
@@ -220,6 +372,7 @@ public class RogueUpdaterUI extends javax.swing.JFrame
     buttonUpload = new javax.swing.JButton();
     buttonExit = new javax.swing.JButton();
     buttonRefresh = new javax.swing.JButton();
+    buttonDetect = new javax.swing.JButton();
     labelLogo = new javax.swing.JLabel();
     labelTitle = new javax.swing.JLabel();
     labelVersion = new javax.swing.JLabel();
@@ -240,6 +393,12 @@ public class RogueUpdaterUI extends javax.swing.JFrame
 
     comboSerialPort.setToolTipText("Available serial ports.");
 
+    comboBaudRate.setEditable(true);
+    comboBaudRate.setModel(new javax.swing.DefaultComboBoxModel<String>(new String[] { "9600", "19200", "38400", "57600", "115200", "auto" }));
+    comboBaudRate.setToolTipText("Baud rate, optionally followed by data bits, parity and stop bits (e.g. 115200,8,N,1). \"auto\" probes for the fastest rate.");
+
+    labelBaudRate.setText("Baud Rate:");
+
     textFile.setEditable(false);
     textFile.addMouseListener(new java.awt.event.MouseAdapter()
     {
@@ -250,7 +409,7 @@ public class RogueUpdaterUI extends javax.swing.JFrame
     });
 
     LabelFile.setText("Firmware File:");
-    LabelFile.setToolTipText("Select a firmware file to upload to the module (*.rfw)");
+    LabelFile.setToolTipText("Select a firmware file to upload to the module (*.rfw, *.rfwb)");
 
     labelSerialPort.setText("Serial Port:");
 
@@ -293,6 +452,16 @@ public class RogueUpdaterUI extends javax.swing.JFrame
       }
     });
 
+    buttonDetect.setText("Detect");
+    buttonDetect.setToolTipText("Look for a module in Update mode on every serial port.");
+    buttonDetect.addActionListener(new java.awt.event.ActionListener()
+    {
+      public void actionPerformed(java.awt.event.ActionEvent evt)
+      {
+        buttonDetectActionPerformed(evt);
+      }
+    });
+
     labelLogo.setHorizontalAlignment(javax.swing.SwingConstants.CENTER);
     labelLogo.setIcon(new javax.swing.ImageIcon(getClass().getResource("/rogueupdater/resources/RogueLogo.png"))); // NOI18N
 
@@ -316,7 +485,8 @@ public class RogueUpdaterUI extends javax.swing.JFrame
           .addGroup(javax.swing.GroupLayout.Alignment.LEADING, layout.createSequentialGroup()
             .addGroup(layout.createParallelGroup(javax.swing.GroupLayout.Alignment.LEADING)
               .addComponent(LabelFile)
-              .addComponent(labelSerialPort))
+              .addComponent(labelSerialPort)
+              .addComponent(labelBaudRate))
             .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED)
             .addGroup(layout.createParallelGroup(javax.swing.GroupLayout.Alignment.LEADING)
               .addGroup(javax.swing.GroupLayout.Alignment.TRAILING, layout.createSequentialGroup()
@@ -324,11 +494,13 @@ public class RogueUpdaterUI extends javax.swing.JFrame
                 .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED, 63, Short.MAX_VALUE)
                 .addComponent(buttonExit))
               .addComponent(comboSerialPort, javax.swing.GroupLayout.Alignment.TRAILING, 0, 179, Short.MAX_VALUE)
+              .addComponent(comboBaudRate, javax.swing.GroupLayout.Alignment.TRAILING, 0, 179, Short.MAX_VALUE)
               .addComponent(textFile, javax.swing.GroupLayout.DEFAULT_SIZE, 179, Short.MAX_VALUE))
             .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED)
             .addGroup(layout.createParallelGroup(javax.swing.GroupLayout.Alignment.LEADING, false)
               .addComponent(buttonBrowse, javax.swing.GroupLayout.DEFAULT_SIZE, javax.swing.GroupLayout.DEFAULT_SIZE, Short.MAX_VALUE)
-              .addComponent(buttonRefresh))))
+              .addComponent(buttonRefresh)
+              .addComponent(buttonDetect, javax.swing.GroupLayout.DEFAULT_SIZE, javax.swing.GroupLayout.DEFAULT_SIZE, Short.MAX_VALUE))))
         .addContainerGap())
       .addComponent(labelTitle, javax.swing.GroupLayout.Alignment.TRAILING, javax.swing.GroupLayout.DEFAULT_SIZE, 347, Short.MAX_VALUE)
       .addGroup(javax.swing.GroupLayout.Alignment.TRAILING, layout.createSequentialGroup()
@@ -354,6 +526,11 @@ public class RogueUpdaterUI extends javax.swing.JFrame
           .addComponent(buttonRefresh)
           .addComponent(labelSerialPort))
         .addGap(18, 18, 18)
+        .addGroup(layout.createParallelGroup(javax.swing.GroupLayout.Alignment.BASELINE)
+          .addComponent(comboBaudRate, javax.swing.GroupLayout.PREFERRED_SIZE, javax.swing.GroupLayout.DEFAULT_SIZE, javax.swing.GroupLayout.PREFERRED_SIZE)
+          .addComponent(buttonDetect)
+          .addComponent(labelBaudRate))
+        .addGap(18, 18, 18)
         .addGroup(layout.createParallelGroup(javax.swing.GroupLayout.Alignment.BASELINE)
           .addComponent(buttonExit)
           .addComponent(buttonUpload))
@@ -376,7 +553,7 @@ public class RogueUpdaterUI extends javax.swing.JFrame
   private void buttonBrowseActionPerformed(java.awt.event.ActionEvent evt)//GEN-FIRST:event_buttonBrowseActionPerformed
   {
 //GEN-HEADEREND:event_buttonBrowseActionPerformed
-    int returnVal = chooser.showOpenDialog(RogueUpdaterUI.this);
+    int returnVal = chooser().showOpenDialog(RogueUpdaterUI.this);
 
     if (returnVal == JFileChooser.APPROVE_OPTION)
     {
@@ -387,26 +564,15 @@ public class RogueUpdaterUI extends javax.swing.JFrame
 
       System.out.println("You chose to open this file: "
                          + firmwareFile.toString());
-      if (firmwareFile.length() > 200000)
-      {
-        errorMessage("This file is likely not a Rogue Robotics firmware update file.",
-                     "Invalid File",
-                     null);
-        firmwareFile = null;
-        textFile.setText("");
-        textFile.setToolTipText("");
-      }
     }
   }//GEN-LAST:event_buttonBrowseActionPerformed
 
   private void buttonUploadActionPerformed(java.awt.event.ActionEvent evt)//GEN-FIRST:event_buttonUploadActionPerformed
   {
 //GEN-HEADEREND:event_buttonUploadActionPerformed
-    // Button pressed, load data from file, turn off buttons, then start uploader thread.
-    // Threaded method updates Progress bar, then turns buttons on after upload completed.
-
-    FileReader fr;
-    char data[];
+    // Button pressed, turn off buttons, then start uploader thread.
+    // Threaded method loads data from file, updates Progress bar, then turns
+    // buttons on after upload completed.
 
     buttonUpload.setEnabled(false);
     progressBar.setValue(0);
@@ -422,35 +588,19 @@ public class RogueUpdaterUI extends javax.swing.JFrame
 
     try
     {
-      fr = new FileReader(firmwareFile);
-      data = new char[(int) firmwareFile.length()];
-
-      int charsRead = fr.read(data);
-
-      fr.close();
-
-      System.out.print("bytes read: ");
-      System.out.println(charsRead);
+      serialSettings = SerialSettings.parse(
+        String.valueOf(comboBaudRate.getSelectedItem()));
     }
-    catch (IOException ex)
+    catch (IllegalArgumentException ex)
     {
-      errorMessage("An error occurred while opening the file",
-                   "File Open Error",
+      errorMessage("Invalid serial port settings.",
+                   "Serial Port Settings",
                    ex);
       buttonUpload.setEnabled(true);
       return;
     }
 
-    fwData = new byte[data.length / 2];
-
-    // convert to binary
-    for (int i = 0; i < data.length; i += 2)
-    {
-      fwData[i / 2] = (byte)((Character.digit(data[i], 16) << 4)
-                             + Character.digit(data[i + 1], 16));
-    }
-
-    // got the data, let's upload
+    // the file is verified and decoded by the upload task, off the EDT
     // need to make sure serial port is ready
     // open the port now, send data, then close the port when done
 
@@ -464,16 +614,57 @@ public class RogueUpdaterUI extends javax.swing.JFrame
     // We are good to upload now. Start the background task.
 
     progressBar.setIndeterminate(true);
+    progressBar.setString(null);
+    progressBar.setStringPainted(true);
     buttonBrowse.setEnabled(false);
     buttonRefresh.setEnabled(false);
+    buttonDetect.setEnabled(false);
     comboSerialPort.setEnabled(false);
+    comboBaudRate.setEnabled(false);
     //Instances of javax.swing.SwingWorker are not reusuable, so
     //we create new instances as needed.
-    uploadTask = new UploadTask();
+    Uploader.Reconnector reconnector =
+      Connections.reconnector(connection.getName(), serialSettings,
+                              Uploader.RESPONSE_TIMEOUT);
+    SessionRecorder recorder = startCapture();
+
+    if (recorder != null)
+    {
+      connection = recorder.wrap(connection);
+      reconnector = recorder.wrap(reconnector);
+    }
+
+    uploadTask = new UploadTask(firmwareFile, serialSettings, reconnector,
+                                recorder);
     uploadTask.addPropertyChangeListener(this);
     uploadTask.execute();
   }//GEN-LAST:event_buttonUploadActionPerformed
 
+  /*
+   * A recorder for the upload if rogueupdater.capture names a file to
+   * capture it to (see SessionRecorder), otherwise null.
+   */
+  private SessionRecorder startCapture()
+  {
+    String capture = System.getProperty("rogueupdater.capture");
+
+    if (capture == null)
+    {
+      return null;
+    }
+
+    try
+    {
+      return new SessionRecorder(new File(capture));
+    }
+    catch (IOException ex)
+    {
+      System.err.println("Can't capture the session to " + capture + ": "
+                         + ex.getMessage());
+      return null;
+    }
+  }
+
   /**
    * Invoked when our task's 'progress' property changes.
    * 'progress' property is inherited from
@@ -491,102 +682,75 @@ public class RogueUpdaterUI extends javax.swing.JFrame
   private void buttonRefreshActionPerformed(java.awt.event.ActionEvent evt)//GEN-FIRST:event_buttonRefreshActionPerformed
   {
 //GEN-HEADEREND:event_buttonRefreshActionPerformed
-    try
-    {
-      populateComboSerial();
-    }
-    catch (Exception ignore)
-    {
-    }
+    portScanner.refresh();
   }//GEN-LAST:event_buttonRefreshActionPerformed
 
-  private String getRXTXLibraryLocation()
+  private void buttonDetectActionPerformed(java.awt.event.ActionEvent evt)//GEN-FIRST:event_buttonDetectActionPerformed
   {
-    String osName = System.getProperty("os.name");
-    String osArch = System.getProperty("os.arch");
-    String location = "none";
-
-    System.out.println("os.name='" + osName + "'");
-    System.out.println("os.arch='" + osArch + "'");
+//GEN-HEADEREND:event_buttonDetectActionPerformed
+    detectModules();
+  }//GEN-LAST:event_buttonDetectActionPerformed
+
+  /*
+   * List the ports afresh and look for a module in Update mode on each,
+   * in the background, then select the first port (and rate) it is found
+   * on.  This writes to every port, so it is only done when asked.
+   */
+  private void detectModules()
+  {
+    final SerialSettings settings;
 
-    // check for linux platform ..
-    if (osName.toLowerCase().contains("linux"))
+    try
     {
-      // check for architecture 64bit
-      if (osArch.toLowerCase().contains("amd64") || osArch.toLowerCase().contains("x86_64"))
-      {
-        location = "lib/x86_64-unknown-linux-gnu/librxtxSerial.so";
-      }
-      // else 32bit
-      else
-      {
-        location = "lib/i686-unknown-linux-gnu/librxtxSerial.so";
-      }
-
+      settings = SerialSettings.parse(
+        String.valueOf(comboBaudRate.getSelectedItem()));
     }
-    // check for windows platform
-    else if (osName.toLowerCase().contains("windows"))
+    catch (IllegalArgumentException ex)
     {
-      // check for architecture 64bit
-      if (osArch.toLowerCase().contains("amd64") || osArch.toLowerCase().contains("x86_64"))
-      {
-        // 64bit libs from http://www.cloudhopper.com/opensource/rxtx/
-        location = "lib/win64/rxtxSerial.dll";
-      }
-      // else 32bit
-      else
-      {
-        location = "lib/win32/rxtxSerial.dll";
-      }
-      /*
-      osArch = System.getenv("PROCESSOR_ARCHITECTURE");
-      String wow64Arch = System.getenv("PROCESSOR_ARCHITEW6432");
-      String realArch = osArch.endsWith("64") ||
-                        wow64Arch != null && wow64Arch.endsWith("64") ? "64" : "32";
-      if (realArch.equals("64"))
-      {
-        // 64bit libs from http://www.cloudhopper.com/opensource/rxtx/
-        location = "lib/win64/rxtxSerial.dll";
-      }
-      // else 32bit
-      else
-      {
-        location = "lib/win32/rxtxSerial.dll";
-      }
-      */
-    }
-    // check for os x platform
-    else if (osName.toLowerCase().contains("os x"))
-    {
-      // no arch available or required?!
-      location = "lib/mac-10.5/librxtxSerial.jnilib";
+      return;
     }
-    /*
-    // check for solaris platform
-    else if (osName.toLowerCase().contains("solaris"))
+
+    buttonRefresh.setEnabled(false);
+    buttonDetect.setEnabled(false);
+    buttonUpload.setEnabled(false);
+    portScanner.refresh();
+
+    new SwingWorker<List<ModuleDetector.Module>, Void>()
     {
-      // check for architecture 64bit
-      if (osArch.toLowerCase().contains("amd64") || osArch.toLowerCase().contains("x86_64"))
+      @Override
+      public List<ModuleDetector.Module> doInBackground() throws Exception
       {
-        location = "lib/sparc-sun-solaris2.10-64/librxtxSerial.so";
+        return ModuleDetector.detect(PortScanner.listSerialPorts(), settings);
       }
-      // else 32bit
-      else
+
+      @Override
+      public void done()
       {
-        location = "lib/sparc-sun-solaris2.10-32/librxtxSerial.so";
-      }
+        buttonRefresh.setEnabled(true);
+        buttonDetect.setEnabled(true);
+        buttonUpload.setEnabled(true);
 
-    }
-    */
-    // other platforms are currently not supported ...
-    else
-    {
-      System.out.println("Sorry, platform '" + osName + "' currently not supported...");
-    }
+        try
+        {
+          List<ModuleDetector.Module> modules = get();
 
-    return location;
-  }
+          for (ModuleDetector.Module module : modules)
+          {
+            System.out.println("Found module: " + module);
+          }
 
+          if (!modules.isEmpty())
+          {
+            comboSerialPort.setSelectedItem(modules.get(0).getPortName());
+            comboBaudRate.setSelectedItem(modules.get(0).getSettings().toString());
+          }
+        }
+        catch (Exception ignore)
+        {
+        }
+      }
+    }.execute();
+  }
 
   private void formWindowOpened(java.awt.event.WindowEvent evt)//GEN-FIRST:event_formWindowOpened
   {
@@ -600,7 +764,7 @@ public class RogueUpdaterUI extends javax.swing.JFrame
     File jarfile = new File(getClass().getProtectionDomain().getCodeSource().getLocation().getPath());
     String jarpath = jarfile.getParentFile().getAbsolutePath();
 
-    String libloc = jarpath + "/" + getRXTXLibraryLocation();
+    String libloc = jarpath + "/" + RxtxLibrary.getLocation();
 
     System.out.println(libloc);
 
@@ -618,31 +782,102 @@ public class RogueUpdaterUI extends javax.swing.JFrame
     }
     */
 
-    try
-    {
-      //java.lang.System.load(null);
-      System.out.println(gnu.io.RXTXVersion.nativeGetVersion());
-      populateComboSerial();
-    }
-    catch (UnsatisfiedLinkError e)
+    windowOpened = System.currentTimeMillis();
+
+    // the library can take a while to load; don't hold up the window
+    new SwingWorker<String, Void>()
     {
-      String errmsg = "The RXTX Native Library was not found on your system.<br>"
-                      + "Please go to <a href=\"http://rxtx.qbang.org/\">http://rxtx.qbang.org/</a><br>"
-                      + "and install the latest binaries (RXTXcomm.jar and a native library for your system + architecture).";
+      @Override
+      public String doInBackground()
+      {
+        return RxtxLibrary.load();
+      }
 
-      if (System.getProperty("os.name").startsWith("Mac"))
+      @Override
+      protected void done()
       {
-        errmsg += "<br><br>Please make sure that you install the library with Administrator privileges (sudo).";
+        libraryReady = System.currentTimeMillis();
+        reportStartup();
+
+        try
+        {
+          System.out.println(get());
+          libraryLoaded();
+        }
+        catch (ExecutionException ex)
+        {
+          if (ex.getCause() instanceof UnsatisfiedLinkError)
+          {
+            libraryMissing((UnsatisfiedLinkError) ex.getCause());
+          }
+          else
+          {
+            ex.printStackTrace();
+          }
+        }
+        catch (InterruptedException ex)
+        {
+        }
       }
+    }.execute();
+  }//GEN-LAST:event_formWindowOpened
 
-      errorMessage(errmsg,
-                   "Missing RXTX Library",
-                   e);
-      buttonUpload.setEnabled(false);
-      buttonRefresh.setEnabled(false);
-      buttonBrowse.setEnabled(false);
+  private void libraryLoaded()
+  {
+    // find the ports in the background and keep up with hotplugging
+    portScanner.setListener(new PortScanner.Listener()
+    {
+      public void portsChanged(final List<String> ports)
+      {
+        SwingUtilities.invokeLater(new Runnable()
+        {
+          public void run()
+          {
+            populateComboSerial(ports);
+          }
+        });
+      }
+    });
+    portScanner.refresh();
+    portScanner.watch();
+  }
+
+  /*
+   * Print how long startup took, from the start of the JVM.  With
+   * STARTUP_EXIT_PROPERTY set, also exit, for StartupBenchmark.
+   */
+  private void reportStartup()
+  {
+    long start = ManagementFactory.getRuntimeMXBean().getStartTime();
+
+    System.out.println("Startup: window " + (windowOpened - start) + " ms, "
+                       + "library " + (libraryReady - start) + " ms");
+
+    if (Boolean.getBoolean(STARTUP_EXIT_PROPERTY))
+    {
+      System.exit(0);
     }
-  }//GEN-LAST:event_formWindowOpened
+  }
+
+  private void libraryMissing(UnsatisfiedLinkError e)
+  {
+    String errmsg = "The RXTX Native Library was not found on your system.<br>"
+                    + "Please go to <a href=\"http://rxtx.qbang.org/\">http://rxtx.qbang.org/</a><br>"
+                    + "and install the latest binaries (RXTXcomm.jar and a native library for your system + architecture).";
+
+    if (System.getProperty("os.name").startsWith("Mac"))
+    {
+      errmsg += "<br><br>Please make sure that you install the library with Administrator privileges (sudo).";
+    }
+
+    errorMessage(errmsg,
+                 "Missing RXTX Library",
+                 e);
+    buttonUpload.setEnabled(false);
+    buttonRefresh.setEnabled(false);
+    buttonDetect.setEnabled(false);
+    buttonBrowse.setEnabled(false);
+  }
 
   private void textFileMouseClicked(java.awt.event.MouseEvent evt)//GEN-FIRST:event_textFileMouseClicked
   {
@@ -653,43 +888,30 @@ public class RogueUpdaterUI extends javax.swing.JFrame
     }
   }//GEN-LAST:event_textFileMouseClicked
 
-  private void populateComboSerial()
+  private void populateComboSerial(List<String> serialPorts)
   {
-    // Any Unsatisfied Linker exceptions will be caught by the parent method.
-    ArrayList<String> serialPorts = serialList();
+    // keep the port the user picked, if it is still there
+    Object selected = comboSerialPort.getSelectedItem();
 
     comboSerialPort.removeAllItems();
 
-    if (serialPorts.size() > 0)
+    for (String port : serialPorts)
     {
-      for (int i = 0; i < serialPorts.size(); i++)
-      {
-        comboSerialPort.addItem(serialPorts.get(i));
-      }
+      comboSerialPort.addItem(port);
     }
-  }
 
-  public ArrayList<String> serialList()
-  {
-    ArrayList<String> serialPortList = new ArrayList<String>();
-
-    //System.err.println("trying");
-    Enumeration portList = CommPortIdentifier.getPortIdentifiers();
-    //System.err.println("got port list");
-    while (portList.hasMoreElements())
+    if (selected != null && serialPorts.contains(selected))
     {
-      CommPortIdentifier pId =
-        (CommPortIdentifier) portList.nextElement();
-      //System.out.println(portId);
-
-      if (pId.getPortType() == CommPortIdentifier.PORT_SERIAL)
-      {
-        String name = pId.getName();
-        serialPortList.add(name);
-      }
+      comboSerialPort.setSelectedItem(selected);
     }
+  }
 
-    return serialPortList;
+  /**
+   * The serial ports found so far.  See PortScanner.
+   */
+  public List<String> serialList()
+  {
+    return portScanner.getPorts();
   }
 
   public void errorMessage(String msg, String title, Throwable e)
@@ -717,68 +939,49 @@ public class RogueUpdaterUI extends javax.swing.JFrame
 
   public boolean openSerialPort()
   {
-    boolean portFound = false;
+    String name = (String) comboSerialPort.getSelectedItem();
 
-    if (comboSerialPort.getSelectedItem() != null)
+    if (name == null)
     {
-      try
-      {
-        portId = CommPortIdentifier.getPortIdentifier(
-                   (String) comboSerialPort.getSelectedItem());
-      }
-      catch (Exception ex)
-      {
-        errorMessage("Can't get serial port identifier.",
-                     "Serial Port Open Error",
-                     ex);
-        return false;
-      }
-
-      if (portId.getPortType() == CommPortIdentifier.PORT_SERIAL)
-      {
-        try
-        {
-          serialPort = (SerialPort) portId.open("RUSerial", 2000);
-          input = serialPort.getInputStream();
-          output = serialPort.getOutputStream();
-          serialPort.setSerialPortParams(9600,
-                                         SerialPort.DATABITS_8,
-                                         SerialPort.STOPBITS_1,
-                                         SerialPort.PARITY_NONE);
-          System.out.println("Port opened: "
-                             + comboSerialPort.getSelectedItem());
-
-          portFound = true;
-        }
-        catch (Exception ex)
-        {
-          errorMessage("Serial port already in use by another application.",
-                       "Serial Port Open Error",
-                       ex);
-        }
-      }
-      else
-      {
-        errorMessage("Port selected is not a serial port.",
-                     "Serial Port Open Error",
-                     null);
-      }
+      return false;
+    }
 
-      if (!portFound)
-      {
-        System.out.println("Port " + comboSerialPort.getSelectedItem()
-                           + " not found.");
-      }
+    try
+    {
+      connection = SerialConnection.open(name, serialSettings,
+                                         Uploader.RESPONSE_TIMEOUT);
+      return true;
+    }
+    catch (NoSuchPortException ex)
+    {
+      errorMessage("Can't get serial port identifier.",
+                   "Serial Port Open Error",
+                   ex);
     }
+    catch (IllegalArgumentException ex)
+    {
+      errorMessage("Port selected is not a serial port.",
+                   "Serial Port Open Error",
+                   null);
+    }
+    catch (Exception ex)
+    {
+      errorMessage("Serial port already in use by another application.",
+                   "Serial Port Open Error",
+                   ex);
+    }
+
+    System.out.println("Port " + name + " not found.");
 
-    return portFound;
+    return false;
   }
 
   public void closeSerialPort()
   {
-    if (serialPort != null)
+    if (connection != null)
     {
-      serialPort.close();
+      connection.close();
+      connection = null;
     }
   }
 
@@ -787,11 +990,31 @@ public class RogueUpdaterUI extends javax.swing.JFrame
    */
   public static void main(String args[])
   {
+    SerialSettings settings = SerialSettings.DEFAULT;
+
+    for (int i = 0; i < args.length; i++)
+    {
+      if (args[i].equals("--serial") && i + 1 < args.length)
+      {
+        try
+        {
+          settings = SerialSettings.parse(args[++i]);
+        }
+        catch (IllegalArgumentException ex)
+        {
+          System.err.println(ex.getMessage());
+          System.exit(1);
+        }
+      }
+    }
+
+    final SerialSettings initialSettings = settings;
+
     java.awt.EventQueue.invokeLater(new Runnable()
     {
       public void run()
       {
-        RogueUpdaterUI RUUI = new RogueUpdaterUI();
+        RogueUpdaterUI RUUI = new RogueUpdaterUI(initialSettings);
         RUUI.setLocationRelativeTo(null);
         RUUI.setVisible(true);
       }
@@ -801,10 +1024,13 @@ public class RogueUpdaterUI extends javax.swing.JFrame
   // Variables declaration - do not modify//GEN-BEGIN:variables
   private javax.swing.JLabel LabelFile;
   private javax.swing.JButton buttonBrowse;
+  private javax.swing.JButton buttonDetect;
   private javax.swing.JButton buttonExit;
   private javax.swing.JButton buttonRefresh;
   private javax.swing.JButton buttonUpload;
+  private javax.swing.JComboBox<String> comboBaudRate;
   private javax.swing.JComboBox comboSerialPort;
+  private javax.swing.JLabel labelBaudRate;
   private javax.swing.JLabel labelLogo;
   private javax.swing.JLabel labelSerialPort;
   private javax.swing.JLabel labelTitle;
@@ -813,8 +1039,6 @@ public class RogueUpdaterUI extends javax.swing.JFrame
   private javax.swing.JTextField textFile;
   // End of variables declaration//GEN-END:variables
   private File firmwareFile;
-  private SerialPort serialPort;
-  private InputStream input;
-  private OutputStream output;
-  private CommPortIdentifier portId;
+  private Connection connection;
+  private SerialSettings serialSettings = SerialSettings.DEFAULT;
 }
@@ -0,0 +1,109 @@
+/*
+ * RogueUpdater
+ *
+ * Firmware updater tool for Rogue Robotics products.
+ * http://www.roguerobotics.com/
+ *
+ */
+package rogueupdater;
+
+/**
+ * Works out how long to wait for the module to answer a frame, from how
+ * long it has taken to answer so far.
+ *
+ * This is TCP's retransmission timer (RFC 6298): a smoothed round trip
+ * time and its mean deviation are updated with every answer, and the
+ * timeout is the smoothed time plus four deviations.  Each timeout
+ * doubles it until the next good sample.
+ *
+ * Unlike TCP, frames carry no sequence number, so an answer that misses
+ * its timeout can't be told from the answer to a resend.  After a
+ * timeout the line must stay quiet for getQuietTime() before the frame
+ * goes out again.
+ */
+public class RttEstimator
+{
+  // Shortest timeout ever used (ms).  Well above a round trip at any
+  // rate the module takes: a full frame at 9600 baud is about 530 ms.
+  public static final int MIN_TIMEOUT = 1000;
+  // Longest timeout, however often we back off (ms).
+  public static final int MAX_TIMEOUT = 10000;
+
+  private final int initialTimeout;
+  private long srtt;
+  private long rttvar;
+  private long maxRtt;
+  private int timeout;
+
+  /**
+   * initialTimeout is used until the first answer arrives, and is the
+   * least time the line must be quiet before a resend.
+   */
+  public RttEstimator(int initialTimeout)
+  {
+    this.initialTimeout = initialTimeout;
+    this.timeout = initialTimeout;
+  }
+
+  /**
+   * Take in a round trip time.  Only answers to frames sent once may be
+   * sampled: the answer to a resent frame could belong to either send.
+   */
+  public void sample(long rttNanos)
+  {
+    long r = Math.max(1, rttNanos / 1000);
+
+    maxRtt = Math.max(maxRtt, r);
+
+    if (srtt == 0)
+    {
+      srtt = r;
+      rttvar = r / 2;
+    }
+    else
+    {
+      rttvar += (Math.abs(srtt - r) - rttvar) / 4;
+      srtt += (r - srtt) / 8;
+    }
+
+    long micros = srtt + 4 * rttvar;
+
+    timeout = (int) Math.max(MIN_TIMEOUT,
+                             Math.min(MAX_TIMEOUT, (micros + 999) / 1000));
+  }
+
+  /**
+   * A frame went unanswered; wait twice as long next time.
+   */
+  public void backOff()
+  {
+    timeout = Math.min(MAX_TIMEOUT, timeout * 2);
+  }
+
+  /**
+   * Time to wait for the next answer (ms).
+   */
+  public int getTimeout()
+  {
+    return timeout;
+  }
+
+  /**
+   * Time the line must stay quiet after a timeout before the frame may be
+   * sent again: twice the slowest answer seen, and never less than the
+   * initial timeout (ms).
+   */
+  public int getQuietTime()
+  {
+    return (int) Math.min(MAX_TIMEOUT,
+                          Math.max(initialTimeout, (2 * maxRtt + 999) / 1000));
+  }
+
+  /**
+   * Smoothed round trip time, or 0 before the first sample (us).
+   */
+  public long getSmoothedRtt()
+  {
+    return srtt;
+  }
+}
@@ -0,0 +1,155 @@
+/*
+ * RogueUpdater
+ *
+ * Firmware updater tool for Rogue Robotics products.
+ * http://www.roguerobotics.com/
+ *
+ */
+package rogueupdater;
+
+/**
+ * The RXTX native library, loaded once per run.
+ *
+ * Loading it can take a while (it is found on java.library.path and
+ * initialised), so the UI does it on a background thread.  The outcome,
+ * good or bad, is kept: a library that failed to load the first time
+ * will not load later either.
+ */
+public class RxtxLibrary
+{
+  private static String version;
+  private static UnsatisfiedLinkError error;
+  private static String location;
+
+  private RxtxLibrary()
+  {
+  }
+
+  /**
+   * Load the library if that has not been tried yet, and return its
+   * version.
+   *
+   * @throws UnsatisfiedLinkError if it is not installed, now or before
+   */
+  public static synchronized String load()
+  {
+    if (version == null && error == null)
+    {
+      try
+      {
+        version = gnu.io.RXTXVersion.nativeGetVersion();
+      }
+      catch (UnsatisfiedLinkError ex)
+      {
+        error = ex;
+      }
+    }
+
+    if (error != null)
+    {
+      throw error;
+    }
+
+    return version;
+  }
+
+  /**
+   * Where the native library for this platform is in the RXTX
+   * distribution, e.g. "lib/win64/rxtxSerial.dll", or "none".
+   */
+  public static synchronized String getLocation()
+  {
+    if (location == null)
+    {
+      location = findLocation(System.getProperty("os.name"),
+                              System.getProperty("os.arch"));
+    }
+
+    return location;
+  }
+
+  private static String findLocation(String osName, String osArch)
+  {
+    String location = "none";
+
+    System.out.println("os.name='" + osName + "'");
+    System.out.println("os.arch='" + osArch + "'");
+
+    // check for linux platform ..
+    if (osName.toLowerCase().contains("linux"))
+    {
+      // check for architecture 64bit
+      if (osArch.toLowerCase().contains("amd64") || osArch.toLowerCase().contains("x86_64"))
+      {
+        location = "lib/x86_64-unknown-linux-gnu/librxtxSerial.so";
+      }
+      // else 32bit
+      else
+      {
+        location = "lib/i686-unknown-linux-gnu/librxtxSerial.so";
+      }
+
+    }
+    // check for windows platform
+    else if (osName.toLowerCase().contains("windows"))
+    {
+      // check for architecture 64bit
+      if (osArch.toLowerCase().contains("amd64") || osArch.toLowerCase().contains("x86_64"))
+      {
+        // 64bit libs from http://www.cloudhopper.com/opensource/rxtx/
+        location = "lib/win64/rxtxSerial.dll";
+      }
+      // else 32bit
+      else
+      {
+        location = "lib/win32/rxtxSerial.dll";
+      }
+      /*
+      osArch = System.getenv("PROCESSOR_ARCHITECTURE");
+      String wow64Arch = System.getenv("PROCESSOR_ARCHITEW6432");
+      String realArch = osArch.endsWith("64") ||
+                        wow64Arch != null && wow64Arch.endsWith("64") ? "64" : "32";
+      if (realArch.equals("64"))
+      {
+        // 64bit libs from http://www.cloudhopper.com/opensource/rxtx/
+        location = "lib/win64/rxtxSerial.dll";
+      }
+      // else 32bit
+      else
+      {
+        location = "lib/win32/rxtxSerial.dll";
+      }
+      */
+    }
+    // check for os x platform
+    else if (osName.toLowerCase().contains("os x"))
+    {
+      // no arch available or required?!
+      location = "lib/mac-10.5/librxtxSerial.jnilib";
+    }
+    /*
+    // check for solaris platform
+    else if (osName.toLowerCase().contains("solaris"))
+    {
+      // check for architecture 64bit
+      if (osArch.toLowerCase().contains("amd64") || osArch.toLowerCase().contains("x86_64"))
+      {
+        location = "lib/sparc-sun-solaris2.10-64/librxtxSerial.so";
+      }
+      // else 32bit
+      else
+      {
+        location = "lib/sparc-sun-solaris2.10-32/librxtxSerial.so";
+      }
+
+    }
+    */
+    // other platforms are currently not supported ...
+    else
+    {
+      System.out.println("Sorry, platform '" + osName + "' currently not supported...");
+    }
+
+    return location;
+  }
+}
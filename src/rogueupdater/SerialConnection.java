@@ -0,0 +1,165 @@
+/*
+ * RogueUpdater
+ *
+ * Firmware updater tool for Rogue Robotics products.
+ * http://www.roguerobotics.com/
+ *
+ */
+package rogueupdater;
+
+import gnu.io.CommPortIdentifier;
+import gnu.io.NoSuchPortException;
+import gnu.io.PortInUseException;
+import gnu.io.SerialPort;
+import gnu.io.UnsupportedCommOperationException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * An open serial port and its streams.
+ *
+ * No Swing here; this is shared by the UI and the command line.
+ */
+public class SerialConnection implements Connection
+{
+  // Owner name given to RXTX when opening the port.
+  private static final String OWNER = "RUSerial";
+  // Time to wait for the port to become available (ms).
+  public static final int OPEN_TIMEOUT = 2000;
+
+  private final String name;
+  private final SerialPort serialPort;
+  private final InputStream input;
+  private final OutputStream output;
+  private boolean blockingReads;
+
+  private SerialConnection(String name, SerialPort serialPort)
+    throws IOException
+  {
+    this.name = name;
+    this.serialPort = serialPort;
+    this.input = serialPort.getInputStream();
+    this.output = serialPort.getOutputStream();
+  }
+
+  /**
+   * Open the named port with the given settings.  Reads on the returned
+   * connection block for at most receiveTimeout ms, if the driver allows.
+   *
+   * @throws NoSuchPortException if there is no port with that name
+   * @throws IllegalArgumentException if the port is not a serial port
+   * @throws PortInUseException if another application has the port
+   */
+  public static SerialConnection open(String name, SerialSettings settings,
+                                      int receiveTimeout)
+    throws NoSuchPortException, PortInUseException,
+           UnsupportedCommOperationException, IOException
+  {
+    return open(name, settings, receiveTimeout, OPEN_TIMEOUT);
+  }
+
+  /**
+   * Same, waiting at most openTimeout ms for the port to be free.
+   */
+  public static SerialConnection open(String name, SerialSettings settings,
+                                      int receiveTimeout, int openTimeout)
+    throws NoSuchPortException, PortInUseException,
+           UnsupportedCommOperationException, IOException
+  {
+    CommPortIdentifier portId = CommPortIdentifier.getPortIdentifier(name);
+
+    if (portId.getPortType() != CommPortIdentifier.PORT_SERIAL)
+    {
+      throw new IllegalArgumentException(name + " is not a serial port.");
+    }
+
+    SerialPort serialPort = (SerialPort) portId.open(OWNER, openTimeout);
+    SerialConnection connection;
+
+    try
+    {
+      connection = new SerialConnection(name, serialPort);
+      settings.apply(serialPort);
+    }
+    catch (IOException ex)
+    {
+      serialPort.close();
+      throw ex;
+    }
+    catch (UnsupportedCommOperationException ex)
+    {
+      serialPort.close();
+      throw ex;
+    }
+
+    // Block in read() until a byte arrives or the timeout expires.
+    try
+    {
+      serialPort.enableReceiveThreshold(1);
+      serialPort.enableReceiveTimeout(receiveTimeout);
+    }
+    catch (UnsupportedCommOperationException ex)
+    {
+      System.out.println("Receive timeout not supported, polling.");
+    }
+    connection.blockingReads = serialPort.isReceiveThresholdEnabled()
+                               && serialPort.isReceiveTimeoutEnabled();
+
+    System.out.println("Port opened: " + name + " (" + settings + ")");
+
+    return connection;
+  }
+
+  public String getName()
+  {
+    return name;
+  }
+
+  public InputStream getInputStream()
+  {
+    return input;
+  }
+
+  public OutputStream getOutputStream()
+  {
+    return output;
+  }
+
+  public boolean isBlockingReads()
+  {
+    return blockingReads;
+  }
+
+  public void setReceiveTimeout(int timeout) throws IOException
+  {
+    if (blockingReads)
+    {
+      try
+      {
+        serialPort.enableReceiveTimeout(timeout);
+      }
+      catch (UnsupportedCommOperationException ex)
+      {
+        throw new IOException(ex);
+      }
+    }
+  }
+
+  public void setSettings(SerialSettings settings) throws IOException
+  {
+    try
+    {
+      settings.apply(serialPort);
+    }
+    catch (UnsupportedCommOperationException ex)
+    {
+      throw new IOException(ex);
+    }
+  }
+
+  public void close()
+  {
+    serialPort.close();
+  }
+}
@@ -0,0 +1,262 @@
+/*
+ * RogueUpdater
+ *
+ * Firmware updater tool for Rogue Robotics products.
+ * http://www.roguerobotics.com/
+ *
+ */
+package rogueupdater;
+
+import gnu.io.SerialPort;
+import gnu.io.UnsupportedCommOperationException;
+
+/**
+ * Serial line settings used to talk to the module.
+ *
+ * Settings are written as "baud[,databits[,parity[,stopbits]]]", e.g.
+ * "9600", "115200,8,N,1" or "57600,8,E,2".  A baud rate of "auto" asks the
+ * uploader to probe PROBE_RATES and use the fastest one the module answers.
+ */
+public class SerialSettings
+{
+  public static final int DEFAULT_BAUD_RATE = 9600;
+
+  // Rates tried when probing, fastest first.
+  public static final int[] PROBE_RATES =
+  {
+    115200, 57600, 38400, 19200, 9600
+  };
+
+  public static final SerialSettings DEFAULT = new SerialSettings(
+    DEFAULT_BAUD_RATE,
+    SerialPort.DATABITS_8,
+    SerialPort.STOPBITS_1,
+    SerialPort.PARITY_NONE,
+    false);
+
+  private final int baudRate;
+  private final int dataBits;
+  private final int stopBits;
+  private final int parity;
+  private final boolean probe;
+
+  public SerialSettings(int baudRate, int dataBits, int stopBits, int parity,
+                        boolean probe)
+  {
+    this.baudRate = baudRate;
+    this.dataBits = dataBits;
+    this.stopBits = stopBits;
+    this.parity = parity;
+    this.probe = probe;
+  }
+
+  /**
+   * Parse a settings string.  Missing fields default to 8 data bits,
+   * no parity and 1 stop bit.
+   */
+  public static SerialSettings parse(String spec)
+  {
+    String[] fields = spec.trim().split("\\s*,\\s*");
+    int baudRate = DEFAULT_BAUD_RATE;
+    int dataBits = SerialPort.DATABITS_8;
+    int stopBits = SerialPort.STOPBITS_1;
+    int parity = SerialPort.PARITY_NONE;
+    boolean probe = false;
+
+    if (fields.length > 4)
+    {
+      throw new IllegalArgumentException("Too many serial settings: " + spec);
+    }
+
+    if (fields[0].equalsIgnoreCase("auto"))
+    {
+      probe = true;
+    }
+    else
+    {
+      try
+      {
+        baudRate = Integer.parseInt(fields[0]);
+      }
+      catch (NumberFormatException ex)
+      {
+        throw new IllegalArgumentException("Invalid baud rate: " + fields[0]);
+      }
+
+      if (baudRate <= 0)
+      {
+        throw new IllegalArgumentException("Invalid baud rate: " + fields[0]);
+      }
+    }
+
+    if (fields.length > 1)
+    {
+      if (fields[1].equals("5"))
+      {
+        dataBits = SerialPort.DATABITS_5;
+      }
+      else if (fields[1].equals("6"))
+      {
+        dataBits = SerialPort.DATABITS_6;
+      }
+      else if (fields[1].equals("7"))
+      {
+        dataBits = SerialPort.DATABITS_7;
+      }
+      else if (fields[1].equals("8"))
+      {
+        dataBits = SerialPort.DATABITS_8;
+      }
+      else
+      {
+        throw new IllegalArgumentException("Invalid data bits: " + fields[1]);
+      }
+    }
+
+    if (fields.length > 2)
+    {
+      String p = fields[2].toUpperCase();
+
+      if (p.equals("N"))
+      {
+        parity = SerialPort.PARITY_NONE;
+      }
+      else if (p.equals("E"))
+      {
+        parity = SerialPort.PARITY_EVEN;
+      }
+      else if (p.equals("O"))
+      {
+        parity = SerialPort.PARITY_ODD;
+      }
+      else if (p.equals("M"))
+      {
+        parity = SerialPort.PARITY_MARK;
+      }
+      else if (p.equals("S"))
+      {
+        parity = SerialPort.PARITY_SPACE;
+      }
+      else
+      {
+        throw new IllegalArgumentException("Invalid parity: " + fields[2]);
+      }
+    }
+
+    if (fields.length > 3)
+    {
+      if (fields[3].equals("1"))
+      {
+        stopBits = SerialPort.STOPBITS_1;
+      }
+      else if (fields[3].equals("1.5"))
+      {
+        stopBits = SerialPort.STOPBITS_1_5;
+      }
+      else if (fields[3].equals("2"))
+      {
+        stopBits = SerialPort.STOPBITS_2;
+      }
+      else
+      {
+        throw new IllegalArgumentException("Invalid stop bits: " + fields[3]);
+      }
+    }
+
+    return new SerialSettings(baudRate, dataBits, stopBits, parity, probe);
+  }
+
+  public int getBaudRate()
+  {
+    return baudRate;
+  }
+
+  public int getDataBits()
+  {
+    return dataBits;
+  }
+
+  public int getStopBits()
+  {
+    return stopBits;
+  }
+
+  public int getParity()
+  {
+    return parity;
+  }
+
+  /**
+   * True if the baud rate should be probed before uploading.
+   */
+  public boolean isProbe()
+  {
+    return probe;
+  }
+
+  /**
+   * Same framing, fixed at the given baud rate.
+   */
+  public SerialSettings withBaudRate(int rate)
+  {
+    return new SerialSettings(rate, dataBits, stopBits, parity, false);
+  }
+
+  public void apply(SerialPort port) throws UnsupportedCommOperationException
+  {
+    port.setSerialPortParams(baudRate, dataBits, stopBits, parity);
+  }
+
+  @Override
+  public String toString()
+  {
+    String p;
+    String s;
+
+    switch (parity)
+    {
+      case SerialPort.PARITY_EVEN:
+        p = "E";
+        break;
+      case SerialPort.PARITY_ODD:
+        p = "O";
+        break;
+      case SerialPort.PARITY_MARK:
+        p = "M";
+        break;
+      case SerialPort.PARITY_SPACE:
+        p = "S";
+        break;
+      case SerialPort.PARITY_NONE:
+      default:
+        p = "N";
+        break;
+    }
+
+    switch (stopBits)
+    {
+      case SerialPort.STOPBITS_1_5:
+        s = "1.5";
+        break;
+      case SerialPort.STOPBITS_2:
+        s = "2";
+        break;
+      case SerialPort.STOPBITS_1:
+      default:
+        s = "1";
+        break;
+    }
+
+    String rate = probe ? "auto" : String.valueOf(baudRate);
+
+    // 8,N,1 is the common case, leave it off
+    if (dataBits == SerialPort.DATABITS_8
+        && parity == SerialPort.PARITY_NONE
+        && stopBits == SerialPort.STOPBITS_1)
+    {
+      return rate;
+    }
+
+    return rate + "," + dataBits + "," + p + "," + s;
+  }
+}
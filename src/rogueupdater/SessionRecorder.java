@@ -0,0 +1,522 @@
+/*
+ * RogueUpdater
+ *
+ * Firmware updater tool for Rogue Robotics products.
+ * http://www.roguerobotics.com/
+ *
+ */
+package rogueupdater;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Records every byte that crosses a Connection, with the time it did, so
+ * that a failed session can be looked at and replayed (SessionReplayer).
+ *
+ * The capture file is a ring buffer, memory mapped: recording is a copy
+ * into the map under a lock, with no system call, and what was recorded
+ * survives the process dying.  When the ring is full the oldest records
+ * are dropped.
+ *
+ * All numbers are big-endian:
+ *
+ *   magic        4  "RSES"
+ *   version      2  1
+ *   flags        2  0
+ *   capacity     4  bytes in the ring
+ *   head         4  where the next record goes, in the ring
+ *   tail         4  where the oldest record is, in the ring
+ *   used         4  bytes of records (and padding) in the ring
+ *   start time   8  ms since the epoch
+ *   ring            capacity bytes
+ *
+ * Each record is a type (1 byte), a length (2) and a time (8, ns since
+ * the recorder was made), then length bytes.  A record never wraps; a
+ * PAD type byte marks the unused end of the ring instead.
+ */
+public class SessionRecorder
+{
+  public static final int DEFAULT_CAPACITY = 1024 * 1024;
+  public static final int VERSION = 1;
+
+  // Record types.
+  public static final int PAD = 0;
+  public static final int SENT = 1;
+  public static final int RECEIVED = 2;
+  // a read that timed out; no data
+  public static final int TIMEOUT = 3;
+  // a connection was opened; the data is its name
+  public static final int OPEN = 4;
+  // the line settings changed; the data is the new SerialSettings
+  public static final int SETTINGS = 5;
+  public static final int CLOSE = 6;
+
+  private static final byte[] MAGIC = { 'R', 'S', 'E', 'S' };
+  private static final int HEADER_SIZE = 4 + 2 + 2 + 4 + 4 + 4 + 4 + 8;
+  // offsets of head, tail and used in the header
+  private static final int HEAD = 12;
+  private static final int TAIL = 16;
+  private static final int USED = 20;
+  private static final int RECORD_HEADER = 1 + 2 + 8;
+  // Longest record; larger writes are split.
+  private static final int MAX_DATA = 4096;
+  private static final int MIN_CAPACITY = 4 * (RECORD_HEADER + MAX_DATA);
+  private static final Charset ASCII = Charset.forName("US-ASCII");
+
+  /**
+   * One recorded event.
+   */
+  public static class Record
+  {
+    private final int type;
+    private final long nanos;
+    private final byte[] data;
+
+    Record(int type, long nanos, byte[] data)
+    {
+      this.type = type;
+      this.nanos = nanos;
+      this.data = data;
+    }
+
+    public int getType()
+    {
+      return type;
+    }
+
+    /**
+     * When it happened, in ns since recording started.
+     */
+    public long getNanos()
+    {
+      return nanos;
+    }
+
+    public byte[] getData()
+    {
+      return data;
+    }
+
+    /**
+     * The data as text, for OPEN and SETTINGS.
+     */
+    public String getText()
+    {
+      return new String(data, ASCII);
+    }
+  }
+
+  private final RandomAccessFile file;
+  private final MappedByteBuffer ring;
+  private final int capacity;
+  private final long startNanos = System.nanoTime();
+  private int head;
+  private int tail;
+  private int used;
+  private boolean closed;
+
+  /**
+   * Start a new capture in file, replacing what was in it.
+   */
+  public SessionRecorder(File file, int capacity) throws IOException
+  {
+    if (capacity < MIN_CAPACITY)
+    {
+      throw new IllegalArgumentException("Capture capacity must be at least "
+                                         + MIN_CAPACITY + " bytes.");
+    }
+
+    this.capacity = capacity;
+    this.file = new RandomAccessFile(file, "rw");
+
+    try
+    {
+      this.file.setLength(HEADER_SIZE + capacity);
+      ring = this.file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+                                        HEADER_SIZE + capacity);
+    }
+    catch (IOException ex)
+    {
+      this.file.close();
+      throw ex;
+    }
+
+    ring.put(MAGIC);
+    ring.putShort((short) VERSION);
+    ring.putShort((short) 0);
+    ring.putInt(capacity);
+    ring.putInt(0);
+    ring.putInt(0);
+    ring.putInt(0);
+    ring.putLong(System.currentTimeMillis());
+  }
+
+  public SessionRecorder(File file) throws IOException
+  {
+    this(file, DEFAULT_CAPACITY);
+  }
+
+  /**
+   * A connection that passes everything through to connection, and
+   * records it here.  Closing it does not stop the recorder, so several
+   * connections (after a reconnect, say) can go into one capture.
+   */
+  public Connection wrap(Connection connection)
+  {
+    byte[] name = connection.getName().getBytes(ASCII);
+
+    record(OPEN, name, 0, name.length);
+
+    return new RecordingConnection(connection);
+  }
+
+  /**
+   * A Reconnector whose connections are recorded here too.
+   */
+  public Uploader.Reconnector wrap(final Uploader.Reconnector reconnector)
+  {
+    return new Uploader.Reconnector()
+    {
+      public Connection reconnect() throws Exception
+      {
+        return wrap(reconnector.reconnect());
+      }
+    };
+  }
+
+  /**
+   * Add a record.  Data longer than a record can hold is split over
+   * several.
+   */
+  public synchronized void record(int type, byte[] b, int off, int len)
+  {
+    if (closed)
+    {
+      return;
+    }
+
+    long nanos = System.nanoTime() - startNanos;
+
+    do
+    {
+      int n = Math.min(len, MAX_DATA);
+
+      put(type, nanos, b, off, n);
+      off += n;
+      len -= n;
+    }
+    while (len > 0);
+  }
+
+  private void put(int type, long nanos, byte[] b, int off, int len)
+  {
+    int size = RECORD_HEADER + len;
+
+    if (head + size > capacity)
+    {
+      // skip the end of the ring; it has to be free first
+      while (used > 0 && tail >= head)
+      {
+        dropOldest();
+      }
+      ring.put(HEADER_SIZE + head, (byte) PAD);
+      used += capacity - head;
+      head = 0;
+    }
+
+    while (used > 0 && tail >= head && tail < head + size)
+    {
+      dropOldest();
+    }
+    if (used == 0)
+    {
+      tail = head;
+    }
+
+    ring.position(HEADER_SIZE + head);
+    ring.put((byte) type);
+    ring.putShort((short) len);
+    ring.putLong(nanos);
+    ring.put(b, off, len);
+
+    head += size;
+    used += size;
+    if (head == capacity)
+    {
+      head = 0;
+    }
+
+    ring.putInt(HEAD, head);
+    ring.putInt(TAIL, tail);
+    ring.putInt(USED, used);
+  }
+
+  private void dropOldest()
+  {
+    if (ring.get(HEADER_SIZE + tail) == PAD)
+    {
+      used -= capacity - tail;
+      tail = 0;
+    }
+    else
+    {
+      int size = RECORD_HEADER + (ring.getShort(HEADER_SIZE + tail + 1) & 0xffff);
+
+      used -= size;
+      tail += size;
+      if (tail == capacity)
+      {
+        tail = 0;
+      }
+    }
+  }
+
+  /**
+   * Stop recording and write everything out.
+   */
+  public synchronized void close() throws IOException
+  {
+    if (closed)
+    {
+      return;
+    }
+
+    closed = true;
+    ring.force();
+    file.close();
+  }
+
+  /**
+   * Read a capture, oldest record first.
+   *
+   * @throws IOException if it is not a capture file, or is damaged
+   */
+  public static List<Record> read(File file) throws IOException
+  {
+    RandomAccessFile in = new RandomAccessFile(file, "r");
+
+    try
+    {
+      long length = in.length();
+
+      if (length < HEADER_SIZE)
+      {
+        throw new IOException("Not a session capture: " + file);
+      }
+
+      MappedByteBuffer map = in.getChannel().map(FileChannel.MapMode.READ_ONLY,
+                                                 0, length);
+      byte[] magic = new byte[MAGIC.length];
+
+      map.get(magic);
+      for (int i = 0; i < MAGIC.length; i++)
+      {
+        if (magic[i] != MAGIC[i])
+        {
+          throw new IOException("Not a session capture: " + file);
+        }
+      }
+
+      int version = map.getShort() & 0xffff;
+
+      if (version > VERSION)
+      {
+        throw new IOException("Unsupported capture version " + version + ".");
+      }
+
+      map.getShort();   // flags, none defined yet
+
+      int capacity = map.getInt();
+      int head = map.getInt();
+      int tail = map.getInt();
+      int used = map.getInt();
+
+      if (capacity != length - HEADER_SIZE || head < 0 || head >= capacity
+          || tail < 0 || tail >= capacity || used < 0 || used > capacity)
+      {
+        throw new IOException("The capture header is damaged.");
+      }
+
+      List<Record> records = new ArrayList<Record>();
+      int position = tail;
+
+      while (used > 0)
+      {
+        int type = map.get(HEADER_SIZE + position);
+
+        if (type == PAD)
+        {
+          used -= capacity - position;
+          position = 0;
+          continue;
+        }
+
+        if (position + RECORD_HEADER > capacity)
+        {
+          throw new IOException("The capture is damaged at " + position + ".");
+        }
+
+        int len = map.getShort(HEADER_SIZE + position + 1) & 0xffff;
+        long nanos = map.getLong(HEADER_SIZE + position + 3);
+        int size = RECORD_HEADER + len;
+
+        if (position + size > capacity || size > used)
+        {
+          throw new IOException("The capture is damaged at " + position + ".");
+        }
+
+        byte[] data = new byte[len];
+
+        map.position(HEADER_SIZE + position + RECORD_HEADER);
+        map.get(data);
+        records.add(new Record(type, nanos, data));
+
+        used -= size;
+        position += size;
+        if (position == capacity)
+        {
+          position = 0;
+        }
+      }
+
+      return records;
+    }
+    finally
+    {
+      in.close();
+    }
+  }
+
+  // The connection seen through the recorder.
+  private class RecordingConnection implements Connection
+  {
+    private final Connection connection;
+    private final InputStream input;
+    private final OutputStream output;
+
+    RecordingConnection(Connection connection)
+    {
+      final InputStream in = connection.getInputStream();
+      final OutputStream out = connection.getOutputStream();
+
+      this.connection = connection;
+
+      input = new InputStream()
+      {
+        private final byte[] one = new byte[1];
+
+        @Override
+        public int read() throws IOException
+        {
+          int b = in.read();
+
+          if (b < 0)
+          {
+            record(TIMEOUT, one, 0, 0);
+          }
+          else
+          {
+            one[0] = (byte) b;
+            record(RECEIVED, one, 0, 1);
+          }
+
+          return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException
+        {
+          int n = in.read(b, off, len);
+
+          if (n < 0)
+          {
+            record(TIMEOUT, b, off, 0);
+          }
+          else if (n > 0)
+          {
+            record(RECEIVED, b, off, n);
+          }
+
+          return n;
+        }
+
+        @Override
+        public int available() throws IOException
+        {
+          return in.available();
+        }
+      };
+
+      output = new OutputStream()
+      {
+        @Override
+        public void write(int b) throws IOException
+        {
+          write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException
+        {
+          // record first: the answer may be back before write() returns
+          record(SENT, b, off, len);
+          out.write(b, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException
+        {
+          out.flush();
+        }
+      };
+    }
+
+    public String getName()
+    {
+      return connection.getName();
+    }
+
+    public InputStream getInputStream()
+    {
+      return input;
+    }
+
+    public OutputStream getOutputStream()
+    {
+      return output;
+    }
+
+    public boolean isBlockingReads()
+    {
+      return connection.isBlockingReads();
+    }
+
+    public void setReceiveTimeout(int timeout) throws IOException
+    {
+      connection.setReceiveTimeout(timeout);
+    }
+
+    public void setSettings(SerialSettings settings) throws IOException
+    {
+      byte[] text = settings.toString().getBytes(ASCII);
+
+      record(SETTINGS, text, 0, text.length);
+      connection.setSettings(settings);
+    }
+
+    public void close()
+    {
+      record(CLOSE, new byte[0], 0, 0);
+      connection.close();
+    }
+  }
+}
@@ -0,0 +1,343 @@
+/*
+ * RogueUpdater
+ *
+ * Firmware updater tool for Rogue Robotics products.
+ * http://www.roguerobotics.com/
+ *
+ */
+package rogueupdater;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Plays a capture made by SessionRecorder back.
+ *
+ * --dump lists the records.  Otherwise the host's side of the session is
+ * sent again, byte for byte and at the same moments, to a port (usually
+ * "sim:", a ModuleSimulator), and what comes back is compared with what
+ * the module answered at the time.  The same bytes at the same times
+ * bring back timing-dependent failures; --speed plays faster or slower.
+ *
+ * Usage: CAPTURE --dump
+ *        CAPTURE [--port PORT] [--serial SETTINGS] [--speed FACTOR]
+ */
+public class SessionReplayer
+{
+  // Receive timeout while replaying (ms); only bounds how long the
+  // reader thread takes to notice the end.
+  private static final int RECEIVE_TIMEOUT = 100;
+  // Time to wait for the last answers after the last byte is sent (ms).
+  private static final int DRAIN_TIME = Uploader.RESPONSE_TIMEOUT;
+
+  private final List<SessionRecorder.Record> records;
+  private double speed = 1.0;
+
+  public SessionReplayer(List<SessionRecorder.Record> records)
+  {
+    this.records = records;
+  }
+
+  /**
+   * Replay faster (> 1) or slower (< 1) than recorded.
+   */
+  public void setSpeed(double speed)
+  {
+    if (speed <= 0)
+    {
+      throw new IllegalArgumentException("Speed must be above 0.");
+    }
+    this.speed = speed;
+  }
+
+  /**
+   * Print every record to out.
+   */
+  public void dump(PrintStream out)
+  {
+    for (SessionRecorder.Record record : records)
+    {
+      StringBuilder sb = new StringBuilder();
+
+      sb.append(String.format("%12.6f ", record.getNanos() / 1e9));
+      switch (record.getType())
+      {
+        case SessionRecorder.SENT:
+          sb.append("> ").append(hex(record.getData()));
+          break;
+        case SessionRecorder.RECEIVED:
+          sb.append("< ").append(hex(record.getData()));
+          break;
+        case SessionRecorder.TIMEOUT:
+          sb.append("  (timeout)");
+          break;
+        case SessionRecorder.OPEN:
+          sb.append("  open ").append(record.getText());
+          break;
+        case SessionRecorder.SETTINGS:
+          sb.append("  settings ").append(record.getText());
+          break;
+        case SessionRecorder.CLOSE:
+          sb.append("  close");
+          break;
+        default:
+          sb.append("  record type ").append(record.getType());
+          break;
+      }
+      out.println(sb);
+    }
+  }
+
+  /**
+   * Send the host's side of the capture to portName, and report how the
+   * answers compare.  Returns true if they matched.
+   */
+  public boolean replay(String portName, SerialSettings settings,
+                        PrintStream out) throws Exception
+  {
+    final ByteArrayOutputStream expected = new ByteArrayOutputStream();
+    final ByteArrayOutputStream actual = new ByteArrayOutputStream();
+    Connection connection = null;
+    Thread reader = null;
+    long sent = 0;
+    long start = System.nanoTime();
+
+    try
+    {
+      for (SessionRecorder.Record record : records)
+      {
+        switch (record.getType())
+        {
+          case SessionRecorder.OPEN:
+            if (connection != null)
+            {
+              // the module was reconnected; so are we
+              stop(reader, connection);
+            }
+            connection = Connections.open(portName, settings, RECEIVE_TIMEOUT);
+            reader = collect(connection, actual);
+            break;
+          case SessionRecorder.SETTINGS:
+            if (connection != null)
+            {
+              connection.setSettings(SerialSettings.parse(record.getText()));
+            }
+            break;
+          case SessionRecorder.SENT:
+            if (connection != null)
+            {
+              waitUntil(start, record.getNanos());
+              connection.getOutputStream().write(record.getData());
+              connection.getOutputStream().flush();
+              sent += record.getData().length;
+            }
+            break;
+          case SessionRecorder.RECEIVED:
+            expected.write(record.getData());
+            break;
+          default:
+            break;
+        }
+      }
+
+      Thread.sleep(DRAIN_TIME);
+    }
+    finally
+    {
+      if (connection != null)
+      {
+        stop(reader, connection);
+      }
+    }
+
+    long elapsed = System.nanoTime() - start;
+    long recorded = records.isEmpty() ? 0
+                    : records.get(records.size() - 1).getNanos();
+    byte[] want;
+    byte[] got;
+
+    synchronized (actual)
+    {
+      want = expected.toByteArray();
+      got = actual.toByteArray();
+    }
+
+    int mismatch = firstMismatch(want, got);
+
+    out.println("Sent:     " + sent + " bytes");
+    out.println("Answers:  " + got.length + " bytes (" + want.length + " recorded)");
+    out.println("Time:     " + (elapsed - DRAIN_TIME * 1000000L) / 1000000
+                + " ms (" + recorded / 1000000 + " ms recorded)");
+    if (mismatch >= 0)
+    {
+      out.println("Differs:  at answer byte " + mismatch);
+    }
+    else
+    {
+      out.println("Matches the capture.");
+    }
+
+    return mismatch < 0;
+  }
+
+  /*
+   * Sleep until nanos (scaled by speed) after start.
+   */
+  private void waitUntil(long start, long nanos) throws InterruptedException
+  {
+    long wait = start + (long) (nanos / speed) - System.nanoTime();
+
+    if (wait > 0)
+    {
+      TimeUnit.NANOSECONDS.sleep(wait);
+    }
+  }
+
+  /*
+   * Copy everything connection receives into into, on a thread of its own.
+   */
+  private static Thread collect(final Connection connection,
+                                final ByteArrayOutputStream into)
+  {
+    Thread reader = new Thread(new Runnable()
+    {
+      public void run()
+      {
+        InputStream in = connection.getInputStream();
+        byte[] buffer = new byte[Uploader.MAX_FRAME_SIZE];
+
+        try
+        {
+          while (!Thread.currentThread().isInterrupted())
+          {
+            if (!connection.isBlockingReads() && in.available() <= 0)
+            {
+              Thread.sleep(1);
+              continue;
+            }
+
+            int n = in.read(buffer, 0, buffer.length);
+
+            if (n > 0)
+            {
+              synchronized (into)
+              {
+                into.write(buffer, 0, n);
+              }
+            }
+          }
+        }
+        catch (IOException ex)
+        {
+          // closed
+        }
+        catch (InterruptedException ex)
+        {
+          // stopped
+        }
+      }
+    }, "session-replay-reader");
+
+    reader.setDaemon(true);
+    reader.start();
+
+    return reader;
+  }
+
+  private static void stop(Thread reader, Connection connection)
+    throws InterruptedException
+  {
+    reader.interrupt();
+    reader.join(RECEIVE_TIMEOUT * 2);
+    connection.close();
+  }
+
+  private static int firstMismatch(byte[] a, byte[] b)
+  {
+    int n = Math.min(a.length, b.length);
+
+    for (int i = 0; i < n; i++)
+    {
+      if (a[i] != b[i])
+      {
+        return i;
+      }
+    }
+
+    return a.length == b.length ? -1 : n;
+  }
+
+  private static String hex(byte[] data)
+  {
+    StringBuilder sb = new StringBuilder(data.length * 3);
+
+    for (byte b : data)
+    {
+      if (sb.length() > 0)
+      {
+        sb.append(' ');
+      }
+      sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+      sb.append(Character.forDigit(b & 0xf, 16));
+    }
+
+    return sb.toString();
+  }
+
+  public static void main(String args[]) throws Exception
+  {
+    String fileName = null;
+    String portName = Connections.SIMULATOR_PREFIX;
+    SerialSettings settings = SerialSettings.DEFAULT;
+    boolean dump = false;
+    double speed = 1.0;
+
+    for (int i = 0; i < args.length; i++)
+    {
+      if (args[i].equals("--dump"))
+      {
+        dump = true;
+      }
+      else if (args[i].equals("--port") && i + 1 < args.length)
+      {
+        portName = args[++i];
+      }
+      else if (args[i].equals("--serial") && i + 1 < args.length)
+      {
+        settings = SerialSettings.parse(args[++i]);
+      }
+      else if (args[i].equals("--speed") && i + 1 < args.length)
+      {
+        speed = Double.parseDouble(args[++i]);
+      }
+      else
+      {
+        fileName = args[i];
+      }
+    }
+
+    if (fileName == null)
+    {
+      System.err.println("Usage: CAPTURE --dump");
+      System.err.println("       CAPTURE [--port PORT] [--serial SETTINGS] [--speed FACTOR]");
+      System.exit(1);
+    }
+
+    SessionReplayer replayer = new SessionReplayer(
+      SessionRecorder.read(new File(fileName)));
+
+    if (dump)
+    {
+      replayer.dump(System.out);
+      return;
+    }
+
+    replayer.setSpeed(speed);
+    System.exit(replayer.replay(portName, settings, System.out) ? 0 : 1);
+  }
+}
@@ -0,0 +1,182 @@
+/*
+ * RogueUpdater
+ *
+ * Firmware updater tool for Rogue Robotics products.
+ * http://www.roguerobotics.com/
+ *
+ */
+package rogueupdater;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Measures how long the UI takes to start, so that slow startup is
+ * noticed.
+ *
+ * Starts the UI in a fresh JVM several times, each told to exit once its
+ * window is open and the native library is loaded, and reports the
+ * times the UI printed, measured from the start of its JVM:
+ *
+ *   window   the window has opened
+ *   library  the RXTX library is loaded (or has failed to)
+ *
+ * Usage: [--runs N] [--max MS]
+ *
+ * With --max, exits with 3 if the median time to the window is over MS.
+ * Needs a display.
+ */
+public class StartupBenchmark
+{
+  private static final int DEFAULT_RUNS = 10;
+  private static final Pattern STARTUP =
+    Pattern.compile("Startup: window (-?\\d+) ms, library (-?\\d+) ms");
+
+  private StartupBenchmark()
+  {
+  }
+
+  /*
+   * Start the UI once and return the times it printed, or null if it
+   * printed none.
+   */
+  private static long[] run() throws IOException, InterruptedException
+  {
+    String java = System.getProperty("java.home") + File.separator + "bin"
+                  + File.separator + "java";
+    List<String> command = new ArrayList<String>();
+
+    command.add(java);
+    command.add("-cp");
+    command.add(System.getProperty("java.class.path"));
+    if (System.getProperty("java.library.path") != null)
+    {
+      command.add("-Djava.library.path=" + System.getProperty("java.library.path"));
+    }
+    command.add("-D" + RogueUpdaterUI.STARTUP_EXIT_PROPERTY + "=true");
+    command.add(RogueUpdater.class.getName());
+
+    Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+    BufferedReader in = new BufferedReader(
+      new InputStreamReader(process.getInputStream()));
+    long[] times = null;
+    String last = null;
+    String line;
+
+    try
+    {
+      while ((line = in.readLine()) != null)
+      {
+        Matcher m = STARTUP.matcher(line);
+
+        if (m.find())
+        {
+          times = new long[] { Long.parseLong(m.group(1)),
+                               Long.parseLong(m.group(2)) };
+        }
+        last = line;
+      }
+    }
+    finally
+    {
+      in.close();
+    }
+
+    process.waitFor();
+
+    if (times == null)
+    {
+      System.err.println("The UI didn't start (exit code " + process.exitValue()
+                         + "): " + last);
+    }
+
+    return times;
+  }
+
+  private static String summary(long[] values)
+  {
+    long[] sorted = values.clone();
+
+    Arrays.sort(sorted);
+
+    return "min " + sorted[0] + " ms, median " + sorted[sorted.length / 2]
+           + " ms, max " + sorted[sorted.length - 1] + " ms";
+  }
+
+  public static void main(String args[]) throws IOException, InterruptedException
+  {
+    int runs = DEFAULT_RUNS;
+    long max = -1;
+
+    try
+    {
+      for (int i = 0; i < args.length; i++)
+      {
+        if (args[i].equals("--runs") && i + 1 < args.length)
+        {
+          runs = Integer.parseInt(args[++i]);
+        }
+        else if (args[i].equals("--max") && i + 1 < args.length)
+        {
+          max = Long.parseLong(args[++i]);
+        }
+        else
+        {
+          System.err.println("Usage: [--runs N] [--max MS]");
+          System.exit(1);
+        }
+      }
+    }
+    catch (NumberFormatException ex)
+    {
+      System.err.println(ex.getMessage());
+      System.exit(1);
+    }
+
+    if (runs < 1)
+    {
+      System.err.println("--runs must be at least 1");
+      System.exit(1);
+    }
+
+    long[] window = new long[runs];
+    long[] library = new long[runs];
+
+    for (int i = 0; i < runs; i++)
+    {
+      long[] times = run();
+
+      if (times == null)
+      {
+        System.exit(2);
+      }
+
+      window[i] = times[0];
+      library[i] = times[1];
+      System.out.println("Run " + (i + 1) + ": window " + times[0]
+                         + " ms, library " + times[1] + " ms");
+    }
+
+    System.out.println("Window:  " + summary(window));
+    System.out.println("Library: " + summary(library));
+
+    if (max >= 0)
+    {
+      long[] sorted = window.clone();
+
+      Arrays.sort(sorted);
+      if (sorted[runs / 2] > max)
+      {
+        System.err.println("The window took longer than " + max + " ms to open.");
+        System.exit(3);
+      }
+    }
+  }
+}
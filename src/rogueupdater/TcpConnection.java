@@ -0,0 +1,266 @@
+/*
+ * RogueUpdater
+ *
+ * Firmware updater tool for Rogue Robotics products.
+ * http://www.roguerobotics.com/
+ *
+ */
+package rogueupdater;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+
+/**
+ * A raw TCP link to a serial-over-TCP bridge (ser2net in raw mode, or a
+ * terminal server), carrying the same byte stream as the serial line.
+ *
+ * The channel is non-blocking; reads wait on a selector so that they time
+ * out like a serial port with a receive timeout.  The bridge owns the
+ * serial line settings, so setSettings() cannot change them.
+ */
+public class TcpConnection implements Connection
+{
+  // Time to wait for the bridge to accept the connection (ms).
+  private static final int CONNECT_TIMEOUT = 2000;
+
+  private final String name;
+  private final SocketChannel channel;
+  private final Selector readSelector;
+  private final Selector writeSelector;
+  private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(4096);
+  private final byte[] one = new byte[1];
+  private ByteBuffer writeBuffer = ByteBuffer.allocate(0);
+  private volatile int receiveTimeout;
+
+  private final InputStream input = new InputStream()
+  {
+    @Override
+    public int read() throws IOException
+    {
+      return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException
+    {
+      return TcpConnection.this.read(b, off, len);
+    }
+
+    @Override
+    public int available() throws IOException
+    {
+      return TcpConnection.this.available();
+    }
+  };
+
+  private final OutputStream output = new OutputStream()
+  {
+    @Override
+    public void write(int b) throws IOException
+    {
+      write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException
+    {
+      TcpConnection.this.write(b, off, len);
+    }
+  };
+
+  private TcpConnection(String name, SocketChannel channel) throws IOException
+  {
+    this.name = name;
+    this.channel = channel;
+
+    channel.configureBlocking(false);
+    readSelector = Selector.open();
+    writeSelector = Selector.open();
+    channel.register(readSelector, SelectionKey.OP_READ);
+    channel.register(writeSelector, SelectionKey.OP_WRITE);
+
+    // nothing buffered yet
+    readBuffer.flip();
+  }
+
+  /**
+   * Connect to host:port.
+   */
+  public static TcpConnection open(String host, int port) throws IOException
+  {
+    SocketChannel channel = SocketChannel.open();
+
+    try
+    {
+      channel.socket().connect(new InetSocketAddress(host, port),
+                               CONNECT_TIMEOUT);
+      channel.socket().setTcpNoDelay(true);
+
+      return new TcpConnection("tcp://" + host + ":" + port, channel);
+    }
+    catch (IOException ex)
+    {
+      channel.close();
+      throw ex;
+    }
+  }
+
+  /**
+   * Wrap an already connected channel, e.g. one accepted by a server.
+   */
+  public static TcpConnection wrap(String name, SocketChannel channel)
+    throws IOException
+  {
+    return new TcpConnection(name, channel);
+  }
+
+  public String getName()
+  {
+    return name;
+  }
+
+  public InputStream getInputStream()
+  {
+    return input;
+  }
+
+  public OutputStream getOutputStream()
+  {
+    return output;
+  }
+
+  public boolean isBlockingReads()
+  {
+    return true;
+  }
+
+  public void setReceiveTimeout(int timeout)
+  {
+    receiveTimeout = timeout;
+  }
+
+  public void setSettings(SerialSettings settings)
+  {
+    // The bridge's serial side is configured on the bridge.
+  }
+
+  public void close()
+  {
+    try
+    {
+      readSelector.close();
+      writeSelector.close();
+      channel.close();
+    }
+    catch (IOException ignore)
+    {
+    }
+  }
+
+  /*
+   * Pull whatever the channel has into readBuffer without waiting.
+   * Returns false at end of stream.
+   */
+  private boolean fill() throws IOException
+  {
+    readBuffer.compact();
+
+    try
+    {
+      return channel.read(readBuffer) >= 0;
+    }
+    finally
+    {
+      readBuffer.flip();
+    }
+  }
+
+  private synchronized int available() throws IOException
+  {
+    if (!readBuffer.hasRemaining())
+    {
+      fill();
+    }
+
+    return readBuffer.remaining();
+  }
+
+  private synchronized int read(byte[] b, int off, int len) throws IOException
+  {
+    if (len == 0)
+    {
+      return 0;
+    }
+
+    int timeout = receiveTimeout;
+
+    while (!readBuffer.hasRemaining())
+    {
+      if (!fill())
+      {
+        throw new IOException("Connection closed by " + name + ".");
+      }
+
+      if (readBuffer.hasRemaining())
+      {
+        break;
+      }
+
+      // nothing there yet; wait for it, or give up like a serial port
+      int ready = readSelector.select(timeout);
+
+      readSelector.selectedKeys().clear();
+
+      if (ready == 0 && timeout > 0)
+      {
+        if (!fill())
+        {
+          throw new IOException("Connection closed by " + name + ".");
+        }
+        if (!readBuffer.hasRemaining())
+        {
+          return -1;
+        }
+      }
+    }
+
+    int n = Math.min(len, readBuffer.remaining());
+
+    readBuffer.get(b, off, n);
+
+    return n;
+  }
+
+  private void write(byte[] b, int off, int len) throws IOException
+  {
+    synchronized (writeSelector)
+    {
+      // frames all come from the same image, so keep its wrapper around
+      if (writeBuffer.array() != b)
+      {
+        writeBuffer = ByteBuffer.wrap(b);
+      }
+      writeBuffer.limit(off + len);
+      writeBuffer.position(off);
+
+      while (writeBuffer.hasRemaining())
+      {
+        if (channel.write(writeBuffer) == 0)
+        {
+          if (writeSelector.select(Uploader.RESPONSE_TIMEOUT) == 0)
+          {
+            throw new SocketTimeoutException("Write to " + name + " timed out.");
+          }
+          writeSelector.selectedKeys().clear();
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,946 @@
+/*
+ * RogueUpdater
+ *
+ * Firmware updater tool for Rogue Robotics products.
+ * http://www.roguerobotics.com/
+ *
+ */
+package rogueupdater;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Flashing over HTTP, for test sequencers and production software to
+ * drive without the UI.
+ *
+ *   GET  /images               the images in the catalog
+ *   POST /images?name=FILE     add the firmware in the body to the catalog
+ *                              as FILE; with &sha256=HEX, only if it
+ *                              matches.  It must also pass
+ *                              FirmwareVerifier, e.g. against a
+ *                              SHA256SUMS in the directory
+ *   POST /jobs?image=ID&port=PORT[&port=PORT ...][&serial=SETTINGS]
+ *             [&window=N][&retries=N]
+ *                              flash catalog image ID to each port
+ *   GET  /jobs                 every job, oldest first
+ *   GET  /jobs/N               one job
+ *   GET  /events[?job=N]       progress, connection status and results as
+ *                              server-sent events; with job, until that
+ *                              job is over
+ *
+ * Replies are JSON.  Images stay decoded in a FirmwareCatalog, which
+ * follows its directory, and ports stay open between jobs (see
+ * FleetUploader.setKeepPortsOpen()), so a job costs little more than the
+ * flashing itself.
+ *
+ * It listens on the loopback interface only: anyone who can reach it can
+ * flash any port.  So that a web page open in a browser on the same
+ * machine can't, requests must name this address in Host (no DNS
+ * rebinding) and in Origin if they have one, and a POST must carry the
+ * token printed at startup in an X-Updater-Token header, which a page
+ * can't send without a CORS preflight that is never granted.  The token
+ * is random unless the rogueupdater.token property sets it.
+ */
+public class UpdaterDaemon
+{
+  public static final int DEFAULT_JOBS = 32;
+  // Largest firmware file accepted.
+  private static final int MAX_IMAGE_SIZE = 64 * 1024 * 1024;
+  // Finished jobs remembered for GET /jobs.
+  private static final int MAX_HISTORY = 1000;
+  // Events waiting for a slow client; progress beyond this is dropped.
+  private static final int MAX_QUEUED_EVENTS = 1000;
+  // Time between comments on an idle event stream, to notice clients
+  // that have gone (ms).
+  private static final int KEEPALIVE_INTERVAL = 15000;
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+  public static final String TOKEN_HEADER = "X-Updater-Token";
+  // Names of the loopback interface a client may use in Host and Origin.
+  private static final String[] LOCAL_NAMES =
+  {
+    "127.0.0.1", "localhost", "[::1]"
+  };
+
+  // A job, as the daemon knows it.
+  private static class Tracked
+  {
+    final int id;
+    final String imageId;
+    final FleetUploader.Job job;
+
+    Tracked(int id, String imageId, FleetUploader.Job job)
+    {
+      this.id = id;
+      this.imageId = imageId;
+      this.job = job;
+    }
+
+    boolean isFinished()
+    {
+      return job.getState() == FleetUploader.State.DONE
+             || job.getState() == FleetUploader.State.FAILED;
+    }
+
+    String toJson()
+    {
+      UploadProgress progress = job.getUploadProgress();
+      StringBuilder sb = new StringBuilder();
+
+      sb.append("{\"id\":").append(id)
+        .append(",\"image\":").append(UploadMetrics.quote(imageId))
+        .append(",\"port\":").append(UploadMetrics.quote(job.getPortName()))
+        .append(",\"state\":").append(UploadMetrics.quote(job.getState().name()))
+        .append(",\"progress\":").append(progress != null ? progress.toJson() : "null");
+      if (isFinished())
+      {
+        sb.append(",\"result\":")
+          .append(job.getResult() != null ? UploadMetrics.quote(job.getResult().name())
+                                          : "null")
+          .append(",\"error\":")
+          .append(job.getError() != null ? UploadMetrics.quote(job.getError().toString())
+                                         : "null")
+          .append(",\"metrics\":")
+          .append(job.getMetrics() != null ? job.getMetrics().toJson() : "null");
+      }
+
+      return sb.append("}").toString();
+    }
+  }
+
+  // An open event stream: the job it follows (0 for all) and its events.
+  private static class Subscriber
+  {
+    final int jobId;
+    final BlockingQueue<String> events =
+      new LinkedBlockingQueue<String>(MAX_QUEUED_EVENTS);
+
+    Subscriber(int jobId)
+    {
+      this.jobId = jobId;
+    }
+  }
+
+  // A request that can't be served, and the HTTP status to say so with.
+  private static class RequestException extends Exception
+  {
+    private static final long serialVersionUID = 1L;
+
+    final int status;
+
+    RequestException(int status, String message)
+    {
+      super(message);
+      this.status = status;
+    }
+  }
+
+  private final FirmwareCatalog catalog;
+  private final FleetUploader uploader;
+  private final FirmwareVerifier verifier = new FirmwareVerifier();
+  // guarded by itself
+  private final Map<Integer, Tracked> jobs = new LinkedHashMap<Integer, Tracked>();
+  private final Map<FleetUploader.Job, Tracked> byJob =
+    new HashMap<FleetUploader.Job, Tracked>();
+  private final List<Subscriber> subscribers = new CopyOnWriteArrayList<Subscriber>();
+  private final AtomicInteger uploadCount = new AtomicInteger();
+  private final String token;
+  // what Host may be, and Origin with http:// in front; set by start()
+  private volatile Set<String> hosts = new HashSet<String>();
+  private final CountDownLatch stopped = new CountDownLatch(1);
+  private ExecutorService executor;
+  private HttpServer server;
+  private int nextId = 1;
+
+  /**
+   * A daemon serving the images in catalog, flashing at most maxJobs
+   * ports at a time.
+   */
+  public UpdaterDaemon(FirmwareCatalog catalog, int maxJobs)
+  {
+    this.catalog = catalog;
+
+    String fixed = System.getProperty("rogueupdater.token");
+
+    token = fixed != null ? fixed : randomToken();
+
+    uploader = new FleetUploader(maxJobs);
+    uploader.setKeepPortsOpen(true);
+    uploader.setListener(new FleetUploader.Listener()
+    {
+      public void progressChanged(FleetUploader.Job job, UploadProgress progress)
+      {
+        publish(job, "progress");
+      }
+
+      public void statusChanged(FleetUploader.Job job, String status)
+      {
+        publish(job, "status", status);
+      }
+
+      public void jobFinished(FleetUploader.Job job)
+      {
+        publish(job, "finished");
+      }
+    });
+  }
+
+  /**
+   * The value POST requests must give in TOKEN_HEADER.
+   */
+  public String getToken()
+  {
+    return token;
+  }
+
+  /**
+   * Start listening on port (0 for any free one) of the loopback
+   * interface, and return the port.
+   */
+  public synchronized int start(int port) throws IOException
+  {
+    server = HttpServer.create(
+      new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+
+    // event streams hold a thread each for as long as they are open
+    executor = Executors.newCachedThreadPool(new ThreadFactory()
+    {
+      private final AtomicInteger count = new AtomicInteger();
+
+      public Thread newThread(Runnable r)
+      {
+        Thread t = new Thread(r, "http-" + count.incrementAndGet());
+        t.setDaemon(true);
+        return t;
+      }
+    });
+    server.setExecutor(executor);
+
+    server.createContext("/images", new Handler()
+    {
+      void handle(HttpExchange exchange, String method, String path)
+        throws IOException, RequestException, InterruptedException
+      {
+        if (!path.equals("/images"))
+        {
+          throw new RequestException(404, "Not found: " + path);
+        }
+        if (method.equals("GET"))
+        {
+          List<String> list = new ArrayList<String>();
+
+          for (FirmwareCatalog.Entry entry : catalog.getEntries())
+          {
+            list.add(entry.toJson());
+          }
+          reply(exchange, 200, array(list));
+        }
+        else if (method.equals("POST"))
+        {
+          reply(exchange, 201, addImage(exchange).toJson());
+        }
+        else
+        {
+          throw new RequestException(405, "Use GET or POST.");
+        }
+      }
+    });
+
+    server.createContext("/jobs", new Handler()
+    {
+      void handle(HttpExchange exchange, String method, String path)
+        throws IOException, RequestException
+      {
+        if (path.equals("/jobs") && method.equals("GET"))
+        {
+          List<String> list = new ArrayList<String>();
+
+          for (Tracked tracked : getJobs())
+          {
+            list.add(tracked.toJson());
+          }
+          reply(exchange, 200, array(list));
+        }
+        else if (path.equals("/jobs") && method.equals("POST"))
+        {
+          List<String> list = new ArrayList<String>();
+
+          for (Tracked tracked : submit(parseQuery(exchange)))
+          {
+            list.add(tracked.toJson());
+          }
+          reply(exchange, 201, array(list));
+        }
+        else if (method.equals("GET"))
+        {
+          reply(exchange, 200, find(path.substring("/jobs/".length())).toJson());
+        }
+        else
+        {
+          throw new RequestException(405, "Use GET, or POST to /jobs.");
+        }
+      }
+    });
+
+    server.createContext("/events", new Handler()
+    {
+      void handle(HttpExchange exchange, String method, String path)
+        throws IOException, RequestException, InterruptedException
+      {
+        if (!path.equals("/events"))
+        {
+          throw new RequestException(404, "Not found: " + path);
+        }
+        if (!method.equals("GET"))
+        {
+          throw new RequestException(405, "Use GET.");
+        }
+
+        List<String> job = parseQuery(exchange).get("job");
+
+        stream(exchange, job != null ? find(job.get(0)) : null);
+      }
+    });
+
+    port = server.getAddress().getPort();
+
+    Set<String> names = new HashSet<String>();
+
+    for (String name : LOCAL_NAMES)
+    {
+      names.add(name + ":" + port);
+      if (port == 80)
+      {
+        names.add(name);
+      }
+    }
+    hosts = names;
+
+    server.start();
+
+    return port;
+  }
+
+  /**
+   * Stop listening, abandon running jobs and close the ports.
+   */
+  public synchronized void stop()
+  {
+    if (server != null)
+    {
+      server.stop(0);
+      executor.shutdownNow();
+      server = null;
+    }
+    uploader.shutdownNow();
+    stopped.countDown();
+  }
+
+  /**
+   * Wait for stop().
+   */
+  public void join() throws InterruptedException
+  {
+    stopped.await();
+  }
+
+  /*
+   * Refuse a request a web page could have made (see above).
+   */
+  private void checkClient(HttpExchange exchange, String method)
+    throws RequestException
+  {
+    Headers headers = exchange.getRequestHeaders();
+    String host = headers.getFirst("Host");
+    String origin = headers.getFirst("Origin");
+
+    if (host == null || !hosts.contains(host.toLowerCase()))
+    {
+      throw new RequestException(403, "Not an address of this server: " + host);
+    }
+    if (origin != null
+        && !(origin.startsWith("http://")
+             && hosts.contains(origin.substring("http://".length()).toLowerCase())))
+    {
+      throw new RequestException(403, "Cross-origin requests are not allowed: "
+                                      + origin);
+    }
+
+    String given = headers.getFirst(TOKEN_HEADER);
+
+    if (method.equals("POST")
+        && (given == null
+            || !MessageDigest.isEqual(given.getBytes(UTF8), token.getBytes(UTF8))))
+    {
+      throw new RequestException(403, "Missing or wrong " + TOKEN_HEADER + ".");
+    }
+  }
+
+  private static String randomToken()
+  {
+    byte[] bytes = new byte[16];
+
+    new SecureRandom().nextBytes(bytes);
+
+    return FirmwareCache.toHex(bytes);
+  }
+
+  /*
+   * Save the request body in the catalog directory and load it.
+   */
+  private FirmwareCatalog.Entry addImage(HttpExchange exchange)
+    throws IOException, RequestException, InterruptedException
+  {
+    Map<String, List<String>> query = parseQuery(exchange);
+    String name = one(query, "name");
+    String sha256 = query.containsKey("sha256") ? one(query, "sha256") : null;
+
+    if (name.contains("/") || name.contains("\\") || name.startsWith(".")
+        || !FirmwareVerifier.isFirmware(name))
+    {
+      throw new RequestException(400, "Not a firmware file name: " + name);
+    }
+
+    File file = new File(catalog.getDirectory(), name);
+    // not a firmware name, so the catalog's watcher passes it by
+    File temp = new File(catalog.getDirectory(),
+                         ".upload-" + uploadCount.incrementAndGet() + ".tmp");
+
+    try
+    {
+      copy(exchange.getRequestBody(), temp);
+
+      String actual = FirmwareCache.hash(temp);
+
+      if (sha256 != null && !sha256.equalsIgnoreCase(actual))
+      {
+        throw new RequestException(400, "SHA-256 mismatch: expected " + sha256
+                                        + ", got " + actual);
+      }
+
+      if (!temp.renameTo(file))
+      {
+        // Windows won't rename over a file
+        if (!file.delete() || !temp.renameTo(file))
+        {
+          throw new IOException("Can't replace " + file);
+        }
+      }
+    }
+    finally
+    {
+      temp.delete();
+    }
+
+    // checked under its own name, which its digest may be listed by
+    FirmwareVerifier.Result check = verifier.verify(file);
+
+    if (check.getStatus() == FirmwareVerifier.Status.MISMATCH)
+    {
+      // the watcher drops it from the catalog
+      file.delete();
+      throw new RequestException(400, "The firmware file is damaged: " + check);
+    }
+    if (check.getStatus() == FirmwareVerifier.Status.ERROR)
+    {
+      file.delete();
+      throw new RequestException(400, "This is not a valid Rogue Firmware update file: "
+                                      + check.getError().getMessage());
+    }
+
+    FirmwareCatalog.Entry entry = catalog.add(file);
+
+    if (entry == null)
+    {
+      throw new IOException("Can't read " + file + " back.");
+    }
+    if (!entry.isValid())
+    {
+      // the watcher drops it from the catalog
+      file.delete();
+      throw new RequestException(400, "This is not a valid Rogue Firmware update file: "
+                                      + entry.getError().getMessage());
+    }
+
+    return entry;
+  }
+
+  private static void copy(InputStream in, File file)
+    throws IOException, RequestException
+  {
+    OutputStream out = new FileOutputStream(file);
+    byte[] buffer = new byte[64 * 1024];
+    long total = 0;
+    int n;
+
+    try
+    {
+      while ((n = in.read(buffer)) > 0)
+      {
+        total += n;
+        if (total > MAX_IMAGE_SIZE)
+        {
+          throw new RequestException(413, "Firmware files are at most "
+                                          + MAX_IMAGE_SIZE + " bytes.");
+        }
+        out.write(buffer, 0, n);
+      }
+    }
+    finally
+    {
+      out.close();
+    }
+  }
+
+  private List<Tracked> submit(Map<String, List<String>> query)
+    throws RequestException
+  {
+    String imageId = one(query, "image");
+    List<String> ports = query.get("port");
+    SerialSettings settings = SerialSettings.DEFAULT;
+    int windowSize = 1;
+    int maxRetries = Uploader.MAX_RETRIES;
+
+    if (ports == null)
+    {
+      throw new RequestException(400, "Missing port.");
+    }
+
+    try
+    {
+      if (query.containsKey("serial"))
+      {
+        settings = SerialSettings.parse(one(query, "serial"));
+      }
+      if (query.containsKey("window"))
+      {
+        windowSize = Uploader.checkWindow(Integer.parseInt(one(query, "window")));
+      }
+      if (query.containsKey("retries"))
+      {
+        maxRetries = Integer.parseInt(one(query, "retries"));
+      }
+    }
+    catch (IllegalArgumentException ex)
+    {
+      throw new RequestException(400, ex.getMessage());
+    }
+
+    FirmwareCatalog.Entry entry = catalog.get(imageId);
+
+    if (entry == null)
+    {
+      throw new RequestException(404, "No image " + imageId);
+    }
+    if (!entry.isValid())
+    {
+      throw new RequestException(400, "This is not a valid Rogue Firmware update file: "
+                                      + entry.getError().getMessage());
+    }
+
+    List<Tracked> submitted = new ArrayList<Tracked>();
+
+    // hold the lock so the listener can't look a job up before it is in
+    synchronized (jobs)
+    {
+      for (String port : ports)
+      {
+        FleetUploader.Job job = uploader.submit(port, entry.getImage(),
+                                                settings, windowSize, maxRetries);
+        Tracked tracked = new Tracked(nextId++, entry.getId(), job);
+
+        jobs.put(tracked.id, tracked);
+        byJob.put(job, tracked);
+        submitted.add(tracked);
+      }
+      prune();
+    }
+
+    return submitted;
+  }
+
+  /*
+   * Forget the oldest finished jobs beyond MAX_HISTORY.
+   */
+  private void prune()
+  {
+    Iterator<Tracked> it = jobs.values().iterator();
+    int excess = jobs.size() - MAX_HISTORY;
+
+    while (excess > 0 && it.hasNext())
+    {
+      Tracked tracked = it.next();
+
+      if (tracked.isFinished())
+      {
+        it.remove();
+        byJob.remove(tracked.job);
+        uploader.remove(tracked.job);
+        excess--;
+      }
+    }
+  }
+
+  private List<Tracked> getJobs()
+  {
+    synchronized (jobs)
+    {
+      return new ArrayList<Tracked>(jobs.values());
+    }
+  }
+
+  private Tracked find(String id) throws RequestException
+  {
+    Tracked tracked = null;
+
+    try
+    {
+      synchronized (jobs)
+      {
+        tracked = jobs.get(Integer.parseInt(id));
+      }
+    }
+    catch (NumberFormatException ex)
+    {
+      // no such job
+    }
+
+    if (tracked == null)
+    {
+      throw new RequestException(404, "No job " + id);
+    }
+
+    return tracked;
+  }
+
+  /*
+   * Pass an event about job to the streams following it.
+   */
+  private void publish(FleetUploader.Job job, String type)
+  {
+    publish(job, type, null);
+  }
+
+  /*
+   * Same, with status for a "status" event in place of the whole job.
+   */
+  private void publish(FleetUploader.Job job, String type, String status)
+  {
+    Tracked tracked;
+
+    synchronized (jobs)
+    {
+      tracked = byJob.get(job);
+    }
+
+    if (tracked == null)
+    {
+      return;
+    }
+
+    String data = status == null ? tracked.toJson()
+                  : "{\"id\":" + tracked.id
+                    + ",\"port\":" + UploadMetrics.quote(job.getPortName())
+                    + ",\"status\":" + UploadMetrics.quote(status) + "}";
+    String event = "event: " + type + "\ndata: " + data + "\n\n";
+
+    for (Subscriber subscriber : subscribers)
+    {
+      if (subscriber.jobId == 0 || subscriber.jobId == tracked.id)
+      {
+        // progress is dropped for a client that isn't keeping up; the
+        // next report supersedes it anyway
+        if (!subscriber.events.offer(event) && type.equals("finished"))
+        {
+          subscriber.events.clear();
+          subscriber.events.offer(event);
+        }
+      }
+    }
+  }
+
+  /*
+   * Send events to the client until it goes away, or the job is over if
+   * following one.
+   */
+  private void stream(HttpExchange exchange, Tracked tracked)
+    throws IOException, InterruptedException
+  {
+    Subscriber subscriber = new Subscriber(tracked != null ? tracked.id : 0);
+
+    subscribers.add(subscriber);
+    try
+    {
+      exchange.getResponseHeaders().set("Content-Type",
+                                        "text/event-stream; charset=utf-8");
+      exchange.getResponseHeaders().set("Cache-Control", "no-cache");
+      // length 0: chunked, for as long as it takes
+      exchange.sendResponseHeaders(200, 0);
+
+      OutputStream out = exchange.getResponseBody();
+
+      // a job that ended before we subscribed
+      if (tracked != null && tracked.isFinished())
+      {
+        out.write(("event: finished\ndata: " + tracked.toJson() + "\n\n").getBytes(UTF8));
+        out.close();
+        return;
+      }
+
+      while (true)
+      {
+        String event = subscriber.events.poll(KEEPALIVE_INTERVAL,
+                                              TimeUnit.MILLISECONDS);
+
+        out.write((event != null ? event : ": keepalive\n\n").getBytes(UTF8));
+        out.flush();
+
+        if (tracked != null && event != null && event.startsWith("event: finished"))
+        {
+          break;
+        }
+      }
+      out.close();
+    }
+    finally
+    {
+      subscribers.remove(subscriber);
+    }
+  }
+
+  private static Map<String, List<String>> parseQuery(HttpExchange exchange)
+    throws RequestException
+  {
+    Map<String, List<String>> query = new HashMap<String, List<String>>();
+    String raw = exchange.getRequestURI().getRawQuery();
+
+    if (raw == null)
+    {
+      return query;
+    }
+
+    try
+    {
+      for (String pair : raw.split("&"))
+      {
+        int equals = pair.indexOf('=');
+
+        if (pair.isEmpty())
+        {
+          continue;
+        }
+
+        String key = URLDecoder.decode(equals < 0 ? pair : pair.substring(0, equals),
+                                       "UTF-8");
+        String value = equals < 0 ? ""
+                       : URLDecoder.decode(pair.substring(equals + 1), "UTF-8");
+        List<String> values = query.get(key);
+
+        if (values == null)
+        {
+          values = new ArrayList<String>();
+          query.put(key, values);
+        }
+        values.add(value);
+      }
+    }
+    catch (UnsupportedEncodingException ex)
+    {
+      throw new IllegalStateException(ex);
+    }
+    catch (IllegalArgumentException ex)
+    {
+      throw new RequestException(400, "Bad query: " + ex.getMessage());
+    }
+
+    return query;
+  }
+
+  private static String one(Map<String, List<String>> query, String key)
+    throws RequestException
+  {
+    List<String> values = query.get(key);
+
+    if (values == null || values.size() != 1)
+    {
+      throw new RequestException(400, "Give exactly one " + key + ".");
+    }
+
+    return values.get(0);
+  }
+
+  private static String array(List<String> items)
+  {
+    StringBuilder sb = new StringBuilder("[");
+
+    for (String item : items)
+    {
+      if (sb.length() > 1)
+      {
+        sb.append(",\n ");
+      }
+      sb.append(item);
+    }
+
+    return sb.append("]").toString();
+  }
+
+  private static String error(String message)
+  {
+    return "{\"error\":" + UploadMetrics.quote(message) + "}";
+  }
+
+  private static void reply(HttpExchange exchange, int status, String json)
+    throws IOException
+  {
+    byte[] body = (json + "\n").getBytes(UTF8);
+
+    exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+    exchange.sendResponseHeaders(status, body.length);
+
+    OutputStream out = exchange.getResponseBody();
+
+    out.write(body);
+    out.close();
+  }
+
+  /*
+   * Checks the client, turns a RequestException into its status, anything
+   * else into a 500, and always closes the exchange.
+   */
+  private abstract class Handler implements HttpHandler
+  {
+    abstract void handle(HttpExchange exchange, String method, String path)
+      throws IOException, RequestException, InterruptedException;
+
+    public void handle(HttpExchange exchange) throws IOException
+    {
+      try
+      {
+        checkClient(exchange, exchange.getRequestMethod());
+        handle(exchange, exchange.getRequestMethod(),
+               exchange.getRequestURI().getPath());
+      }
+      catch (RequestException ex)
+      {
+        reply(exchange, ex.status, error(ex.getMessage()));
+      }
+      catch (InterruptedException ex)
+      {
+        // stopping
+      }
+      catch (IOException ex)
+      {
+        // most likely the client has gone; if not, it gets a 500
+        try
+        {
+          reply(exchange, 500, error(String.valueOf(ex.getMessage())));
+        }
+        catch (IOException ignore)
+        {
+        }
+      }
+      finally
+      {
+        exchange.close();
+      }
+    }
+  }
+
+  /**
+   * Serve the images in catalogName (a new temporary directory if null)
+   * on port until stopped, and return a RogueUpdaterCLI exit code.
+   */
+  static int run(int port, String catalogName, int maxJobs, PrintStream out,
+                 PrintStream err) throws InterruptedException
+  {
+    File dir;
+
+    try
+    {
+      dir = catalogName != null ? new File(catalogName)
+            : Files.createTempDirectory("rogueupdater").toFile();
+    }
+    catch (IOException ex)
+    {
+      err.println("Can't make a directory for images: " + ex.getMessage());
+      return RogueUpdaterCLI.EXIT_IO_ERROR;
+    }
+
+    final FirmwareCatalog catalog = new FirmwareCatalog(dir);
+    final UpdaterDaemon daemon = new UpdaterDaemon(catalog, maxJobs > 0 ? maxJobs
+                                                                        : DEFAULT_JOBS);
+
+    try
+    {
+      catalog.scan();
+      catalog.watch();
+      port = daemon.start(port);
+    }
+    catch (IOException ex)
+    {
+      err.println("Can't start: " + ex.getMessage());
+      catalog.close();
+      return RogueUpdaterCLI.EXIT_IO_ERROR;
+    }
+
+    out.println("Images: " + catalog.getEntries().size() + " in " + dir);
+    out.println("Listening on http://127.0.0.1:" + port + "/");
+    out.println("Token: " + daemon.getToken());
+
+    // killed is the usual way to stop: close the server and the ports
+    Runtime.getRuntime().addShutdownHook(new Thread(new Runnable()
+    {
+      public void run()
+      {
+        daemon.stop();
+        catalog.close();
+      }
+    }, "daemon-shutdown"));
+
+    try
+    {
+      daemon.join();
+    }
+    finally
+    {
+      daemon.stop();
+      catalog.close();
+    }
+
+    return RogueUpdaterCLI.EXIT_OK;
+  }
+}
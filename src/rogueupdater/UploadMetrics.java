@@ -0,0 +1,329 @@
+/*
+ * RogueUpdater
+ *
+ * Firmware updater tool for Rogue Robotics products.
+ * http://www.roguerobotics.com/
+ *
+ */
+package rogueupdater;
+
+import java.lang.management.ManagementFactory;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * What happened during one upload: how long frames took to write and to
+ * be answered, how many were NAK'd, resent or timed out, and the overall
+ * throughput.
+ *
+ * Counters are written only by the uploading thread and can be read from
+ * anywhere, including over JMX (register()) while the upload runs.
+ */
+public class UploadMetrics implements UploadMetricsMXBean
+{
+  private final String port;
+  private volatile int frames;
+  private final Histogram writeTime = new Histogram();
+  private final Histogram rtt = new Histogram();
+  private volatile long startNanos;
+  private volatile long endNanos;
+  private volatile long framesSent;
+  private volatile long framesAcked;
+  private volatile long naks;
+  private volatile long retries;
+  private volatile long timeouts;
+  private volatile int reconnects;
+  private volatile long bytesSent;
+  private volatile long bytesAcked;
+  private volatile long smoothedRtt;
+  private volatile int timeout;
+  private volatile Uploader.Result result;
+  private ObjectName objectName;
+
+  public UploadMetrics(String port)
+  {
+    this.port = port;
+  }
+
+  void setFrames(int frames)
+  {
+    this.frames = frames;
+  }
+
+  void start()
+  {
+    startNanos = System.nanoTime();
+  }
+
+  void finish(Uploader.Result result)
+  {
+    endNanos = System.nanoTime();
+    this.result = result;
+  }
+
+  void frameWritten(int bytes, long nanos)
+  {
+    framesSent++;
+    bytesSent += bytes;
+    writeTime.record(nanos);
+  }
+
+  void frameAcked(int bytes, long rttNanos)
+  {
+    framesAcked++;
+    bytesAcked += bytes;
+    rtt.record(rttNanos);
+  }
+
+  void frameNaked(long rttNanos)
+  {
+    naks++;
+    rtt.record(rttNanos);
+  }
+
+  /**
+   * Frames about to be sent again after a NAK or a timeout.
+   */
+  void framesResent(int count)
+  {
+    retries += count;
+  }
+
+  void timedOut()
+  {
+    timeouts++;
+  }
+
+  void reconnected()
+  {
+    reconnects++;
+  }
+
+  /**
+   * The smoothed round trip time (us) and the timeout it gives (ms).
+   */
+  void timeoutChanged(long smoothedRttMicros, int timeoutMillis)
+  {
+    smoothedRtt = smoothedRttMicros;
+    timeout = timeoutMillis;
+  }
+
+  /**
+   * Make these metrics visible over JMX until unregister(), replacing any
+   * other upload on the same port.
+   */
+  public void register()
+  {
+    try
+    {
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      ObjectName name = new ObjectName("rogueupdater:type=Upload,port="
+                                       + ObjectName.quote(port));
+
+      if (server.isRegistered(name))
+      {
+        server.unregisterMBean(name);
+      }
+      server.registerMBean(this, name);
+      objectName = name;
+    }
+    catch (JMException ex)
+    {
+      System.err.println("Can't register upload metrics: " + ex.getMessage());
+    }
+  }
+
+  public void unregister()
+  {
+    if (objectName != null)
+    {
+      try
+      {
+        ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+      }
+      catch (JMException ignore)
+      {
+      }
+      objectName = null;
+    }
+  }
+
+  public Histogram getWriteTime()
+  {
+    return writeTime;
+  }
+
+  public Histogram getRtt()
+  {
+    return rtt;
+  }
+
+  public String getPort()
+  {
+    return port;
+  }
+
+  public String getResult()
+  {
+    Uploader.Result r = result;
+
+    return r == null ? "RUNNING" : r.toString();
+  }
+
+  public long getElapsedMillis()
+  {
+    long start = startNanos;
+    long end = result == null ? System.nanoTime() : endNanos;
+
+    return start == 0 ? 0 : (end - start) / 1000000;
+  }
+
+  public int getFrames()
+  {
+    return frames;
+  }
+
+  public long getFramesSent()
+  {
+    return framesSent;
+  }
+
+  public long getFramesAcked()
+  {
+    return framesAcked;
+  }
+
+  public long getNaks()
+  {
+    return naks;
+  }
+
+  public long getRetries()
+  {
+    return retries;
+  }
+
+  public long getTimeouts()
+  {
+    return timeouts;
+  }
+
+  public int getReconnects()
+  {
+    return reconnects;
+  }
+
+  public long getBytesSent()
+  {
+    return bytesSent;
+  }
+
+  public long getBytesAcked()
+  {
+    return bytesAcked;
+  }
+
+  /**
+   * Acknowledged bytes per second over the whole upload so far.
+   */
+  public long getBytesPerSecond()
+  {
+    long millis = getElapsedMillis();
+
+    return millis == 0 ? 0 : bytesAcked * 1000 / millis;
+  }
+
+  public double getWriteMeanMicros()
+  {
+    return writeTime.getMean();
+  }
+
+  public long getWriteMaxMicros()
+  {
+    return writeTime.getMax();
+  }
+
+  public double getRttMeanMicros()
+  {
+    return rtt.getMean();
+  }
+
+  public long getRttP50Micros()
+  {
+    return rtt.getPercentile(0.50);
+  }
+
+  public long getRttP99Micros()
+  {
+    return rtt.getPercentile(0.99);
+  }
+
+  public long getRttMaxMicros()
+  {
+    return rtt.getMax();
+  }
+
+  public long getSmoothedRttMicros()
+  {
+    return smoothedRtt;
+  }
+
+  public int getTimeoutMillis()
+  {
+    return timeout;
+  }
+
+  public String getJson()
+  {
+    return toJson();
+  }
+
+  public String toJson()
+  {
+    return "{\"port\":" + quote(port)
+           + ",\"result\":" + quote(getResult())
+           + ",\"elapsedMillis\":" + getElapsedMillis()
+           + ",\"frames\":" + frames
+           + ",\"framesSent\":" + framesSent
+           + ",\"framesAcked\":" + framesAcked
+           + ",\"naks\":" + naks
+           + ",\"retries\":" + retries
+           + ",\"timeouts\":" + timeouts
+           + ",\"reconnects\":" + reconnects
+           + ",\"bytesSent\":" + bytesSent
+           + ",\"bytesAcked\":" + bytesAcked
+           + ",\"bytesPerSecond\":" + getBytesPerSecond()
+           + ",\"writeMicros\":" + writeTime.toJson()
+           + ",\"smoothedRttMicros\":" + smoothedRtt
+           + ",\"timeoutMillis\":" + timeout
+           + ",\"rttMicros\":" + rtt.toJson()
+           + "}";
+  }
+
+  static String quote(String s)
+  {
+    StringBuilder sb = new StringBuilder(s.length() + 2);
+
+    sb.append('"');
+    for (int i = 0; i < s.length(); i++)
+    {
+      char c = s.charAt(i);
+
+      if (c == '"' || c == '\\')
+      {
+        sb.append('\\').append(c);
+      }
+      else if (c < 0x20)
+      {
+        sb.append(String.format("\\u%04x", (int) c));
+      }
+      else
+      {
+        sb.append(c);
+      }
+    }
+
+    return sb.append('"').toString();
+  }
+}
@@ -0,0 +1,58 @@
+/*
+ * RogueUpdater
+ *
+ * Firmware updater tool for Rogue Robotics products.
+ * http://www.roguerobotics.com/
+ *
+ */
+package rogueupdater;
+
+/**
+ * JMX view of an upload's metrics.  Times are in microseconds.
+ */
+public interface UploadMetricsMXBean
+{
+  String getPort();
+
+  String getResult();
+
+  long getElapsedMillis();
+
+  int getFrames();
+
+  long getFramesSent();
+
+  long getFramesAcked();
+
+  long getNaks();
+
+  long getRetries();
+
+  long getTimeouts();
+
+  int getReconnects();
+
+  long getBytesSent();
+
+  long getBytesAcked();
+
+  long getBytesPerSecond();
+
+  double getWriteMeanMicros();
+
+  long getWriteMaxMicros();
+
+  double getRttMeanMicros();
+
+  long getRttP50Micros();
+
+  long getRttP99Micros();
+
+  long getRttMaxMicros();
+
+  long getSmoothedRttMicros();
+
+  int getTimeoutMillis();
+
+  String getJson();
+}
@@ -0,0 +1,162 @@
+/*
+ * RogueUpdater
+ *
+ * Firmware updater tool for Rogue Robotics products.
+ * http://www.roguerobotics.com/
+ *
+ */
+package rogueupdater;
+
+/**
+ * How far an upload has got, at one moment.  Immutable, so it can be
+ * handed to another thread as is.
+ */
+public class UploadProgress
+{
+  private final long bytesSent;
+  private final long bytesAcked;
+  private final long totalBytes;
+  private final int framesAcked;
+  private final int totalFrames;
+  private final long bytesPerSecond;
+  private final long elapsedMillis;
+
+  public UploadProgress(long bytesSent, long bytesAcked, long totalBytes,
+                        int framesAcked, int totalFrames,
+                        long bytesPerSecond, long elapsedMillis)
+  {
+    this.bytesSent = bytesSent;
+    this.bytesAcked = bytesAcked;
+    this.totalBytes = totalBytes;
+    this.framesAcked = framesAcked;
+    this.totalFrames = totalFrames;
+    this.bytesPerSecond = bytesPerSecond;
+    this.elapsedMillis = elapsedMillis;
+  }
+
+  /**
+   * Bytes written to the module, counting frames sent more than once.
+   */
+  public long getBytesSent()
+  {
+    return bytesSent;
+  }
+
+  /**
+   * Bytes of the image the module has ACK'd.
+   */
+  public long getBytesAcked()
+  {
+    return bytesAcked;
+  }
+
+  public long getTotalBytes()
+  {
+    return totalBytes;
+  }
+
+  public int getFramesAcked()
+  {
+    return framesAcked;
+  }
+
+  public int getTotalFrames()
+  {
+    return totalFrames;
+  }
+
+  /**
+   * Recent rate of ACK'd bytes, or 0 if not known yet.
+   */
+  public long getBytesPerSecond()
+  {
+    return bytesPerSecond;
+  }
+
+  public long getElapsedMillis()
+  {
+    return elapsedMillis;
+  }
+
+  public int getPercent()
+  {
+    return totalBytes == 0 ? 100 : (int) (bytesAcked * 100 / totalBytes);
+  }
+
+  /**
+   * Estimated time left at the recent rate (ms), or -1 if not known.
+   */
+  public long getEtaMillis()
+  {
+    if (bytesAcked >= totalBytes)
+    {
+      return 0;
+    }
+
+    return bytesPerSecond == 0 ? -1
+                               : (totalBytes - bytesAcked) * 1000 / bytesPerSecond;
+  }
+
+  public boolean isComplete()
+  {
+    return bytesAcked >= totalBytes;
+  }
+
+  public String toJson()
+  {
+    return "{\"percent\":" + getPercent()
+           + ",\"bytesSent\":" + bytesSent
+           + ",\"bytesAcked\":" + bytesAcked
+           + ",\"totalBytes\":" + totalBytes
+           + ",\"framesAcked\":" + framesAcked
+           + ",\"totalFrames\":" + totalFrames
+           + ",\"bytesPerSecond\":" + bytesPerSecond
+           + ",\"elapsedMillis\":" + elapsedMillis
+           + ",\"etaMillis\":" + getEtaMillis()
+           + "}";
+  }
+
+  /**
+   * e.g. "42% (15898 of 37854 bytes, 84 of 200 frames) 9.6 kB/s, 0:03 left"
+   */
+  @Override
+  public String toString()
+  {
+    StringBuilder sb = new StringBuilder();
+
+    sb.append(getPercent()).append("% (")
+      .append(bytesAcked).append(" of ").append(totalBytes).append(" bytes, ")
+      .append(framesAcked).append(" of ").append(totalFrames).append(" frames)");
+
+    if (bytesPerSecond > 0)
+    {
+      sb.append(' ').append(formatRate(bytesPerSecond));
+    }
+
+    long eta = getEtaMillis();
+
+    if (eta > 0)
+    {
+      sb.append(", ").append(formatTime(eta)).append(" left");
+    }
+
+    return sb.toString();
+  }
+
+  static String formatRate(long bytesPerSecond)
+  {
+    if (bytesPerSecond < 1000)
+    {
+      return bytesPerSecond + " B/s";
+    }
+
+    return String.format("%.1f kB/s", bytesPerSecond / 1000.0);
+  }
+
+  static String formatTime(long millis)
+  {
+    long seconds = (millis + 999) / 1000;
+
+    return String.format("%d:%02d", seconds / 60, seconds % 60);
+  }
+}
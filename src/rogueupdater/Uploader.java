@@ -0,0 +1,694 @@
+/*
+ * RogueUpdater
+ *
+ * Firmware updater tool for Rogue Robotics products.
+ * http://www.roguerobotics.com/
+ *
+ */
+package rogueupdater;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Sends a firmware image to a module in Update mode.
+ *
+ * Frames are sent one at a time, each once the last has been answered
+ * with 0x11 (ACK); a frame answered with 0x22 (NAK) is sent again.
+ * Frames carry no sequence number, so an answer can't be matched to a
+ * frame if several are in flight, and a module that takes the frames
+ * after one it rejected would write them in the wrong place.  Only a
+ * window of one frame (stop-and-wait) is therefore allowed.
+ *
+ * How long to wait for an answer is learnt from the link as the upload
+ * goes (see RttEstimator).  When a frame goes unanswered, its answer may
+ * only be late, and would be taken for the answer to a resend; so the
+ * line must first stay quiet for the resync time, twice the slowest
+ * answer seen and never under RESPONSE_TIMEOUT.  An answer in that time
+ * is the frame's.  Otherwise the frame is sent again, like a NAK'd one,
+ * with the timeout doubled each time.  NAKs and
+ * timeouts in a row for the same frame come out of one retry budget.
+ *
+ * If the connection fails outright (a USB adapter dropping off the bus,
+ * say) and a Reconnector has been set, the port is opened again and the
+ * upload carries on from the last ACK'd frame.  Should the module not
+ * take that frame, it is assumed to have restarted, and the upload starts
+ * again from the first frame.
+ *
+ * No Swing here; the UI and the command line both drive this.
+ */
+public class Uploader
+{
+  // Time to wait for the module to answer a frame, until the link's
+  // round trip time is known (ms).
+  public static final int RESPONSE_TIMEOUT = 3000;
+  // Time to wait for an answer at each rate while probing (ms).
+  public static final int PROBE_TIMEOUT = 500;
+  // Largest frame the module accepts, including the length.
+  public static final int MAX_FRAME_SIZE = 512;
+  // Most frames in flight: the protocol can't tell frames apart.
+  public static final int MAX_WINDOW = 1;
+  // Default number of times a frame is sent again before giving up.
+  public static final int MAX_RETRIES = 4;
+  // Times the connection may be lost and opened again in one upload.
+  public static final int MAX_RECONNECTS = 3;
+  // Default least time between progress reports (ms).
+  public static final int PROGRESS_INTERVAL = 100;
+
+  public static final int ACK = 0x11;
+  public static final int NAK = 0x22;
+
+  public enum Result
+  {
+    OK,
+    INVALID_FILE,
+    TIMEOUT,
+    RETRIES_EXHAUSTED,
+    PROBE_FAILED,
+    IO_ERROR
+  }
+
+  public interface Listener
+  {
+    /**
+     * Called from the uploading thread as the module acknowledges the
+     * image: once at the start, then no more often than the progress
+     * interval, and once more when the whole image is in.
+     */
+    void progressChanged(UploadProgress progress);
+
+    /**
+     * Called from the uploading thread with news of the connection,
+     * e.g. what it is connected to, the baud rate it probed, or that it
+     * was lost and opened again.
+     */
+    void statusChanged(String status);
+  }
+
+  public interface Reconnector
+  {
+    /**
+     * Open the port again after the connection to the module was lost.
+     */
+    Connection reconnect() throws Exception;
+  }
+
+  private final FirmwareImage image;
+  private final byte[] fwData;
+  private Connection connection;
+  private InputStream input;
+  private OutputStream output;
+  private final SerialSettings settings;
+  // what the line is actually set to, once probed
+  private SerialSettings lineSettings;
+  private final UploadMetrics metrics;
+  private RttEstimator rtt = new RttEstimator(RESPONSE_TIMEOUT);
+  private int maxRetries = MAX_RETRIES;
+  private int receiveTimeout = -1;
+  private Reconnector reconnector;
+  private int reconnects;
+  private int startFrame;
+  private Listener listener;
+  private int progressInterval = PROGRESS_INTERVAL;
+  private long lastReport;
+  private long lastReportBytes;
+  private long bytesPerSecond;
+  private Exception error;
+
+  /**
+   * @throws IllegalArgumentException if windowSize is over MAX_WINDOW
+   */
+  public Uploader(FirmwareImage image, Connection connection,
+                  SerialSettings settings, int windowSize)
+  {
+    checkWindow(windowSize);
+
+    this.image = image;
+    this.fwData = image.getData();
+    this.connection = connection;
+    this.input = connection.getInputStream();
+    this.output = connection.getOutputStream();
+    this.settings = settings;
+    this.lineSettings = settings;
+    this.metrics = new UploadMetrics(connection.getName());
+  }
+
+  /**
+   * Return windowSize, the frames to keep in flight, if it is allowed.
+   *
+   * @throws IllegalArgumentException if it is over MAX_WINDOW
+   */
+  public static int checkWindow(int windowSize)
+  {
+    if (windowSize > MAX_WINDOW)
+    {
+      throw new IllegalArgumentException(
+        "A window of " + windowSize + " is not safe: frames carry no sequence"
+        + " number, so at most " + MAX_WINDOW + " may be in flight.");
+    }
+
+    return windowSize;
+  }
+
+  public void setListener(Listener listener)
+  {
+    this.listener = listener;
+  }
+
+  /**
+   * Least time between progress reports (ms).  However fast frames are
+   * ACK'd, the listener hears about them at this rate at most.
+   */
+  public void setProgressInterval(int progressInterval)
+  {
+    this.progressInterval = progressInterval;
+  }
+
+  public void setReconnector(Reconnector reconnector)
+  {
+    this.reconnector = reconnector;
+  }
+
+  /**
+   * The connection in use: the one given to the constructor, or the last
+   * one opened by the Reconnector.  Whoever opened the first should close
+   * this one.
+   */
+  public Connection getConnection()
+  {
+    return connection;
+  }
+
+  /**
+   * Time to wait for the first answer, before the link's round trip time
+   * is known, and the least time the line must be quiet before an
+   * unanswered frame is sent again (ms).  RESPONSE_TIMEOUT by default.
+   */
+  public void setResponseTimeout(int responseTimeout)
+  {
+    this.rtt = new RttEstimator(responseTimeout);
+  }
+
+  /**
+   * How many times in a row a frame may be NAK'd or go unanswered before
+   * the upload is abandoned.
+   */
+  public void setMaxRetries(int maxRetries)
+  {
+    this.maxRetries = Math.max(0, maxRetries);
+  }
+
+  /**
+   * Pick up an upload that was cut off, e.g. by a crash, after the module
+   * had ACK'd frames frames: start by sending that frame again, and go
+   * back to the first frame if the module won't take it.  Ignored when
+   * probing the baud rate, which always starts with the first frame.
+   */
+  public void setStartFrame(int frames)
+  {
+    this.startFrame = Math.max(0, frames);
+  }
+
+  /**
+   * The exception behind an IO_ERROR or INVALID_FILE result, if any.
+   */
+  public Exception getError()
+  {
+    return error;
+  }
+
+  /**
+   * Timings and counts for this upload.  They are also published over JMX
+   * while the upload runs.
+   */
+  public UploadMetrics getMetrics()
+  {
+    return metrics;
+  }
+
+  public Result upload()
+  {
+    metrics.register();
+    metrics.start();
+
+    try
+    {
+      Result result = send();
+
+      metrics.finish(result);
+
+      return result;
+    }
+    finally
+    {
+      metrics.unregister();
+    }
+  }
+
+  private Result send()
+  {
+    // send the data
+    int frames;
+    int response;
+    int retries = 0;
+    int acked = 0;
+
+    try
+    {
+      image.validate();
+      setReceiveTimeout(rtt.getTimeout());
+    }
+    catch (InvalidFirmwareException ex)
+    {
+      error = ex;
+      return Result.INVALID_FILE;
+    }
+    catch (IOException ex)
+    {
+      error = ex;
+      return Result.IO_ERROR;
+    }
+
+    frames = image.frameCount();
+    metrics.setFrames(frames);
+    status("Connected: " + connection.getName());
+
+    if (settings.isProbe())
+    {
+      try
+      {
+        acked = probeBaudRate();
+      }
+      catch (Exception ex)
+      {
+        error = ex;
+        return Result.IO_ERROR;
+      }
+
+      if (acked < 0)
+      {
+        return Result.PROBE_FAILED;
+      }
+    }
+    else if (startFrame > 0 && startFrame < frames)
+    {
+      try
+      {
+        acked = resume(startFrame);
+      }
+      catch (IOException ex)
+      {
+        error = ex;
+        return Result.IO_ERROR;
+      }
+
+      if (acked < 0)
+      {
+        return Result.RETRIES_EXHAUSTED;
+      }
+    }
+
+    reportProgress(acked, true);
+
+    while (acked < frames)
+    {
+      try
+      {
+        // the next frame, straight out of the image
+        int frameSize = image.frameSize(acked);
+        long start = System.nanoTime();
+
+        output.write(fwData, image.frameOffset(acked), frameSize);
+        output.flush();
+
+        long sentAt = System.nanoTime();
+
+        metrics.frameWritten(frameSize, sentAt - start);
+
+        response = readResponse(rtt.getTimeout());
+
+        if (response < 0)
+        {
+          metrics.timedOut();
+          rtt.backOff();
+          metrics.timeoutChanged(rtt.getSmoothedRtt(), rtt.getTimeout());
+
+          // the answer may just be late; wait for it, or for the line to
+          // stay quiet long enough that none is coming
+          response = readResponse(rtt.getQuietTime());
+        }
+
+        long now = System.nanoTime();
+
+        // only a frame sent once gives a round trip time: the answer to
+        // a resent frame could belong to either send
+        if (response >= 0 && retries == 0)
+        {
+          rtt.sample(now - sentAt);
+          metrics.timeoutChanged(rtt.getSmoothedRtt(), rtt.getTimeout());
+          if (rtt.getTimeout() < receiveTimeout)
+          {
+            setReceiveTimeout(rtt.getTimeout());
+          }
+        }
+
+        if (response == ACK)
+        {
+          metrics.frameAcked(frameSize, now - sentAt);
+          retries = 0;
+          acked++;
+        }
+        else
+        {
+          retries++;
+
+          if (response < 0)
+          {
+            if (retries > maxRetries)
+            {
+              return Result.TIMEOUT;
+            }
+          }
+          else
+          {
+            metrics.frameNaked(now - sentAt);
+            if (retries > maxRetries)
+            {
+              return Result.RETRIES_EXHAUSTED;
+            }
+          }
+
+          // throw away any noise that came with the answer
+          drainInput();
+          setReceiveTimeout(rtt.getTimeout());
+
+          metrics.framesResent(1);
+        }
+
+        reportProgress(acked, acked == frames);
+      }
+      catch (IOException ex)
+      {
+        acked = reconnect(ex, acked);
+
+        if (acked < 0)
+        {
+          return Result.IO_ERROR;
+        }
+
+        retries = 0;
+      }
+      catch (Exception ex)
+      {
+        error = ex;
+        return Result.IO_ERROR;
+      }
+    }
+
+    return Result.OK;
+  }
+
+  /*
+   * Tell the listener how far we have got, unless we did so less than
+   * progressInterval ago.  The rate is smoothed over the last few reports.
+   */
+  private void reportProgress(int acked, boolean force)
+  {
+    long now = System.nanoTime();
+
+    if (listener == null
+        || (!force && now - lastReport < progressInterval * 1000000L))
+    {
+      return;
+    }
+
+    long bytes = image.frameOffset(acked);
+
+    if (lastReport != 0 && now > lastReport)
+    {
+      long recent = Math.max(0, bytes - lastReportBytes) * 1000000000L
+                    / (now - lastReport);
+
+      bytesPerSecond = bytesPerSecond == 0 ? recent
+                                           : (3 * bytesPerSecond + recent) / 4;
+    }
+    lastReport = now;
+    lastReportBytes = bytes;
+
+    listener.progressChanged(new UploadProgress(metrics.getBytesSent(), bytes,
+                                                fwData.length, acked,
+                                                image.frameCount(),
+                                                bytesPerSecond,
+                                                metrics.getElapsedMillis()));
+  }
+
+  private void status(String status)
+  {
+    if (listener != null)
+    {
+      listener.statusChanged(status);
+    }
+  }
+
+  /*
+   * Open the port again after cause, and find out where the module is.
+   * Returns the number of the next frame to send, or -1 if the upload
+   * cannot go on.
+   */
+  private int reconnect(IOException cause, int checkpoint)
+  {
+    error = cause;
+
+    if (reconnector == null || reconnects >= MAX_RECONNECTS)
+    {
+      return -1;
+    }
+
+    reconnects++;
+    metrics.reconnected();
+    status("Connection lost (" + cause.getMessage() + "), reconnecting to "
+           + connection.getName());
+    connection.close();
+
+    try
+    {
+      connection = reconnector.reconnect();
+      status("Connected: " + connection.getName());
+      input = connection.getInputStream();
+      output = connection.getOutputStream();
+      receiveTimeout = -1;
+      connection.setSettings(lineSettings);
+
+      int next = resume(checkpoint);
+
+      if (next >= 0)
+      {
+        error = null;
+      }
+
+      return next;
+    }
+    catch (Exception ex)
+    {
+      error = ex;
+      return -1;
+    }
+  }
+
+  /*
+   * Send the checkpoint frame again.  If the module takes it, carry on
+   * after it; if not, try the first frame in case the module has started
+   * over.  Returns the number of the next frame to send, or -1 if the
+   * module takes neither.
+   */
+  private int resume(int checkpoint) throws IOException
+  {
+    int timeout = Math.max(PROBE_TIMEOUT, rtt.getTimeout());
+    int[] frames = checkpoint > 0 ? new int[] { checkpoint, 0 }
+                                  : new int[] { 0 };
+
+    setReceiveTimeout(timeout);
+
+    try
+    {
+      for (int frame : frames)
+      {
+        // give the module time to give up on a frame cut short
+        try
+        {
+          Thread.sleep(PROBE_TIMEOUT);
+        }
+        catch (InterruptedException ignore)
+        {
+        }
+        drainInput();
+
+        if (sendFrame(frame, timeout) == ACK)
+        {
+          status(frame > 0 ? "Resumed at frame " + frame
+                           : "Restarting from the first frame");
+          return frame + 1;
+        }
+      }
+    }
+    finally
+    {
+      setReceiveTimeout(rtt.getTimeout());
+    }
+
+    return -1;
+  }
+
+  /*
+   * Send a single frame and wait for its answer.  Returns the answer, or
+   * -1 on timeout.
+   */
+  private int sendFrame(int frame, int timeout) throws IOException
+  {
+    int frameSize = image.frameSize(frame);
+    long start = System.nanoTime();
+
+    output.write(fwData, image.frameOffset(frame), frameSize);
+    output.flush();
+    metrics.frameWritten(frameSize, System.nanoTime() - start);
+
+    int response = readResponse(timeout);
+
+    if (response == ACK)
+    {
+      metrics.frameAcked(frameSize, System.nanoTime() - start);
+    }
+    else if (response >= 0)
+    {
+      metrics.frameNaked(System.nanoTime() - start);
+    }
+
+    return response;
+  }
+
+  /*
+   * Find the fastest rate in PROBE_RATES the module answers at.
+   *
+   * The first frame of the image is sent at each rate in turn until it
+   * is ACK'd; the port is left at that rate and the number of the next
+   * frame is returned so the upload carries on from there.  Returns -1 if
+   * no rate worked.
+   */
+  private int probeBaudRate() throws IOException
+  {
+    setReceiveTimeout(PROBE_TIMEOUT);
+
+    try
+    {
+      for (int rate : SerialSettings.PROBE_RATES)
+      {
+        lineSettings = settings.withBaudRate(rate);
+        connection.setSettings(lineSettings);
+
+        // throw away anything left over from the last attempt
+        drainInput();
+
+        if (sendFrame(0, PROBE_TIMEOUT) == ACK)
+        {
+          status("Probed baud rate: " + rate);
+          return 1;
+        }
+
+        // give the module time to give up on a garbled frame
+        try
+        {
+          Thread.sleep(PROBE_TIMEOUT);
+        }
+        catch (InterruptedException ignore)
+        {
+        }
+      }
+    }
+    finally
+    {
+      setReceiveTimeout(rtt.getTimeout());
+    }
+
+    return -1;
+  }
+
+  /*
+   * Set the driver's read timeout, if it has changed.  The estimate moves
+   * a little with every answer, so this is only called when it has fallen
+   * below the driver's or when we back off; a driver timeout shorter than
+   * ours is fine, as readResponse() keeps reading until its own deadline.
+   */
+  private void setReceiveTimeout(int timeout) throws IOException
+  {
+    if (timeout != receiveTimeout)
+    {
+      connection.setReceiveTimeout(timeout);
+      receiveTimeout = timeout;
+    }
+  }
+
+  private void drainInput() throws IOException
+  {
+    while (input.available() > 0)
+    {
+      input.read();
+    }
+  }
+
+  /*
+   * Wait for a single response byte from the module.
+   * Returns the byte (0-255), or -1 on timeout.
+   *
+   * When the port supports a receive threshold and timeout, read() blocks
+   * in the driver and returns as soon as the byte lands.  Otherwise we
+   * fall back to polling available().
+   */
+  private int readResponse(int responseTimeout) throws IOException
+  {
+    return readResponse(connection, responseTimeout);
+  }
+
+  static int readResponse(Connection connection, int responseTimeout)
+    throws IOException
+  {
+    InputStream input = connection.getInputStream();
+
+    if (connection.isBlockingReads())
+    {
+      long deadline = System.currentTimeMillis() + responseTimeout;
+      int b;
+
+      // read() returns -1 when the driver timeout expires; some drivers
+      // return early, so keep reading until our own deadline passes.
+      do
+      {
+        b = input.read();
+      }
+      while (b < 0 && System.currentTimeMillis() < deadline);
+
+      return b;
+    }
+
+    int timeout = 0;
+
+    while (input.available() <= 0)
+    {
+
+      try
+      {
+        Thread.sleep(20);
+      }
+      catch (InterruptedException ignore)
+      {
+      }
+
+      if (timeout++ >= responseTimeout / 20)
+      {
+        return -1;
+      }
+    }
+
+    return input.read();
+  }
+}
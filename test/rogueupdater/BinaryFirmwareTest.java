@@ -0,0 +1,190 @@
+/*
+ * RogueUpdater
+ *
+ * Firmware updater tool for Rogue Robotics products.
+ * http://www.roguerobotics.com/
+ *
+ */
+package rogueupdater;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.zip.GZIPOutputStream;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Writing .rfwb files and reading them back, whole or damaged.
+ */
+public class BinaryFirmwareTest
+{
+  // offsets into the header
+  private static final int VERSION = 4;
+  private static final int FRAME_COUNT = 8;
+  private static final int SHA = 20;
+  private static final int HEADER_SIZE = 52;
+
+  private File file;
+  private byte[] data;
+
+  @Before
+  public void setUp() throws IOException
+  {
+    file = File.createTempFile("firmware", "." + BinaryFirmware.EXTENSION);
+    data = FirmwareImageTest.frames(100, 2);
+    BinaryFirmware.write(new FirmwareImage(data), file);
+  }
+
+  @After
+  public void tearDown()
+  {
+    file.delete();
+  }
+
+  private byte[] contents() throws IOException
+  {
+    byte[] contents = new byte[(int) file.length()];
+    FileInputStream in = new FileInputStream(file);
+
+    try
+    {
+      ByteBuffer buffer = ByteBuffer.wrap(contents);
+
+      while (buffer.hasRemaining() && in.getChannel().read(buffer) >= 0)
+      {
+      }
+    }
+    finally
+    {
+      in.close();
+    }
+
+    return contents;
+  }
+
+  private static byte[] gzip(byte[] contents) throws IOException
+  {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    GZIPOutputStream out = new GZIPOutputStream(bytes);
+
+    out.write(contents);
+    out.close();
+
+    return bytes.toByteArray();
+  }
+
+  /*
+   * The message contents is rejected with, both as it is and compressed.
+   */
+  private static String invalid(byte[] contents) throws IOException
+  {
+    String message = null;
+
+    try
+    {
+      FirmwareImage.read(contents);
+      fail("accepted a damaged file");
+    }
+    catch (InvalidFirmwareException ex)
+    {
+      message = ex.getMessage();
+    }
+
+    try
+    {
+      FirmwareImage.read(gzip(contents));
+      fail("accepted a damaged file, compressed");
+    }
+    catch (InvalidFirmwareException ex)
+    {
+      assertEquals(message, ex.getMessage());
+    }
+
+    return message;
+  }
+
+  @Test
+  public void imageSurvivesTheRoundTrip() throws IOException
+  {
+    FirmwareImage image = FirmwareImage.load(file);
+
+    assertArrayEquals(data, image.getData());
+    assertEquals(100, image.frameCount());
+    assertArrayEquals(data, FirmwareImage.read(contents()).getData());
+    assertArrayEquals(data, FirmwareImage.read(gzip(contents())).getData());
+  }
+
+  @Test
+  public void digestIsTheImageHash() throws Exception
+  {
+    byte[] sha = MessageDigest.getInstance("SHA-256").digest(data);
+
+    assertEquals(FirmwareCache.toHex(sha), BinaryFirmware.digest(file));
+  }
+
+  @Test
+  public void damagedDataIsInvalid() throws IOException
+  {
+    byte[] contents = contents();
+
+    contents[contents.length - 1] ^= 1;
+
+    assertEquals("CRC mismatch; the file is damaged.", invalid(contents));
+  }
+
+  @Test
+  public void damagedDigestIsInvalid() throws IOException
+  {
+    byte[] contents = contents();
+
+    contents[SHA] ^= 1;
+
+    assertEquals("SHA-256 mismatch; the file is damaged.", invalid(contents));
+  }
+
+  @Test
+  public void unknownVersionsAreInvalid() throws IOException
+  {
+    byte[] contents = contents();
+
+    contents[VERSION + 1] = 0;
+    assertEquals("Unsupported .rfwb version 0.", invalid(contents));
+
+    contents[VERSION + 1] = BinaryFirmware.VERSION + 1;
+    assertEquals("Unsupported .rfwb version " + (BinaryFirmware.VERSION + 1) + ".",
+                 invalid(contents));
+  }
+
+  @Test
+  public void impossibleFrameCountIsInvalid() throws IOException
+  {
+    byte[] contents = contents();
+
+    ByteBuffer.wrap(contents).putInt(FRAME_COUNT, 0x7ffffff0);
+
+    assertEquals("The header is damaged.", invalid(contents));
+  }
+
+  @Test
+  public void truncatedFileIsInvalid() throws IOException
+  {
+    byte[] contents = contents();
+    byte[] truncated = new byte[contents.length - 10];
+
+    System.arraycopy(contents, 0, truncated, 0, truncated.length);
+
+    assertEquals("The file is " + truncated.length + " bytes, its header says "
+                 + contents.length + ".", invalid(truncated));
+
+    truncated = new byte[HEADER_SIZE - 1];
+    System.arraycopy(contents, 0, truncated, 0, truncated.length);
+
+    assertEquals("The header is truncated.", invalid(truncated));
+  }
+}
@@ -0,0 +1,153 @@
+/*
+ * RogueUpdater
+ *
+ * Firmware updater tool for Rogue Robotics products.
+ * http://www.roguerobotics.com/
+ *
+ */
+package rogueupdater;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Decoding and validating .rfw images.
+ */
+public class FirmwareImageTest
+{
+  private static final Charset ASCII = Charset.forName("US-ASCII");
+
+  /*
+   * A frame stream of count frames of random data and random lengths.
+   */
+  static byte[] frames(int count, long seed)
+  {
+    Random random = new Random(seed);
+    ByteArrayOutputStream data = new ByteArrayOutputStream();
+
+    for (int i = 0; i < count; i++)
+    {
+      int length = 1 + random.nextInt(Uploader.MAX_FRAME_SIZE - 2);
+      byte[] payload = new byte[length];
+
+      random.nextBytes(payload);
+      data.write(length >> 8);
+      data.write(length & 0xff);
+      data.write(payload, 0, length);
+    }
+
+    return data.toByteArray();
+  }
+
+  private static byte[] hex(byte[] data)
+  {
+    return FirmwareCache.toHex(data).getBytes(ASCII);
+  }
+
+  private static String invalid(byte[] data)
+  {
+    try
+    {
+      new FirmwareImage(data).validate();
+    }
+    catch (InvalidFirmwareException ex)
+    {
+      return ex.getMessage();
+    }
+
+    fail("accepted an invalid image");
+    return null;
+  }
+
+  @Test
+  public void framesAreIndexed() throws Exception
+  {
+    byte[] data = { 0, 2, 'a', 'b', 0, 1, 'c', 0, 3, 'd', 'e', 'f' };
+    FirmwareImage image = new FirmwareImage(data);
+
+    image.validate();
+    assertEquals(3, image.frameCount());
+    assertEquals(0, image.frameOffset(0));
+    assertEquals(4, image.frameOffset(1));
+    assertEquals(7, image.frameOffset(2));
+    assertEquals(data.length, image.frameOffset(3));
+    assertEquals(3, image.frameSize(1));
+    assertEquals(5, image.frameSize(2));
+  }
+
+  @Test
+  public void emptyImageIsInvalid()
+  {
+    assertEquals("The file is empty.", invalid(new byte[0]));
+  }
+
+  @Test
+  public void truncatedFrameIsInvalid()
+  {
+    assertEquals("Frame 1 is truncated (at byte 3).",
+                 invalid(new byte[] { 0, 1, 'a', 0, 4, 'b', 'c' }));
+    assertEquals("Frame 1 is truncated (at byte 3).",
+                 invalid(new byte[] { 0, 1, 'a', 0 }));
+  }
+
+  @Test
+  public void overlongFrameIsInvalid()
+  {
+    byte[] data = new byte[Uploader.MAX_FRAME_SIZE + 1];
+
+    data[0] = (byte) ((Uploader.MAX_FRAME_SIZE - 1) >> 8);
+    data[1] = (byte) (Uploader.MAX_FRAME_SIZE - 1);
+
+    assertEquals("Frame 0 is too long (" + (Uploader.MAX_FRAME_SIZE + 1)
+                 + " bytes, at byte 0).", invalid(data));
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void invalidImageHasNoFrames()
+  {
+    new FirmwareImage(new byte[] { 0, 5, 'a' }).frameCount();
+  }
+
+  @Test
+  public void hexIsDecoded() throws Exception
+  {
+    byte[] data = frames(50, 1);
+    byte[] text = hex(data);
+
+    assertArrayEquals(data, FirmwareImage.read(text).getData());
+
+    // with a trailing newline, as editors leave it
+    byte[] line = new byte[text.length + 1];
+
+    System.arraycopy(text, 0, line, 0, text.length);
+    line[text.length] = '\n';
+    assertArrayEquals(data, FirmwareImage.read(line).getData());
+  }
+
+  @Test
+  public void badHexIsInvalid() throws Exception
+  {
+    try
+    {
+      FirmwareImage.read("0001aG".getBytes(ASCII));
+      fail("accepted a non-hex digit");
+    }
+    catch (InvalidFirmwareException ex)
+    {
+      assertEquals("Invalid character 'G' at offset 5.", ex.getMessage());
+    }
+
+    try
+    {
+      FirmwareImage.read("00010".getBytes(ASCII));
+      fail("accepted an odd number of digits");
+    }
+    catch (InvalidFirmwareException ex)
+    {
+      assertEquals("Odd number of hex digits (5).", ex.getMessage());
+    }
+  }
+}
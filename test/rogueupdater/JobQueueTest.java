@@ -0,0 +1,225 @@
+/*
+ * RogueUpdater
+ *
+ * Firmware updater tool for Rogue Robotics products.
+ * http://www.roguerobotics.com/
+ *
+ */
+package rogueupdater;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * The job journal: what is written survives reopening, and a journal cut
+ * short by a crash replays to the last whole line.
+ */
+public class JobQueueTest
+{
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+  private static final String HASH_A = "aa";
+  private static final String HASH_B = "bb";
+
+  private File file;
+  private File firmware;
+  private FirmwareImage image;
+  private JobQueue queue;
+
+  @Before
+  public void setUp() throws IOException
+  {
+    file = File.createTempFile("jobs", ".journal");
+    file.delete();
+    firmware = new File("firmware.rfw");
+    image = new FirmwareImage(FirmwareImageTest.frames(10, 1));
+    queue = JobQueue.open(file);
+  }
+
+  @After
+  public void tearDown() throws IOException
+  {
+    queue.close();
+    file.delete();
+  }
+
+  private JobQueue reopen() throws IOException
+  {
+    queue.close();
+    queue = JobQueue.open(file);
+    return queue;
+  }
+
+  private JobQueue.Entry add(String portName) throws IOException
+  {
+    return queue.add(portName, firmware, image, HASH_A,
+                     SerialSettings.DEFAULT, 1, Uploader.MAX_RETRIES);
+  }
+
+  private List<String> lines() throws IOException
+  {
+    List<String> lines = new ArrayList<String>();
+    BufferedReader in = new BufferedReader(
+      new InputStreamReader(new FileInputStream(file), UTF8));
+
+    try
+    {
+      String line;
+
+      while ((line = in.readLine()) != null)
+      {
+        lines.add(line);
+      }
+    }
+    finally
+    {
+      in.close();
+    }
+
+    return lines;
+  }
+
+  private void append(String text) throws IOException
+  {
+    FileOutputStream out = new FileOutputStream(file, true);
+
+    try
+    {
+      out.write(text.getBytes(UTF8));
+    }
+    finally
+    {
+      out.close();
+    }
+  }
+
+  @Test
+  public void addedJobsAreReplayed() throws IOException
+  {
+    add("/dev/ttyUSB0");
+    add("/dev/ttyUSB1");
+
+    List<JobQueue.Entry> entries = reopen().getPending();
+
+    assertEquals(2, entries.size());
+
+    JobQueue.Entry entry = entries.get(0);
+
+    assertEquals(1, entry.getId());
+    assertEquals("/dev/ttyUSB0", entry.getPortName());
+    assertEquals(firmware.getAbsoluteFile(), entry.getFirmware());
+    assertEquals(SerialSettings.DEFAULT.toString(), entry.getSettings().toString());
+    assertEquals(Uploader.MAX_RETRIES, entry.getMaxRetries());
+    assertEquals(JobQueue.Status.PENDING, entry.getStatus());
+    assertEquals(0, entry.getAckedFrames());
+    assertTrue(entry.isImage(image, HASH_A));
+    assertFalse(entry.isImage(image, HASH_B));
+    assertEquals("/dev/ttyUSB1", entries.get(1).getPortName());
+  }
+
+  @Test
+  public void progressAndResultsAreReplayed() throws IOException
+  {
+    JobQueue.Entry done = add("/dev/ttyUSB0");
+    JobQueue.Entry cut = add("/dev/ttyUSB1");
+
+    queue.progressed(done, 10);
+    queue.finished(done, true, "OK");
+    queue.progressed(cut, 4);
+    // going backwards is ignored
+    queue.progressed(cut, 3);
+
+    reopen();
+
+    List<JobQueue.Entry> entries = queue.getEntries();
+
+    assertEquals(JobQueue.Status.DONE, entries.get(0).getStatus());
+    assertEquals("OK", entries.get(0).getResult());
+    assertEquals(JobQueue.Status.PENDING, entries.get(1).getStatus());
+    assertEquals(4, entries.get(1).getAckedFrames());
+    assertEquals(1, queue.getPending().size());
+  }
+
+  @Test
+  public void restartRecordsTheNewImage() throws IOException
+  {
+    JobQueue.Entry entry = add("/dev/ttyUSB0");
+    FirmwareImage other = new FirmwareImage(FirmwareImageTest.frames(12, 2));
+
+    queue.progressed(entry, 5);
+    queue.restarted(entry, other, HASH_B);
+
+    entry = reopen().getPending().get(0);
+
+    assertEquals(0, entry.getAckedFrames());
+    assertTrue(entry.isImage(other, HASH_B));
+    assertFalse(entry.isImage(image, HASH_A));
+  }
+
+  @Test
+  public void journalIsCompactedOnOpen() throws IOException
+  {
+    JobQueue.Entry entry = add("/dev/ttyUSB0");
+
+    for (int i = 1; i <= 5; i++)
+    {
+      queue.progressed(entry, i);
+    }
+    add("/dev/ttyUSB1");
+    queue.close();
+
+    assertTrue(lines().size() > 2);
+
+    reopen();
+
+    assertEquals(2, lines().size());
+    assertEquals(5, queue.getPending().get(0).getAckedFrames());
+  }
+
+  @Test
+  public void lineCutShortIsIgnored() throws IOException
+  {
+    JobQueue.Entry entry = add("/dev/ttyUSB0");
+
+    queue.progressed(entry, 3);
+    queue.close();
+
+    // a crash part way through writing the next line
+    String line = lines().get(lines().size() - 1);
+
+    append(line.replace("\t3\t", "\t7\t").substring(0, line.length() / 2));
+
+    entry = reopen().getPending().get(0);
+
+    assertEquals(3, entry.getAckedFrames());
+    assertEquals(2, reopen().add("/dev/ttyUSB1", firmware, image, HASH_A,
+                                 SerialSettings.DEFAULT, 1, 0).getId());
+  }
+
+  @Test
+  public void damagedLineIsSkipped() throws IOException
+  {
+    add("/dev/ttyUSB0");
+    queue.close();
+
+    append("not a job\n");
+
+    assertEquals(1, reopen().getEntries().size());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void tabInPortNameIsRefused() throws IOException
+  {
+    add("/dev/tty\tUSB0");
+  }
+}
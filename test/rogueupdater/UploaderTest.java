@@ -0,0 +1,201 @@
+/*
+ * RogueUpdater
+ *
+ * Firmware updater tool for Rogue Robotics products.
+ * http://www.roguerobotics.com/
+ *
+ */
+package rogueupdater;
+
+import java.io.IOException;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Uploads to a ModuleSimulator, checking that the module ends up with
+ * exactly the image whatever faults the link throws in.
+ */
+public class UploaderTest
+{
+  // Short, so that tests with dropped answers don't take all day (ms).
+  private static final int RESPONSE_TIMEOUT = 500;
+
+  private static FirmwareImage image(int frames, long seed)
+  {
+    return new FirmwareImage(FirmwareImageTest.frames(frames, seed));
+  }
+
+  private static Uploader uploader(FirmwareImage image, ModuleSimulator module)
+  {
+    Uploader uploader = new Uploader(image, module.connect("simulator"),
+                                     SerialSettings.DEFAULT, 1);
+
+    uploader.setResponseTimeout(RESPONSE_TIMEOUT);
+
+    return uploader;
+  }
+
+  @Test
+  public void imageIsDelivered()
+  {
+    FirmwareImage image = image(100, 1);
+    ModuleSimulator module = new ModuleSimulator();
+    Uploader uploader = uploader(image, module);
+
+    assertEquals(Uploader.Result.OK, uploader.upload());
+    assertArrayEquals(image.getData(), module.getAccepted());
+    assertEquals("frames sent", 100, module.getFramesReceived());
+    assertEquals(100, uploader.getMetrics().getFramesAcked());
+  }
+
+  @Test
+  public void nakedFramesAreResent()
+  {
+    FirmwareImage image = image(100, 2);
+    ModuleSimulator module = new ModuleSimulator();
+
+    module.setNakProbability(0.2);
+    module.setSeed(2);
+
+    Uploader uploader = uploader(image, module);
+
+    assertEquals(Uploader.Result.OK, uploader.upload());
+    assertArrayEquals(image.getData(), module.getAccepted());
+    assertTrue("some frames NAK'd", module.getNaks() > 0);
+    assertEquals(module.getNaks(), uploader.getMetrics().getNaks());
+  }
+
+  @Test
+  public void droppedAnswersAreWaitedOutAndResent()
+  {
+    FirmwareImage image = image(40, 3);
+    ModuleSimulator module = new ModuleSimulator();
+
+    module.setDropProbability(0.05);
+    module.setSeed(3);
+
+    Uploader uploader = uploader(image, module);
+
+    assertEquals(Uploader.Result.OK, uploader.upload());
+    assertArrayEquals(image.getData(), module.getAccepted());
+    assertTrue("some answers dropped", module.getDrops() > 0);
+    assertEquals(module.getDrops(), uploader.getMetrics().getTimeouts());
+  }
+
+  @Test
+  public void slowModuleIsWaitedFor()
+  {
+    FirmwareImage image = image(20, 4);
+    ModuleSimulator module = new ModuleSimulator();
+
+    module.setLatency(RESPONSE_TIMEOUT / 5);
+
+    Uploader uploader = uploader(image, module);
+
+    assertEquals(Uploader.Result.OK, uploader.upload());
+    assertArrayEquals(image.getData(), module.getAccepted());
+    assertEquals(0, uploader.getMetrics().getTimeouts());
+  }
+
+  @Test
+  public void lateAckIsNotTakenForTheResend()
+  {
+    FirmwareImage image = image(40, 5);
+    ModuleSimulator module = new ModuleSimulator();
+
+    // well past the timeout, but within the time the line must be quiet
+    module.setLateAnswer(20, RttEstimator.MIN_TIMEOUT + RESPONSE_TIMEOUT / 2);
+
+    Uploader uploader = uploader(image, module);
+
+    assertEquals(Uploader.Result.OK, uploader.upload());
+    assertArrayEquals(image.getData(), module.getAccepted());
+    assertEquals("frames sent", 40, module.getFramesReceived());
+  }
+
+  @Test
+  public void lostConnectionIsReopened()
+  {
+    FirmwareImage image = image(50, 6);
+    final ModuleSimulator module = new ModuleSimulator();
+
+    module.setDisconnectAfter(20);
+
+    Uploader uploader = uploader(image, module);
+
+    uploader.setReconnector(new Uploader.Reconnector()
+    {
+      public Connection reconnect()
+      {
+        return module.connect("simulator");
+      }
+    });
+
+    assertEquals(Uploader.Result.OK, uploader.upload());
+    assertArrayEquals(image.getData(), module.getAccepted());
+    assertEquals(1, uploader.getMetrics().getReconnects());
+  }
+
+  @Test
+  public void lostConnectionFailsWithoutReconnector()
+  {
+    ModuleSimulator module = new ModuleSimulator();
+
+    module.setDisconnectAfter(5);
+
+    Uploader uploader = uploader(image(20, 7), module);
+
+    assertEquals(Uploader.Result.IO_ERROR, uploader.upload());
+    assertTrue(uploader.getError() instanceof IOException);
+  }
+
+  @Test
+  public void framesAlwaysNakedExhaustRetries()
+  {
+    ModuleSimulator module = new ModuleSimulator();
+
+    module.setNakProbability(1);
+
+    Uploader uploader = uploader(image(10, 8), module);
+
+    uploader.setMaxRetries(2);
+
+    assertEquals(Uploader.Result.RETRIES_EXHAUSTED, uploader.upload());
+    assertEquals("first frame sent 3 times", 3, module.getFramesReceived());
+    assertEquals(0, module.getAccepted().length);
+  }
+
+  @Test
+  public void silentModuleTimesOut()
+  {
+    ModuleSimulator module = new ModuleSimulator();
+
+    module.setDropProbability(1);
+
+    Uploader uploader = uploader(image(10, 9), module);
+
+    uploader.setMaxRetries(1);
+
+    assertEquals(Uploader.Result.TIMEOUT, uploader.upload());
+    assertEquals("first frame sent twice", 2, module.getFramesReceived());
+  }
+
+  @Test
+  public void invalidImageIsNotSent()
+  {
+    ModuleSimulator module = new ModuleSimulator();
+    Uploader uploader = uploader(new FirmwareImage(new byte[] { 0, 5, 1 }),
+                                 module);
+
+    assertEquals(Uploader.Result.INVALID_FILE, uploader.upload());
+    assertTrue(uploader.getError() instanceof InvalidFirmwareException);
+    assertEquals(0, module.getFramesReceived());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void windowOverOneIsRefused()
+  {
+    new Uploader(image(1, 10), new ModuleSimulator().connect("simulator"),
+                 SerialSettings.DEFAULT, 2);
+  }
+}